@@ -1,23 +1,20 @@
 package com.arksine.resremote;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.Point;
 import android.hardware.display.DisplayManager;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
 import android.preference.PreferenceManager;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
 import android.view.OrientationEventListener;
 import android.view.Surface;
-import android.widget.Toast;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -34,31 +31,31 @@ public class ArduinoCom implements Runnable{
 
     private NativeInput uInput = null;
     private volatile boolean mConnected = false;
-    private volatile boolean mConnectionFinished = false;
     private Context mContext;
 
-    private volatile boolean mRunning = false;
+    // Any thread may ask for a stop by draining, the thread that called open() tears the
+    // connection down and closes it
+    private final ConnectionStateMachine mState = new ConnectionStateMachine();
+    private volatile Thread mOwner = null;
+    private Thread mStopper = null;     // set by startStopper()
+    private volatile ConnectionFuture mConnection = null;
+    private static final long CLOSE_TIMEOUT = 1000;  // ms the stopper waits for the owner
 
-    private SerialHelper mSerialHelper;
-    private SerialHelper.DeviceReadyListener readyListener;
+    private volatile SerialHelper mSerialHelper;
 
-    private InputHandler mInputHandler;
-    private Looper mInputLooper;
+    // Time allowed for a device to connect, including any permission dialog
+    private static final long DEFAULT_CONNECT_TIMEOUT = 15000;
 
-    // Handler that receives messages from arudino and sends them
-    // to NativeInput
-    private final class InputHandler extends Handler {
+    // Carries points from the reading thread to NativeInput
+    private volatile InputPipeline mInputPipeline = null;
 
-        public InputHandler(Looper looper) {
-            super(looper);
-        }
+    // Events NativeInput can hand to the driver at once when injecting through a shared buffer
+    private static final int EVENT_CHANNEL_CAPACITY = 64;
 
-        @Override
-        public void handleMessage(Message msg) {
-            ArduinoMessage message = (ArduinoMessage) msg.obj;
-            uInput.processInput(message.command, message.point);
-        }
-    }
+    // Fuzz of the position axes unless configured.  evdev drops changes smaller than fuzz / 2
+    // and averages changes smaller than 2 * fuzz with the previous position.
+    private static final int DEFAULT_TOUCH_FUZZ = 2;
+    private static final float MM_PER_INCH = 25.4f;
 
     @Override
     public void run() {
@@ -68,41 +65,116 @@ public class ArduinoCom implements Runnable{
     // Event listener to detect changes in orientation
     private OrientationEventListener orientationListener;
 
-    // Broadcast reciever to listen for write commands.
-    public class WriteReciever extends BroadcastReceiver {
+    // Commands are encoded once and written by mCommandWriter on its own thread
+    private static final byte[] CMD_CAPS = CommandWriter.encode("<CAPS>");
+    private static final byte[] CMD_START = CommandWriter.encode("<START>");
+    private static final byte[] CMD_BINARY = CommandWriter.encode("<BINARY>");
+    private static final byte[] CMD_STOP = CommandWriter.encode("<STOP>");
+    private static final long WRITE_DRAIN_TIMEOUT = 500;  // ms allowed to send STOP on disconnect
+
+    private volatile CommandWriter mCommandWriter = null;
+
+    private final CommandWriter.ResponseListener mCapsListener =
+            new CommandWriter.ResponseListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (mContext.getString(R.string.ACTION_SEND_DATA).equals(action)) {
-                // stops all queued services
-                String data = intent.getStringExtra(mContext.getString(R.string.EXTRA_DATA));
-                mSerialHelper.writeString(data);
-            }
+        public void onResponse(int requestId, FrameDecoder response) {
+            onCapabilitiesReceived(response);
         }
-    }
-    private final WriteReciever writeReciever = new WriteReciever();
-    boolean isWriteReceiverRegistered = false;
 
-    /**
-     * Container for a message recieved from the arduino.  There are two message types we can receive,
-     * logging types and point types.  Logging types fill in the desc string, point types fill in
-     * the TouchPoint.
-     */
-    private class ArduinoMessage {
-        public String command;
-        public String desc;
-        public TouchPoint point;
-    }
+        @Override
+        public void onFailed(int requestId) {
+            // older firmware doesn't answer, it keeps sending text frames
+            Log.i(TAG, "Controller did not report capabilities");
+        }
+    };
+
+    // The firmware acknowledges BINARY in text before its first binary frame, so the decoder
+    // is switched on the reading thread before any binary frame arrives
+    private final CommandWriter.ResponseListener mBinaryListener =
+            new CommandWriter.ResponseListener() {
+        @Override
+        public void onResponse(int requestId, FrameDecoder response) {
+            response.setBinaryEnabled(true);
+            mBinaryProtocol = true;
+            Log.i(TAG, "Switched controller to binary frames");
+        }
+
+        @Override
+        public void onFailed(int requestId) {
+            // the acknowledgement may have been lost, START puts the firmware back in text mode
+            Log.e(TAG, "Controller did not acknowledge binary frames, staying with text");
+            sendCommand(CMD_START, CommandWriter.NO_RESPONSE, null, mStartListener);
+        }
+    };
 
-    ArduinoCom(Context context) {
+    private final CommandWriter.ResponseListener mStartListener =
+            new CommandWriter.ResponseListener() {
+        @Override
+        public void onResponse(int requestId, FrameDecoder response) {}
 
+        @Override
+        public void onFailed(int requestId) {
+            // unable to write start command
+            Log.e(TAG, "Unable to start arduino");
+            mState.drain();
+        }
+    };
+
+    // Decoder for frames received from the arduino.  It is reused for every frame so that
+    // reading points does not generate garbage
+    private final FrameDecoder mDecoder = new FrameDecoder();
+
+    // Bytes read from the device that have not yet been fed to the decoder
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final long READ_TIMEOUT = 100;  // ms, bounds how long a shutdown takes to notice
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private int mReadPosition = 0;
+    private int mReadLength = 0;
+
+    // System.nanoTime() when the read filling mReadBuffer returned, the arrival time of every
+    // frame it completes
+    private long mReadTime = 0;
+
+    // A noisy link produces invalid frames in bursts, they are counted and logged at most
+    // once per INVALID_LOG_INTERVAL.  The decoder's counters say why they were invalid.
+    private static final long INVALID_LOG_INTERVAL = 5000000000L;  // ns
+    private long mInvalidFrames = 0;
+    private long mLastInvalidLog = 0;
+
+    // Capabilities reported by the controller, all zero for firmware that predates the
+    // CAPS command
+    private volatile int mCapabilities = 0;
+    private volatile int mMaxSampleRate = 0;
+    private volatile int mResolution = 0;
+    private volatile boolean mBinaryProtocol = false;
+
+    // True when restouchdrv reads, decodes and injects on its own thread
+    private volatile boolean mNativeReading = false;
+    private final long[] mNativeStats = new long[NativeInput.STAT_COUNT];
+    private final long[] mUinputStats = new long[NativeInput.UINPUT_STAT_COUNT];
+
+    // Log frames are handed to a background thread instead of being handled while reading
+    private final ControllerStatus mControllerStatus;
+
+    ArduinoCom(Context context, ControllerStatus controllerStatus) {
         mContext = context;
+        mControllerStatus = controllerStatus;
+    }
 
-        HandlerThread thread = new HandlerThread("ServiceStartArguments",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mInputLooper = thread.getLooper();
-        mInputHandler = new InputHandler(mInputLooper);
+    /**
+     * Connects to the arduino and starts it.  Blocks until the device is connected, so it must
+     * not be called from the main thread.  The calling thread owns the connection: it should
+     * call run() if this succeeds, then disconnect() in either case.
+     *
+     * @return true if the arduino is connected and running
+     */
+    public boolean open() {
+
+        mOwner = Thread.currentThread();
+        if (mState.getState() != ConnectionStateMachine.CONNECTING) {
+            // disconnect() was called before we got here
+            return false;
+        }
 
         final SharedPreferences sharedPrefs =
                 PreferenceManager.getDefaultSharedPreferences(mContext);
@@ -112,28 +184,42 @@ public class ArduinoCom implements Runnable{
             // user selected bluetooth device
             mSerialHelper = new BluetoothHelper(mContext);
         }
+        else if (deviceType.equals("NETWORK")) {
+            // user selected a wi-fi controller
+            mSerialHelper = new NetworkHelper(mContext);
+        }
         else {
             // user selected usb device
             mSerialHelper = new UsbHelper(mContext);
 
         }
 
-        readyListener = new SerialHelper.DeviceReadyListener() {
-            @Override
-            public void OnDeviceReady(boolean deviceReadyStatus) {
-                mConnected = deviceReadyStatus;
-                mConnectionFinished = true;
-            }
-        };
-
         if (!connect(sharedPrefs)) {
-            return;
+            return false;
         }
 
+        mCommandWriter = new CommandWriter(mSerialHelper);
+        mCommandWriter.start();
+        mControllerStatus.start();
+
         if (!startUinput()) {
             mConnected = false;
-            return;
+            return false;
+        }
+
+        if (sharedPrefs.getBoolean("pref_key_event_channel", false)) {
+            uInput.useEventChannel(EVENT_CHANNEL_CAPACITY);
+        }
+
+        // Inject on a dedicated thread unless the user asked for injection on the reading thread
+        mInputPipeline = new InputPipeline(uInput, InputPipeline.parsePolicy(
+                sharedPrefs.getString("pref_key_input_policy", "HANDOFF")));
+        mInputPipeline.start();
+
+        if (mSerialHelper instanceof UsbHelper) {
+            startNativeReader((UsbHelper) mSerialHelper);
         }
+
         String orientation = sharedPrefs.getString("pref_key_select_orientation", "Landscape");
         // Set up the orientation listener
         orientationListener = new OrientationEventListener(mContext) {
@@ -152,18 +238,25 @@ public class ArduinoCom implements Runnable{
             orientationListener.disable();
         }
 
-        //Register write data receiver
-        IntentFilter sendDataFilter = new IntentFilter(mContext.getString(R.string.ACTION_SEND_DATA));
-        mContext.registerReceiver(writeReciever, sendDataFilter);
-        isWriteReceiverRegistered = true;
-
-        // Tell the Arudino that it is time to start
-        if (!mSerialHelper.writeString("<START>")) {
+        // Ask the Arduino for its capabilities, then tell it that it is time to start.  Firmware
+        // that supports binary frames answers with a CAPS frame and is switched over when it
+        // arrives, older firmware logs an unknown command and keeps sending text frames.  The
+        // native reader does not answer CAPS, so it always gets text frames.
+        if ((!mNativeReading && mCommandWriter.submit(CMD_CAPS, FrameDecoder.OP_CAPS, null,
+                mCapsListener) == CommandWriter.NO_REQUEST)
+                || mCommandWriter.submit(CMD_START, CommandWriter.NO_RESPONSE, null,
+                mStartListener) == CommandWriter.NO_REQUEST) {
             // unable to write start command
             Log.e(TAG, "Unable to start arduino");
             mConnected = false;
         }
 
+        // fails if another thread asked for a stop while we were setting up
+        if (!mConnected || !mState.transition(ConnectionStateMachine.CONNECTING,
+                ConnectionStateMachine.RUNNING)) {
+            mConnected = false;
+        }
+        return mConnected;
     }
 
     private boolean connect(SharedPreferences sharedPrefs) {
@@ -173,16 +266,65 @@ public class ArduinoCom implements Runnable{
             return false;
         }
 
-        mSerialHelper.connectDevice(devId, readyListener);
+        long timeout;
+        try {
+            timeout = Long.parseLong(sharedPrefs.getString("pref_key_connect_timeout",
+                    Long.toString(DEFAULT_CONNECT_TIMEOUT)));
+        } catch (NumberFormatException e) {
+            timeout = DEFAULT_CONNECT_TIMEOUT;
+        }
+
+        ConnectionFuture connection = mSerialHelper.connectDevice(devId, null);
+        mConnection = connection;
+        if (mState.getState() != ConnectionStateMachine.CONNECTING) {
+            // disconnect() may have missed the future
+            connection.cancel(true);
+        }
+
+        // wait until the connection is finished or the deadline passes
+        try {
+            mConnected = connection.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.e(TAG, "Timed out connecting to device " + devId);
+            connection.cancel(true);
+            mConnected = false;
+        } catch (CancellationException e) {
+            Log.i(TAG, "Connection to device " + devId + " cancelled");
+            mConnected = false;
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Unable to connect to device " + devId, e);
+            connection.cancel(true);
+            mConnected = false;
+        }
 
-        // wait until the connection is finished.  The readyListener is a callback that will
-        // set the variable below and set mConnected to the connection status
-        while(!mConnectionFinished);
+        if (mConnected) {
+            Log.i(TAG, "Connected to device in " + connection.getConnectTime() + " ms");
+        }
 
         return mConnected;
 
     }
 
+    /**
+     * Hands a usb device to the native reader if the user selected it.  Reading falls back to
+     * Java if the native reader can't be started.
+     */
+    private void startNativeReader(UsbHelper usbHelper) {
+        UsbHelper.NativeReaderConfig config = usbHelper.detachForNativeReader();
+        if (config == null) {
+            return;
+        }
+
+        mNativeReading = uInput.startReader(config.fileDescriptor, config.endpointAddress,
+                config.packetSize, config.ftdiStatus);
+        if (mNativeReading) {
+            Log.i(TAG, "Reading device natively");
+        } else {
+            Log.e(TAG, "Unable to start native reader, reading from Java");
+            usbHelper.reattachReader();
+        }
+    }
+
     private boolean startUinput() {
 
         DisplayManager displayManager = (DisplayManager)mContext.getSystemService(Context.DISPLAY_SERVICE);
@@ -192,8 +334,12 @@ public class ArduinoCom implements Runnable{
 
         Point maxSize = new Point();
         myDisplay.getRealSize(maxSize);
+        DisplayMetrics metrics = new DisplayMetrics();
+        myDisplay.getRealMetrics(metrics);
         int xMax;
         int yMax;
+        float xDpi;
+        float yDpi;
 
         // Retreive coordinate coefficients based on rotation
         if (rotation == Surface.ROTATION_0 || rotation == Surface.ROTATION_180) {
@@ -201,16 +347,27 @@ public class ArduinoCom implements Runnable{
 
             xMax = maxSize.x;
             yMax = maxSize.y;
+            xDpi = metrics.xdpi;
+            yDpi = metrics.ydpi;
         }
         else {
             // Landscape
 
             xMax = maxSize.y;
             yMax = maxSize.x;
+            xDpi = metrics.ydpi;
+            yDpi = metrics.xdpi;
         }
 
         if (uInput == null) {
-            uInput = new NativeInput(xMax, yMax, rotation);
+            // The kernel smooths the position with the axes' fuzz.  This is not the 2 pixel
+            // dead band the driver used to apply, small moves are averaged rather than dropped.
+            SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            int fuzz = getIntPreference(sharedPrefs, "pref_key_touch_fuzz", DEFAULT_TOUCH_FUZZ);
+            int flat = getIntPreference(sharedPrefs, "pref_key_touch_flat", 0);
+
+            uInput = new NativeInput(xMax, yMax, rotation, fuzz, flat,
+                    Math.round(xDpi / MM_PER_INCH), Math.round(yDpi / MM_PER_INCH));
         }
         else {
             uInput.setupVirtualDevice(xMax, yMax, rotation);
@@ -223,6 +380,19 @@ public class ArduinoCom implements Runnable{
         return mConnected;
     }
 
+    /**
+     * Reads a number stored as a string, as preferences edited as text are
+     */
+    private static int getIntPreference(SharedPreferences sharedPrefs, String key,
+                                        int defaultValue) {
+        try {
+            return Integer.parseInt(sharedPrefs.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid value for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
 	/**
      * This function listens for input until the running loop is broken.  It is only
      * called from the Objects run() function, which should never be called from
@@ -230,102 +400,293 @@ public class ArduinoCom implements Runnable{
      */
     private void listenForInput() {
 
-        mRunning = true;
+        // disconnect() may clear the field while this thread is still reading
+        final InputPipeline pipeline = mInputPipeline;
+        final CommandWriter writer = mCommandWriter;
+        if (pipeline == null || writer == null) {
+            return;
+        }
 
-        while (mRunning) {
+        if (mNativeReading) {
+            waitForNativeReader();
+            return;
+        }
 
-            ArduinoMessage message = readMessage();
-            if (message != null) {
-                if (message.command.equals("LOG")) {
-                    Log.i("Arduino", message.desc);
-                    if (message.desc.equals("Device not calibrated")) {
-                        Toast.makeText(mContext, "Touchscreen is not calibrated", Toast.LENGTH_SHORT).show();
-                    }
-                } else {
+        while (mState.isRunning()) {
+
+            if (readMessage()) {
+                int opcode = mDecoder.getOpcode();
+                boolean touch = (opcode == FrameDecoder.OP_DOWN || opcode == FrameDecoder.OP_UP);
 
-                    Message msg = mInputHandler.obtainMessage();
-                    msg.obj = message;
-                    mInputHandler.sendMessage(msg);
+                // replies such as CAPS parse as points too, so only touches skip the writer
+                if (!touch && writer.onFrame(mDecoder)) {
+                    // answered a command, the request's listener handled it
+                } else if (opcode == FrameDecoder.OP_LOG) {
+                    mControllerStatus.post(mDecoder);
+                } else if (touch && mDecoder.isPoint()) {
+
+                    // Binary frames may carry several samples
+                    for (int i = 0; i < mDecoder.getSampleCount(); i++) {
+                        pipeline.post(mDecoder.getOpcode(), mDecoder.getX(i),
+                                mDecoder.getY(i), mDecoder.getZ(i), mReadTime);
+                    }
                 }
             }
 
         }
     }
 
-    // Reads a message from the arduino and parses it
-    private ArduinoMessage readMessage() {
+    /**
+     * Blocks while the native reader handles input, checking that it is still running
+     */
+    private void waitForNativeReader() {
+        // wakes as soon as disconnect() drains, otherwise checks the reader every READ_TIMEOUT
+        while (!mState.awaitState(ConnectionStateMachine.DRAINING, READ_TIMEOUT)) {
+            if (!uInput.getReaderStats(mNativeStats)
+                    || mNativeStats[NativeInput.STAT_RUNNING] == 0) {
+                if (mState.drain()) {
+                    Log.e(TAG, "Connection to device lost");
+                }
+                return;
+            }
+        }
+    }
 
-        int bytes = 0;
-        byte[] buffer = new byte[256];
-        byte ch;
+    /**
+     * Handles the CAPS frame the arduino sends in response to the CAPS command.  The frame's
+     * fields are the capability flags, the maximum sample rate in Hz and the ADC resolution
+     * in bits.
+     */
+    private void onCapabilitiesReceived(FrameDecoder decoder) {
+        mCapabilities = decoder.getX();
+        mMaxSampleRate = decoder.getY();
+        mResolution = decoder.getZ();
 
-        // get the first byte, anything other than a '<' is trash and will be ignored
-        while(mRunning && (mSerialHelper.readByte() != '<')) {
-            // sleep for 50ms between polling
-            try {
-                Thread.sleep(5);
-            } catch (InterruptedException e) { }
-        };
+        Log.i(TAG, "Controller capabilities: " + mCapabilities + ", max sample rate: "
+                + mMaxSampleRate + " Hz, resolution: " + mResolution + " bits");
 
-        // First byte is good, capture the rest until we get to the end of the message
-        while (mRunning && ((ch = mSerialHelper.readByte()) != '>')) {
-            buffer[bytes] = ch;
-            bytes++;
+        if ((mCapabilities & FrameDecoder.CAP_BINARY) != 0 && !mBinaryProtocol) {
+            sendCommand(CMD_BINARY, FrameDecoder.OP_LOG, "BINARY_OK", mBinaryListener);
         }
+    }
 
-        ArduinoMessage ardMsg;
-        String message = new String(buffer, 0, bytes);
-        String[] tokens = message.split(":");
+    /**
+     * Sends a command to the arduino without waiting for the write.  See CommandWriter.submit.
+     *
+     * @return the request id, or CommandWriter.NO_REQUEST if the command can't be queued
+     */
+    public int sendCommand(byte[] command, int expectedOpcode, String expectedDesc,
+                           CommandWriter.ResponseListener listener) {
+        CommandWriter writer = mCommandWriter;
+        if (writer == null) {
+            return CommandWriter.NO_REQUEST;
+        }
+        return writer.submit(command, expectedOpcode, expectedDesc, listener);
+    }
 
-        if (tokens.length == 2) {
-            // command received or log message
-            ardMsg = new ArduinoMessage();
+    public int getCapabilities() {
+        return mCapabilities;
+    }
 
-            ardMsg.command = tokens[0];
-            ardMsg.desc = tokens[1];
+    public int getMaxSampleRate() {
+        return mMaxSampleRate;
+    }
 
-        }
-        else if (tokens.length == 4) {
-            // Point received
-            ardMsg = new ArduinoMessage();
-            ardMsg.command = tokens[0];
-            ardMsg.point = new TouchPoint(Integer.parseInt(tokens[1]),
-                    Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+    public boolean isBinaryProtocol() {
+        return mBinaryProtocol;
+    }
 
-        }
-        else {
-            if (mRunning) {
-                // Only log an error if the device has been shut down, it always throws an
-                // IOExeception when the socket is closed
-                Log.e(TAG, "Issue parsing string, invalid data recd");
-            }
+    /**
+     * Returns the decoder, whose counters report truncated, oversized, unparsable and lost
+     * frames for the current connection
+     */
+    public FrameDecoder getDecoder() {
+        return mDecoder;
+    }
 
-            ardMsg = null;
+    /**
+     * Reads a frame from the arduino into mDecoder
+     *
+     * @return true if a valid frame was decoded
+     */
+    private boolean readMessage() {
+
+        final SerialHelper serialHelper = mSerialHelper;
+        while (mState.isRunning()) {
+
+            if (mReadPosition == mReadLength) {
+                // Buffer has been consumed, read whatever the device has received.  Blocks
+                // until data arrives; disconnect() interrupts the read rather than waiting for
+                // the timeout.
+                int count = serialHelper.read(mReadBuffer, 0, READ_BUFFER_SIZE, READ_TIMEOUT);
+                if (count == 0) {
+                    // quiet, give uinput another chance at a release it refused
+                    final InputPipeline pipeline = mInputPipeline;
+                    if (pipeline != null) {
+                        pipeline.onReaderIdle();
+                    }
+                    continue;
+                } else if (count < 0) {
+                    // -1 is expected after disconnect() interrupted the read
+                    if (mState.drain()) {
+                        Log.e(TAG, "Connection to device lost");
+                    }
+                    break;
+                }
+                mReadTime = System.nanoTime();
+                mReadPosition = 0;
+                mReadLength = count;
+            }
 
+            int result = mDecoder.feed(mReadBuffer[mReadPosition++]);
+            if (result == FrameDecoder.FRAME_COMPLETE) {
+                return true;
+            } else if (result == FrameDecoder.FRAME_INVALID) {
+                onInvalidFrame();
+                return false;
+            }
         }
 
-        return ardMsg;
+        // Device has been shut down, discard any partial frame
+        mDecoder.reset();
+        mReadPosition = 0;
+        mReadLength = 0;
+        return false;
     }
 
+    private void onInvalidFrame() {
+        mInvalidFrames++;
+        if (mLastInvalidLog == 0 || mReadTime - mLastInvalidLog >= INVALID_LOG_INTERVAL) {
+            Log.e(TAG, "Issue parsing string, invalid data recd (" + mInvalidFrames
+                    + " invalid frames so far)");
+            mLastInvalidLog = mReadTime;
+        }
+    }
+
+    /**
+     * Stops the connection.  Called by the owner thread this tears everything down; called
+     * from any other thread, usually the main thread, it returns at once and a short lived
+     * thread interrupts the owner, which tears down when it notices.
+     */
     public void disconnect () {
-        mRunning = false;
+        mState.drain();
+
+        if (Thread.currentThread() != mOwner) {
+            startStopper();
+            return;
+        }
+
+        if (mState.getState() == ConnectionStateMachine.CLOSED) {
+            return;
+        }
+
+        if (orientationListener != null) {
+            orientationListener.disable();
+        }
+
+        // the native reader has to stop before the device is closed
+        if (mNativeReading) {
+            if (uInput.getReaderStats(mNativeStats)) {
+                Log.i(TAG, "Native reader frames: " + mNativeStats[NativeInput.STAT_FRAMES]
+                        + ", points: " + mNativeStats[NativeInput.STAT_POINTS]
+                        + ", invalid: " + mNativeStats[NativeInput.STAT_INVALID]
+                        + ", lost: " + mNativeStats[NativeInput.STAT_LOST]);
+            }
+            uInput.stopReader();
+            mNativeReading = false;
+        }
+
+        Log.i(TAG, "Frames invalid: " + mInvalidFrames
+                + ", truncated: " + mDecoder.getTruncatedFrames()
+                + ", oversized: " + mDecoder.getOversizedFrames()
+                + ", unparsable: " + mDecoder.getUnparsableFrames()
+                + ", lost: " + mDecoder.getLostFrames());
+
+        // STOP is the last command written before the device is closed
+        if (mCommandWriter != null) {
+            mCommandWriter.submit(CMD_STOP);
+            mCommandWriter.stop(WRITE_DRAIN_TIMEOUT);
+            mCommandWriter = null;
+        }
 
         if (mSerialHelper!= null) {
-            mSerialHelper.writeString("<STOP>");
             mSerialHelper.disconnect();
             mConnected = false;
-            mConnectionFinished = false;
             mSerialHelper = null;
         }
 
+        mControllerStatus.stop();
+
+        // let injection finish before the virtual device goes away
+        if (mInputPipeline != null) {
+            mInputPipeline.stop();
+            mInputPipeline = null;
+        }
+
         if (uInput != null) {
+            if (uInput.getUinputStats(mUinputStats)) {
+                Log.i(TAG, "Uinput reports retried: " + mUinputStats[NativeInput.UINPUT_STAT_RETRIED]
+                        + ", dropped: " + mUinputStats[NativeInput.UINPUT_STAT_DROPPED]
+                        + ", failed writes: " + mUinputStats[NativeInput.UINPUT_STAT_FAILED_WRITES]);
+            }
             uInput.closeVirtualDevice();
         }
 
-        if (isWriteReceiverRegistered) {
-            mContext.unregisterReceiver(writeReciever);
-            isWriteReceiverRegistered = false;
+        mState.close();
+    }
+
+    /**
+     * Runs interruptOwner() off the calling thread.  Draining the STOP write and waiting for
+     * the owner can take over a second, which the main thread can't spare.
+     */
+    private synchronized void startStopper() {
+        if (mStopper != null && mStopper.isAlive()) {
+            return;
+        }
+        mStopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                interruptOwner();
+            }
+        }, "ArduinoCom-stop");
+        mStopper.start();
+    }
+
+    /**
+     * Wakes the owner thread wherever it is blocked: waiting for the device to connect,
+     * reading, or waiting on the native reader.  The owner tears down once run() returns.
+     */
+    private void interruptOwner() {
+        ConnectionFuture connection = mConnection;
+        if (connection != null) {
+            connection.cancel(true);
         }
+
+        // the arduino should hear STOP before a bluetooth read is interrupted by closing
+        // the socket
+        CommandWriter writer = mCommandWriter;
+        if (writer != null) {
+            writer.submit(CMD_STOP);
+            writer.stop(WRITE_DRAIN_TIMEOUT);
+        }
+
+        SerialHelper serialHelper = mSerialHelper;
+        if (serialHelper != null) {
+            serialHelper.interruptRead();
+        }
+
+        if (mOwner != null
+                && !mState.awaitState(ConnectionStateMachine.CLOSED, CLOSE_TIMEOUT)) {
+            Log.w(TAG, "Connection not closed after " + CLOSE_TIMEOUT + " ms, state "
+                    + mState);
+        }
+    }
+
+    /**
+     * @return the ConnectionStateMachine state of the connection
+     */
+    public int getState() {
+        return mState.getState();
     }
 
 }
@@ -18,6 +18,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 
 /**
@@ -114,6 +115,13 @@ public class BluetoothHelper implements SerialHelper {
         closeBluetoothSocket();
     }
 
+    /**
+     * A blocked socket read only returns when the socket is closed
+     */
+    public void interruptRead() {
+        closeBluetoothSocket();
+    }
+
     public boolean isBluetoothOn() {
         return mBluetoothAdapter.isEnabled();
     }
@@ -151,20 +159,29 @@ public class BluetoothHelper implements SerialHelper {
 
 
     /**
-     * Retrieves a bluetooth socket from a specified device.  WARNING: This function is blocking, do
-     * not call from the UI thread!
+     * Retrieves a bluetooth socket from a specified device.  The connection is made on its own
+     * thread, cancelling the returned future closes the socket to abort it.
      * @param macAddr - The mac address of the device to connect
      */
-    public void connectDevice (String macAddr,  SerialHelper.DeviceReadyListener readyListener) {
+    public ConnectionFuture connectDevice (String macAddr,  SerialHelper.DeviceReadyListener readyListener) {
 
         if (!isBluetoothOn()) {
-            readyListener.OnDeviceReady(false);
-            return;
+            return ConnectionFuture.failed(readyListener);
         }
 
-        ConnectionThread btConnectThread = new ConnectionThread(macAddr, readyListener);
-        btConnectThread.start();
+        ConnectionFuture btConnection = new ConnectionFuture(new ConnectionTask(macAddr), readyListener) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    // BluetoothSocket.connect() can't be interrupted, closing the socket aborts it
+                    closeBluetoothSocket();
+                }
+                return cancelled;
+            }
+        };
 
+        return btConnection.start("BluetoothConnect");
     }
 
     public void closeBluetoothSocket() {
@@ -230,28 +247,44 @@ public class BluetoothHelper implements SerialHelper {
     }
 
     /**
-     * Thread for connecting a device and creating its input and output streams.
+     * Reads as many bytes as the RFCOMM socket has available, up to len.  The socket's input
+     * stream does not support timeouts, so this blocks until data arrives or the socket
+     * is closed.
+     */
+    public int read(byte[] dst, int off, int len, long timeoutMs) {
+
+        if (mSocket == null) return -1;
+
+        try {
+            return serialIn.read(dst, off, len);
+        }
+        catch (IOException e){
+            Log.d(TAG, "Error reading from device", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Task for connecting a device and creating its input and output streams.  Returns the
+     * connection status.
      */
-    private class ConnectionThread extends Thread{
+    private class ConnectionTask implements Callable<Boolean> {
 
         private String macAddr;
-        private SerialHelper.DeviceReadyListener readyListener;
 
-        public ConnectionThread(String macAddr, SerialHelper.DeviceReadyListener readyListener) {
+        public ConnectionTask(String macAddr) {
             this.macAddr = macAddr;
-            this.readyListener = readyListener;
         }
 
         @Override
-        public void run() {
+        public Boolean call() {
 
             BluetoothDevice mDevice = mBluetoothAdapter.getRemoteDevice(macAddr);
             if (mDevice == null) {
                 // device does not exist
                 Log.e(TAG, "Unable to open bluetooth device at " + macAddr);
                 deviceConnected = false;
-                readyListener.OnDeviceReady(false);
-                return;
+                return false;
             }
 
             // Attempt to create an insecure socket.  In the future I should probably
@@ -264,8 +297,7 @@ public class BluetoothHelper implements SerialHelper {
                 Log.e (TAG, "Unable to retrieve bluetooth socket for device " + macAddr);
                 mSocket = null;
                 deviceConnected = false;
-                readyListener.OnDeviceReady(false);
-                return;
+                return false;
             }
 
             mBluetoothAdapter.cancelDiscovery();
@@ -286,8 +318,7 @@ public class BluetoothHelper implements SerialHelper {
 
                 mSocket = null;
                 deviceConnected = false;
-                readyListener.OnDeviceReady(false);
-                return;
+                return false;
             }
 
             // Get input stream
@@ -306,7 +337,7 @@ public class BluetoothHelper implements SerialHelper {
 
             deviceConnected = serialOut != null && serialIn != null;
 
-            readyListener.OnDeviceReady(deviceConnected);
+            return deviceConnected;
         }
     }
 }
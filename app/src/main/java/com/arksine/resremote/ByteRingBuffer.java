@@ -0,0 +1,201 @@
+package com.arksine.resremote;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class ByteRingBuffer
+ *
+ * Lock-free ring buffer of bytes for exactly one producer thread and one consumer thread.  The
+ * producer copies whole chunks in with write() and never blocks; bytes that do not fit are
+ * dropped and counted.  The consumer reads with read(), optionally parking until the producer
+ * signals that data has arrived.
+ */
+public class ByteRingBuffer {
+
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    // Total bytes ever read and written.  mHead is only written by the consumer, mTail only
+    // by the producer, so each can be updated without a lock.
+    private volatile long mHead = 0;
+    private volatile long mTail = 0;
+
+    // Consumer currently parked waiting for data, if any
+    private volatile Thread mWaitingReader = null;
+
+    // Set by close() from any thread, makes a waiting read return at once
+    private volatile boolean mClosed = false;
+
+    // Overflow statistics, only written by the producer
+    private volatile long mOverflowCount = 0;
+    private volatile long mDroppedBytes = 0;
+
+    /**
+     * @param capacity - minimum number of bytes the buffer can hold, rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Copies bytes into the buffer and wakes the consumer.  Must only be called from the
+     * producer thread.
+     *
+     * @return the number of bytes written, which is less than len if the buffer overflowed
+     */
+    public int write(byte[] src, int off, int len) {
+        long tail = mTail;
+        int free = mBuffer.length - (int) (tail - mHead);
+        int count = Math.min(len, free);
+
+        if (count < len) {
+            mOverflowCount++;
+            mDroppedBytes += len - count;
+        }
+
+        if (count > 0) {
+            int start = (int) tail & mMask;
+            int firstChunk = Math.min(count, mBuffer.length - start);
+            System.arraycopy(src, off, mBuffer, start, firstChunk);
+            System.arraycopy(src, off + firstChunk, mBuffer, 0, count - firstChunk);
+
+            // publish the bytes before checking for a waiting reader
+            mTail = tail + count;
+        }
+
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+
+        return count;
+    }
+
+    /**
+     * Copies as many available bytes as fit into dst without blocking.  Must only be called
+     * from the consumer thread.
+     *
+     * @return the number of bytes read, 0 if the buffer is empty
+     */
+    public int read(byte[] dst, int off, int len) {
+        long head = mHead;
+        int count = Math.min(len, (int) (mTail - head));
+
+        if (count > 0) {
+            int start = (int) head & mMask;
+            int firstChunk = Math.min(count, mBuffer.length - start);
+            System.arraycopy(mBuffer, start, dst, off, firstChunk);
+            System.arraycopy(mBuffer, 0, dst, off + firstChunk, count - firstChunk);
+
+            mHead = head + count;
+        }
+
+        return count;
+    }
+
+    /**
+     * Reads available bytes, parking the calling thread until the producer writes something,
+     * the buffer is closed or the timeout elapses.  Must only be called from the consumer
+     * thread.
+     *
+     * @return the number of bytes read, 0 on timeout or interrupt, or -1 if the buffer has
+     *         been closed and is empty
+     */
+    public int read(byte[] dst, int off, int len, long timeoutMs) {
+        int count = read(dst, off, len);
+        if (count > 0) {
+            return count;
+        } else if (mClosed) {
+            return -1;
+        } else if (timeoutMs <= 0) {
+            return 0;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        mWaitingReader = Thread.currentThread();
+        try {
+            while (true) {
+                // check again after registering, so a write that raced with us is not missed
+                count = read(dst, off, len);
+                if (count > 0) {
+                    return count;
+                } else if (mClosed) {
+                    return -1;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                    return 0;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mWaitingReader = null;
+        }
+    }
+
+    /**
+     * Wakes a consumer waiting in read(), which returns -1 from now on once the buffered bytes
+     * are consumed.  May be called from any thread.
+     */
+    public void close() {
+        mClosed = true;
+
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * Opens the buffer again after close(), discarding anything left in it.  Must not be
+     * called while the consumer is reading.
+     */
+    public void reopen() {
+        mHead = mTail;
+        mClosed = false;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Discards all buffered bytes.  Must only be called from the consumer thread.
+     */
+    public void clear() {
+        mHead = mTail;
+    }
+
+    public int available() {
+        return (int) (mTail - mHead);
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return number of writes that did not completely fit in the buffer
+     */
+    public long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    /**
+     * @return total number of bytes dropped because the buffer was full
+     */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+}
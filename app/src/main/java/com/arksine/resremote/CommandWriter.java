@@ -0,0 +1,384 @@
+package com.arksine.resremote;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Class CommandWriter
+ *
+ * Writes commands to the arduino from a dedicated thread, so a slow bluetooth or usb write
+ * never blocks the caller.  Commands are encoded once by the caller (see encode()) and wait
+ * in a bounded queue; submitting a command identical to one still waiting in the queue
+ * returns the waiting request instead of adding another.
+ *
+ * Every request gets an id.  A request that expects a response stays in flight after it is
+ * written until the reader thread passes a matching frame to onFrame().  The firmware does not
+ * echo ids, so responses are matched to the oldest in-flight request expecting that opcode
+ * (and log text, for LOG responses), which holds because the arduino answers in order.
+ */
+public class CommandWriter {
+
+    private static final String TAG = "CommandWriter";
+
+    public static final int NO_REQUEST = -1;
+    public static final int NO_RESPONSE = FrameDecoder.OP_NONE;
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final long DEFAULT_RESPONSE_TIMEOUT = 1000;     // ms
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Receives the outcome of a request.  onResponse is called on the thread reading the
+     * arduino, the decoder is only valid for the duration of the call.  onFailed is called
+     * on the writer thread, or the thread that stopped the writer.
+     */
+    public interface ResponseListener {
+        void onResponse(int requestId, FrameDecoder response);
+        void onFailed(int requestId);
+    }
+
+    private static final class Request {
+        int id;
+        byte[] command;
+        int expectedOpcode;
+        String expectedDesc;
+        ResponseListener listener;
+        long deadline;
+    }
+
+    private final SerialHelper mSerialHelper;
+    private final int mCapacity;
+    private final long mResponseTimeout;
+
+    // Both guarded by mLock
+    private final ArrayDeque<Request> mQueue;
+    private final ArrayList<Request> mInFlight = new ArrayList<>();
+    private final Object mLock = new Object();
+    private int mNextId = 0;
+
+    private volatile boolean mRunning = false;
+    private Thread mWriter = null;      // guarded by mLock
+
+    private volatile long mWriteCount = 0;
+    private volatile long mCoalescedCount = 0;
+    private volatile long mRejectedCount = 0;
+
+    public CommandWriter(SerialHelper serialHelper) {
+        this(serialHelper, DEFAULT_CAPACITY, DEFAULT_RESPONSE_TIMEOUT);
+    }
+
+    /**
+     * @param capacity - maximum number of commands waiting to be written
+     * @param responseTimeout - ms a request waits for its response before it fails
+     */
+    public CommandWriter(SerialHelper serialHelper, int capacity, long responseTimeout) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mSerialHelper = serialHelper;
+        mCapacity = capacity;
+        mResponseTimeout = responseTimeout;
+        mQueue = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Encodes a command once, so it can be submitted any number of times without allocating
+     */
+    public static byte[] encode(String command) {
+        return command.getBytes(ASCII);
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                writeCommands();
+            }
+        }, "CommandWriter");
+        synchronized (mLock) {
+            mWriter = writer;
+        }
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread.  Commands already queued are written first, unless the thread
+     * takes longer than timeoutMs; requests still waiting for a response fail.
+     */
+    public void stop(long timeoutMs) {
+        Thread writer;
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+
+            // only the first of several threads stopping the writer waits for it
+            writer = mWriter;
+            mWriter = null;
+        }
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            Log.w(TAG, "Writer did not finish in " + timeoutMs + " ms");
+            writer.interrupt();
+        }
+
+        ArrayList<Request> failed = new ArrayList<>();
+        synchronized (mLock) {
+            failed.addAll(mQueue);
+            failed.addAll(mInFlight);
+            mQueue.clear();
+            mInFlight.clear();
+        }
+        for (Request request : failed) {
+            fail(request);
+        }
+
+        Log.i(TAG, "Commands written: " + mWriteCount + ", coalesced: " + mCoalescedCount
+                + ", rejected: " + mRejectedCount);
+    }
+
+    /**
+     * Queues a command that expects no response
+     *
+     * @return the request id, or NO_REQUEST if the writer is stopped or the queue is full
+     */
+    public int submit(byte[] command) {
+        return submit(command, NO_RESPONSE, null, null);
+    }
+
+    /**
+     * Queues a command.  The listener, which may be null, hears about the response or the
+     * failure of the request.
+     *
+     * @param expectedOpcode - opcode of the frame answering the command, or NO_RESPONSE
+     * @param expectedDesc - text the answering LOG frame must carry, or null for any frame
+     *                       with the expected opcode
+     * @return the request id, or NO_REQUEST if the writer is stopped or the queue is full
+     */
+    public int submit(byte[] command, int expectedOpcode, String expectedDesc,
+                      ResponseListener listener) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return NO_REQUEST;
+            }
+
+            // An identical command still waiting to be written makes this one redundant
+            for (Request queued : mQueue) {
+                if (queued.expectedOpcode == expectedOpcode
+                        && (listener == null || queued.listener == listener)
+                        && Arrays.equals(queued.command, command)) {
+                    mCoalescedCount++;
+                    return queued.id;
+                }
+            }
+
+            if (mQueue.size() >= mCapacity) {
+                mRejectedCount++;
+                Log.w(TAG, "Command queue full, dropping " + new String(command, ASCII));
+                return NO_REQUEST;
+            }
+
+            Request request = new Request();
+            request.id = mNextId;
+            mNextId = (mNextId + 1) & Integer.MAX_VALUE;
+            request.command = command;
+            request.expectedOpcode = expectedOpcode;
+            request.expectedDesc = expectedDesc;
+            request.listener = listener;
+
+            // only wake the writer if it may be waiting for an empty queue
+            if (mQueue.isEmpty()) {
+                mLock.notifyAll();
+            }
+            mQueue.addLast(request);
+            return request.id;
+        }
+    }
+
+    /**
+     * Offers a frame from the arduino to the requests waiting for a response.  Called by the
+     * reader thread for every complete frame that is not a touch, replies such as CAPS included.
+     *
+     * @return true if the frame answered a request and should not be handled further
+     */
+    public boolean onFrame(FrameDecoder decoder) {
+        Request answered = null;
+        synchronized (mLock) {
+            if (mInFlight.isEmpty()) {
+                return false;
+            }
+
+            int opcode = decoder.getOpcode();
+            String desc = null;
+            for (Iterator<Request> it = mInFlight.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.expectedOpcode != opcode) {
+                    continue;
+                }
+                if (request.expectedDesc != null) {
+                    if (desc == null) {
+                        desc = decoder.getDesc();
+                    }
+                    if (!request.expectedDesc.equals(desc)) {
+                        continue;
+                    }
+                }
+                it.remove();
+                answered = request;
+                break;
+            }
+        }
+
+        if (answered == null) {
+            return false;
+        }
+        if (answered.listener != null) {
+            answered.listener.onResponse(answered.id, decoder);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the request is queued or waiting for its response
+     */
+    public boolean isPending(int requestId) {
+        synchronized (mLock) {
+            for (Request request : mQueue) {
+                if (request.id == requestId) {
+                    return true;
+                }
+            }
+            for (Request request : mInFlight) {
+                if (request.id == requestId) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void writeCommands() {
+        ArrayList<Request> expired = new ArrayList<>();
+
+        while (true) {
+            Request request;
+            synchronized (mLock) {
+                while (mQueue.isEmpty()) {
+                    if (!mRunning) {
+                        return;
+                    }
+
+                    // wake up for the next response deadline, if anything is in flight
+                    long wait = expireResponses(expired);
+                    if (!expired.isEmpty()) {
+                        break;
+                    }
+                    try {
+                        mLock.wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                request = mQueue.pollFirst();
+            }
+
+            for (Request timedOut : expired) {
+                Log.w(TAG, "No response to " + new String(timedOut.command, ASCII));
+                fail(timedOut);
+            }
+            expired.clear();
+
+            if (request == null) {
+                continue;
+            }
+
+            if (request.expectedOpcode != NO_RESPONSE) {
+                // in flight before the write, the response can arrive before write returns
+                synchronized (mLock) {
+                    request.deadline = System.currentTimeMillis() + mResponseTimeout;
+                    mInFlight.add(request);
+                }
+            }
+
+            if (mSerialHelper.writeBytes(request.command)) {
+                mWriteCount++;
+            } else {
+                Log.e(TAG, "Unable to write " + new String(request.command, ASCII));
+                boolean waiting;
+                synchronized (mLock) {
+                    waiting = mInFlight.remove(request) || request.expectedOpcode == NO_RESPONSE;
+                }
+                if (waiting) {
+                    fail(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves requests past their deadline into expired, must hold mLock
+     *
+     * @return ms until the next deadline, 0 if nothing is in flight
+     */
+    private long expireResponses(ArrayList<Request> expired) {
+        if (mInFlight.isEmpty()) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (Iterator<Request> it = mInFlight.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (request.deadline <= now) {
+                it.remove();
+                expired.add(request);
+            } else if (request.deadline - now < next) {
+                next = request.deadline - now;
+            }
+        }
+        return (next == Long.MAX_VALUE) ? 0 : next;
+    }
+
+    private void fail(Request request) {
+        if (request.listener != null) {
+            request.listener.onFailed(request.id);
+        }
+    }
+
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return number of submitted commands dropped because an identical one was queued
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return number of submitted commands dropped because the queue was full
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+}
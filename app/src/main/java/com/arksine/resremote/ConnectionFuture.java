@@ -0,0 +1,96 @@
+package com.arksine.resremote;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Class ConnectionFuture
+ *
+ * Completion handle for an asynchronous device connection.  The connection attempt runs on its
+ * own thread; callers can wait on the result with a deadline, cancel the attempt, and retrieve
+ * how long it took.  The DeviceReadyListener, if one was supplied, is notified once when the
+ * attempt finishes, is cancelled or fails.
+ */
+public class ConnectionFuture extends FutureTask<Boolean> {
+
+    private final SerialHelper.DeviceReadyListener mReadyListener;
+    private final long mStartTime;
+    private volatile long mConnectTime = -1;
+
+    public ConnectionFuture(Callable<Boolean> connection,
+                            SerialHelper.DeviceReadyListener readyListener) {
+        super(connection);
+        mReadyListener = readyListener;
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Runs the connection attempt on a new thread
+     *
+     * @return this future
+     */
+    public ConnectionFuture start(String threadName) {
+        new Thread(this, threadName).start();
+        return this;
+    }
+
+    /**
+     * Creates a future that has already failed, for attempts that cannot be started
+     */
+    public static ConnectionFuture failed(SerialHelper.DeviceReadyListener readyListener) {
+        ConnectionFuture future = new ConnectionFuture(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return false;
+            }
+        }, readyListener);
+        future.run();
+        return future;
+    }
+
+    /**
+     * @return the time in milliseconds the attempt took to finish, or -1 if it hasn't
+     */
+    public long getConnectTime() {
+        return mConnectTime;
+    }
+
+    @Override
+    protected void set(Boolean status) {
+        // record the time before waiters are released
+        markFinished();
+        super.set(status);
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+        markFinished();
+        super.setException(t);
+    }
+
+    @Override
+    protected void done() {
+        markFinished();
+
+        boolean status;
+        try {
+            status = get();
+        } catch (CancellationException | InterruptedException | ExecutionException e) {
+            status = false;
+        }
+
+        if (mReadyListener != null) {
+            mReadyListener.OnDeviceReady(status);
+        }
+    }
+
+    private void markFinished() {
+        if (mConnectTime < 0) {
+            mConnectTime = SystemClock.elapsedRealtime() - mStartTime;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.arksine.resremote;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class ConnectionStateMachine
+ *
+ * Tracks a connection to the arduino through CONNECTING, RUNNING, DRAINING and CLOSED.  Every
+ * transition is a compare and set, so the reader can check the state on each frame without a
+ * lock and any thread can ask for a stop while the connection is still being set up.
+ *
+ * DRAINING may be entered from any thread.  Only the thread that owns the connection moves it
+ * on to CLOSED, once everything has been torn down; other threads wait for that with
+ * awaitState().
+ */
+public class ConnectionStateMachine {
+
+    public static final int CONNECTING = 0;
+    public static final int RUNNING = 1;
+    public static final int DRAINING = 2;
+    public static final int CLOSED = 3;
+
+    private static final String[] NAMES = {"CONNECTING", "RUNNING", "DRAINING", "CLOSED"};
+
+    private final AtomicInteger mState = new AtomicInteger(CONNECTING);
+
+    // Only used to wake threads waiting in awaitState, the state itself is never guarded by it
+    private final Object mWaitLock = new Object();
+    private int mWaiters = 0;
+
+    public static String name(int state) {
+        return (state >= 0 && state < NAMES.length) ? NAMES[state] : "UNKNOWN";
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    public boolean isRunning() {
+        return mState.get() == RUNNING;
+    }
+
+    /**
+     * Moves the state from one value to another
+     *
+     * @return false if the state was not "from", another thread got there first
+     */
+    public boolean transition(int from, int to) {
+        if (!mState.compareAndSet(from, to)) {
+            return false;
+        }
+        wakeWaiters();
+        return true;
+    }
+
+    /**
+     * Asks the connection to stop, from CONNECTING or RUNNING
+     *
+     * @return true if this call started draining, false if it was already draining or closed
+     */
+    public boolean drain() {
+        while (true) {
+            int state = mState.get();
+            if (state >= DRAINING) {
+                return false;
+            }
+            if (mState.compareAndSet(state, DRAINING)) {
+                wakeWaiters();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks the connection closed, must only be called by its owner after teardown
+     */
+    public void close() {
+        mState.set(CLOSED);
+        wakeWaiters();
+    }
+
+    /**
+     * Waits until the state reaches at least the given state
+     *
+     * @return true if it did, false on timeout or interrupt
+     */
+    public boolean awaitState(int state, long timeoutMs) {
+        if (mState.get() >= state) {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mWaitLock) {
+            mWaiters++;
+            try {
+                while (mState.get() < state) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    mWaitLock.wait(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mWaiters--;
+            }
+        }
+    }
+
+    private void wakeWaiters() {
+        synchronized (mWaitLock) {
+            if (mWaiters > 0) {
+                mWaitLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name(mState.get());
+    }
+}
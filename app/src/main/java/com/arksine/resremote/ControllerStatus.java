@@ -0,0 +1,206 @@
+package com.arksine.resremote;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class ControllerStatus
+ *
+ * Takes LOG frames off the thread reading the arduino.  The reader copies each frame's text
+ * into a fixed ring of byte slots and moves on; when the ring is full the oldest message is
+ * dropped, so a chatty firmware can never make the reader wait.  A background priority thread
+ * turns the messages into strings, logs them and maps known ones to typed status events for
+ * the listeners.
+ */
+public class ControllerStatus {
+
+    private static final String TAG = "Arduino";
+
+    // Typed status events, anything the firmware says that isn't recognised is a MESSAGE
+    public static final int STATUS_MESSAGE = 0;
+    public static final int STATUS_NOT_CALIBRATED = 1;
+    public static final int STATUS_CALIBRATED = 2;
+    public static final int STATUS_UNKNOWN_COMMAND = 3;
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Receives status events on the status thread, not the main thread.  Listeners that touch
+     * the UI have to post to the main Looper themselves.
+     */
+    public interface StatusListener {
+        void onStatus(int status, String message);
+    }
+
+    // Ring of message slots, guarded by mLock.  mHead and mTail count every slot ever
+    // consumed and published.
+    private final byte[][] mMessages;
+    private final int[] mLengths;
+    private final int mMask;
+    private long mHead = 0;
+    private long mTail = 0;
+    private final Object mLock = new Object();
+
+    private final CopyOnWriteArrayList<StatusListener> mListeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean mRunning = false;
+    private Thread mConsumer = null;
+
+    private volatile long mDroppedCount = 0;
+
+    public ControllerStatus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity - minimum number of messages held, rounded up to a power of two
+     */
+    public ControllerStatus(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mMessages = new byte[size][FrameDecoder.MAX_PAYLOAD_LENGTH];
+        mLengths = new int[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Maps a message from the firmware to a STATUS_ constant
+     */
+    public static int classify(String message) {
+        if (message.equals("Device not calibrated")) {
+            return STATUS_NOT_CALIBRATED;
+        } else if (message.equals("Device calibrated")) {
+            return STATUS_CALIBRATED;
+        } else if (message.startsWith("UKNOWN COMMAND")) {   // sic, as the sketches spell it
+            return STATUS_UNKNOWN_COMMAND;
+        }
+        return STATUS_MESSAGE;
+    }
+
+    public void addListener(StatusListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(StatusListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+
+        mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                consume();
+            }
+        }, "ControllerStatus");
+        mConsumer.start();
+    }
+
+    /**
+     * Stops the status thread once the messages already posted have been delivered
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+
+        if (mConsumer != null) {
+            try {
+                mConsumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mConsumer = null;
+        }
+
+        if (mDroppedCount > 0) {
+            Log.w(TAG, "Dropped " + mDroppedCount + " log messages");
+        }
+    }
+
+    /**
+     * Queues the text of the decoder's current LOG frame.  Must only be called from the reader
+     * thread.  Never blocks and never allocates.
+     *
+     * @return false if an older message had to be dropped to make room
+     */
+    public boolean post(FrameDecoder decoder) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return true;
+            }
+
+            boolean dropped = false;
+            if (mTail - mHead > mMask) {
+                mHead++;
+                mDroppedCount++;
+                dropped = true;
+            }
+
+            int slot = (int) mTail & mMask;
+            mLengths[slot] = decoder.copyDesc(mMessages[slot], 0);
+
+            // only wake the consumer if it may be waiting for an empty ring
+            if (mTail++ == mHead) {
+                mLock.notifyAll();
+            }
+            return !dropped;
+        }
+    }
+
+    private void consume() {
+        byte[] message = new byte[FrameDecoder.MAX_PAYLOAD_LENGTH];
+        int length;
+
+        while (true) {
+            synchronized (mLock) {
+                while (mHead == mTail) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                int slot = (int) mHead++ & mMask;
+                length = mLengths[slot];
+                System.arraycopy(mMessages[slot], 0, message, 0, length);
+            }
+
+            String text = new String(message, 0, length, ASCII);
+            Log.i(TAG, text);
+
+            int status = classify(text);
+            for (StatusListener listener : mListeners) {
+                listener.onStatus(status, text);
+            }
+        }
+    }
+
+    /**
+     * @return number of messages dropped because the status thread fell behind
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,93 @@
+package com.arksine.resremote;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Class EventChannel
+ *
+ * A ring of touch events in a direct ByteBuffer that native code reads in place (see
+ * jni/eventchannel.h).  The thread injecting input writes records with put() and then signals
+ * the native side once for the whole batch, so events are neither passed as arguments nor
+ * copied out of a Java array.
+ *
+ * The buffer starts with a header holding two counters of every record ever written (the
+ * tail, advanced here) and consumed (the head, advanced by native code), followed by the
+ * records: four native order ints and the capture time as a long.  Only one thread may put
+ * records.
+ */
+public class EventChannel {
+
+    public static final int TAIL_OFFSET = 0;
+    public static final int HEAD_OFFSET = 4;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 24;
+
+    private static final int OPCODE_OFFSET = 0;
+    private static final int X_OFFSET = 4;
+    private static final int Y_OFFSET = 8;
+    private static final int Z_OFFSET = 12;
+    private static final int TIME_OFFSET = 16;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mMask;
+    private int mTail = 0;
+
+    /**
+     * @param capacity - minimum number of records in the ring, rounded up to a power of two
+     */
+    public EventChannel(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mCapacity = size;
+        mMask = size - 1;
+        mBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + size * RECORD_SIZE)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Writes a record and publishes it to the native side.  Never blocks and never allocates.
+     *
+     * @return false if the ring is full, the caller has to signal the native side first
+     */
+    public boolean put(int opcode, int x, int y, int z, long timeNs) {
+        if (mTail - mBuffer.getInt(HEAD_OFFSET) > mMask) {
+            return false;
+        }
+
+        int record = HEADER_SIZE + (mTail & mMask) * RECORD_SIZE;
+        mBuffer.putInt(record + OPCODE_OFFSET, opcode);
+        mBuffer.putInt(record + X_OFFSET, x);
+        mBuffer.putInt(record + Y_OFFSET, y);
+        mBuffer.putInt(record + Z_OFFSET, z);
+        mBuffer.putLong(record + TIME_OFFSET, timeNs);
+
+        // the counters wrap, only their difference matters
+        mTail++;
+        mBuffer.putInt(TAIL_OFFSET, mTail);
+        return true;
+    }
+
+    /**
+     * @return number of records published and not yet consumed by the native side
+     */
+    public int getPending() {
+        return mTail - mBuffer.getInt(HEAD_OFFSET);
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
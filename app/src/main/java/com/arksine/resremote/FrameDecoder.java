@@ -0,0 +1,445 @@
+package com.arksine.resremote;
+
+/**
+ * Class FrameDecoder
+ *
+ * Incremental decoder for frames sent by the arduino, ie. "<DOWN:x:y:z>" or "<LOG:desc>".
+ * Bytes are fed in one at a time and parsed straight into primitive fields, so decoding a
+ * point frame does not allocate.  A single instance is meant to be reused for every frame
+ * read from a device.
+ *
+ * A frame with one field after the command is a text frame (its field is retrieved with
+ * getDesc()), a frame with three numeric fields is a point frame.  Anything else is invalid.
+ *
+ * Firmware that reports CAP_BINARY can also be switched to packed binary frames.  The sync
+ * byte is only honoured once setBinaryEnabled(true) has been called, after the firmware
+ * acknowledged the switch, so a stray 0xA5 on a text link can't swallow the next frame:
+ *
+ *   SYNC(0xA5) OPCODE SEQUENCE COUNT [X(int16) Y(int16) Z(uint16)] * COUNT CRC8
+ *
+ * Values are little endian, the CRC (polynomial 0x07) covers everything after the sync byte.
+ * A binary frame carries up to MAX_SAMPLES samples, retrieved with getX(i), getY(i) and getZ(i).
+ *
+ * Frames are bounded.  A start marker received in the middle of a text frame means the end of
+ * the previous frame was lost, so the decoder drops it and starts over at the new marker.  A
+ * '<' where a binary header can't hold one does the same for a binary frame.
+ * Truncated, oversized and unparsable frames are counted so link quality can be monitored.
+ */
+public class FrameDecoder {
+
+    // Opcodes for the commands the arduino can send
+    public static final int OP_NONE = 0;
+    public static final int OP_DOWN = 1;
+    public static final int OP_UP = 2;
+    public static final int OP_CAL = 3;
+    public static final int OP_STOP = 4;
+    public static final int OP_LOG = 5;
+    public static final int OP_CAPS = 6;
+    public static final int OP_UNKNOWN = 7;
+
+    // Capability flags reported by the firmware in its CAPS frame
+    public static final int CAP_BINARY = 1;     // supports binary frames
+    public static final int CAP_BATCH = 2;      // sends more than one sample per binary frame
+
+    // Results returned by feed()
+    public static final int FRAME_INCOMPLETE = 0;
+    public static final int FRAME_COMPLETE = 1;
+    public static final int FRAME_INVALID = -1;
+
+    public static final byte FRAME_START = '<';
+    public static final byte FRAME_END = '>';
+    public static final byte BINARY_SYNC = (byte) 0xA5;
+    private static final byte FIELD_SEPARATOR = ':';
+
+    public static final int MAX_SAMPLES = 8;
+    private static final int BINARY_HEADER_LENGTH = 3;
+    private static final int BINARY_SAMPLE_LENGTH = 6;
+
+    private static final int MAX_COMMAND_LENGTH = 16;
+    public static final int MAX_PAYLOAD_LENGTH = 96;
+    private static final int MAX_FIELD_VALUE = 99999;
+    private static final int POINT_FIELDS = 3;
+
+    private static final byte[][] COMMAND_NAMES = {
+            "DOWN".getBytes(), "UP".getBytes(), "CAL".getBytes(),
+            "STOP".getBytes(), "LOG".getBytes(), "CAPS".getBytes()
+    };
+    private static final int[] COMMAND_OPCODES = {
+            OP_DOWN, OP_UP, OP_CAL, OP_STOP, OP_LOG, OP_CAPS
+    };
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_COMMAND = 1;
+    private static final int STATE_FIELDS = 2;
+    private static final int STATE_BINARY = 3;
+
+    private int mState = STATE_IDLE;
+
+    private final byte[] mCommand = new byte[MAX_COMMAND_LENGTH];
+    private int mCommandLength;
+
+    // Raw bytes of everything after the command, kept so a text frame's description can be
+    // retrieved.  Numeric fields are parsed as they arrive.
+    private final byte[] mPayload = new byte[MAX_PAYLOAD_LENGTH];
+    private int mPayloadLength;
+
+    private final int[] mFields = new int[POINT_FIELDS];
+    private int mFieldCount;
+    private int mFieldValue;
+    private boolean mFieldNegative;
+    private boolean mFieldHasDigits;
+    private boolean mFieldsNumeric;
+
+    // Binary frame being received: header, samples and CRC
+    private final byte[] mBinaryFrame = new byte[BINARY_HEADER_LENGTH
+            + (MAX_SAMPLES * BINARY_SAMPLE_LENGTH) + 1];
+    private int mBinaryLength;
+    private int mBinaryExpected;
+    private int mLastSequence = -1;
+    private long mLostFrames = 0;
+
+    // Corruption counters
+    private long mTruncatedFrames = 0;
+    private long mOversizedFrames = 0;
+    private long mUnparsableFrames = 0;
+
+    // Decoded frame
+    private int mOpcode = OP_NONE;
+    private boolean mPoint;
+    private int mSampleCount;
+    private final int[] mX = new int[MAX_SAMPLES];
+    private final int[] mY = new int[MAX_SAMPLES];
+    private final int[] mZ = new int[MAX_SAMPLES];
+
+    // Binary frames are only accepted after the firmware acknowledged the BINARY command
+    private boolean mBinaryEnabled = false;
+
+    /**
+     * Feeds a single byte to the decoder.  Bytes received outside of a frame are ignored.
+     *
+     * @param ch - byte received from the device
+     * @return FRAME_COMPLETE when a valid frame has been decoded, FRAME_INVALID when a frame
+     *         ended but could not be parsed, FRAME_INCOMPLETE otherwise
+     */
+    public int feed(byte ch) {
+
+        if (mState == STATE_IDLE) {
+            if (ch == FRAME_START) {
+                beginFrame();
+            } else if (ch == BINARY_SYNC && mBinaryEnabled) {
+                beginBinaryFrame();
+            }
+            return FRAME_INCOMPLETE;
+        }
+
+        if (mState == STATE_BINARY) {
+            return feedBinary(ch);
+        }
+
+        if (ch == FRAME_START || (ch == BINARY_SYNC && mBinaryEnabled)) {
+            // The end of the current frame was lost, resync on the new frame
+            mTruncatedFrames++;
+            if (ch == FRAME_START) {
+                beginFrame();
+            } else {
+                beginBinaryFrame();
+            }
+            return FRAME_INVALID;
+        }
+
+        if (ch == FRAME_END) {
+            boolean hasFields = (mState == STATE_FIELDS);
+            mState = STATE_IDLE;
+            if (!hasFields) {
+                // Nothing was received after the command
+                mUnparsableFrames++;
+                return FRAME_INVALID;
+            }
+            return finishFrame();
+        }
+
+        if (mState == STATE_COMMAND) {
+            if (ch == FIELD_SEPARATOR) {
+                mState = STATE_FIELDS;
+                beginField();
+            } else if (mCommandLength < MAX_COMMAND_LENGTH) {
+                mCommand[mCommandLength++] = ch;
+            } else {
+                // command too long, drop the frame and wait for the next start marker
+                mOversizedFrames++;
+                mState = STATE_IDLE;
+                return FRAME_INVALID;
+            }
+            return FRAME_INCOMPLETE;
+        }
+
+        // STATE_FIELDS
+        if (mPayloadLength == MAX_PAYLOAD_LENGTH) {
+            mOversizedFrames++;
+            mState = STATE_IDLE;
+            return FRAME_INVALID;
+        }
+        mPayload[mPayloadLength++] = ch;
+
+        if (ch == FIELD_SEPARATOR) {
+            endField();
+            beginField();
+        } else if (ch >= '0' && ch <= '9') {
+            if (mFieldValue > MAX_FIELD_VALUE) {
+                // far outside of any coordinate, don't let the value overflow
+                mFieldsNumeric = false;
+            }
+            mFieldValue = (mFieldValue * 10) + (ch - '0');
+            mFieldHasDigits = true;
+        } else if (ch == '-' && !mFieldHasDigits && !mFieldNegative) {
+            mFieldNegative = true;
+        } else {
+            mFieldsNumeric = false;
+        }
+
+        return FRAME_INCOMPLETE;
+    }
+
+    /**
+     * Switches binary frame decoding on or off.  Only call this from the thread feeding the
+     * decoder; a binary frame in progress is dropped when it is switched off.
+     */
+    public void setBinaryEnabled(boolean enabled) {
+        mBinaryEnabled = enabled;
+        if (!enabled && mState == STATE_BINARY) {
+            mState = STATE_IDLE;
+        }
+    }
+
+    public boolean isBinaryEnabled() {
+        return mBinaryEnabled;
+    }
+
+    /**
+     * @return true if the decoder is in the middle of a frame
+     */
+    public boolean isInFrame() {
+        return mState != STATE_IDLE;
+    }
+
+    /**
+     * Discards any partially received frame
+     */
+    public void reset() {
+        mState = STATE_IDLE;
+    }
+
+    public int getOpcode() {return mOpcode;}
+    public boolean isPoint() {return mPoint;}
+    public int getSampleCount() {return mSampleCount;}
+    public int getX() {return mX[0];}
+    public int getY() {return mY[0];}
+    public int getZ() {return mZ[0];}
+    public int getX(int sample) {return mX[sample];}
+    public int getY(int sample) {return mY[sample];}
+    public int getZ(int sample) {return mZ[sample];}
+
+    /**
+     * @return number of binary frames missed, based on gaps in their sequence numbers
+     */
+    public long getLostFrames() {return mLostFrames;}
+
+    /**
+     * @return number of frames dropped because a new frame started before they ended
+     */
+    public long getTruncatedFrames() {return mTruncatedFrames;}
+
+    /**
+     * @return number of frames dropped because they exceeded the maximum frame length
+     */
+    public long getOversizedFrames() {return mOversizedFrames;}
+
+    /**
+     * @return number of complete frames that could not be parsed or failed their CRC
+     */
+    public long getUnparsableFrames() {return mUnparsableFrames;}
+
+    public void resetStatistics() {
+        mLostFrames = 0;
+        mTruncatedFrames = 0;
+        mOversizedFrames = 0;
+        mUnparsableFrames = 0;
+    }
+
+    /**
+     * Returns the description of the last text frame.  This allocates a String, so it should
+     * only be used for log and status frames, not on the point path.
+     */
+    public String getDesc() {
+        if (mPoint) {
+            return null;
+        }
+        return new String(mPayload, 0, mPayloadLength);
+    }
+
+    /**
+     * Copies the description of the last text frame into dst without allocating, truncating
+     * it if dst is too small.
+     *
+     * @return the number of bytes copied, 0 for point frames
+     */
+    public int copyDesc(byte[] dst, int off) {
+        if (mPoint) {
+            return 0;
+        }
+        int length = Math.min(mPayloadLength, dst.length - off);
+        System.arraycopy(mPayload, 0, dst, off, length);
+        return length;
+    }
+
+    /**
+     * Returns the command name of the last frame, useful for logging unknown commands.
+     */
+    public String getCommandName() {
+        return new String(mCommand, 0, mCommandLength);
+    }
+
+    private void beginFrame() {
+        mState = STATE_COMMAND;
+        mCommandLength = 0;
+        mPayloadLength = 0;
+        mFieldCount = 0;
+        mFieldsNumeric = true;
+    }
+
+    private void beginBinaryFrame() {
+        mState = STATE_BINARY;
+        mBinaryLength = 0;
+        mBinaryExpected = BINARY_HEADER_LENGTH;
+    }
+
+    private void beginField() {
+        mFieldValue = 0;
+        mFieldNegative = false;
+        mFieldHasDigits = false;
+    }
+
+    private void endField() {
+        if (!mFieldHasDigits) {
+            mFieldsNumeric = false;
+        }
+        if (mFieldCount < POINT_FIELDS) {
+            mFields[mFieldCount] = mFieldNegative ? -mFieldValue : mFieldValue;
+        }
+        mFieldCount++;
+    }
+
+    private int finishFrame() {
+        endField();
+
+        if (mFieldCount == 1) {
+            // Text frame
+            mOpcode = lookupOpcode();
+            mPoint = false;
+            return FRAME_COMPLETE;
+        } else if (mFieldCount == POINT_FIELDS && mFieldsNumeric) {
+            mOpcode = lookupOpcode();
+            mPoint = true;
+            mSampleCount = 1;
+            mX[0] = mFields[0];
+            mY[0] = mFields[1];
+            mZ[0] = mFields[2];
+            return FRAME_COMPLETE;
+        }
+
+        mUnparsableFrames++;
+        return FRAME_INVALID;
+    }
+
+    private int feedBinary(byte ch) {
+        if (ch == FRAME_START && (mBinaryLength == 0 || mBinaryLength == 2)) {
+            // Opcodes and sample counts never look like '<', so the sync byte was noise or the
+            // rest of the frame was lost.  Samples, the sequence and the CRC can hold any byte
+            // and are left to the CRC.
+            mTruncatedFrames++;
+            beginFrame();
+            return FRAME_INVALID;
+        }
+        mBinaryFrame[mBinaryLength++] = ch;
+
+        if (mBinaryLength == BINARY_HEADER_LENGTH) {
+            int count = mBinaryFrame[2] & 0xFF;
+            if (count == 0 || count > MAX_SAMPLES) {
+                mUnparsableFrames++;
+                mState = STATE_IDLE;
+                return FRAME_INVALID;
+            }
+            // samples followed by the CRC
+            mBinaryExpected = BINARY_HEADER_LENGTH + (count * BINARY_SAMPLE_LENGTH) + 1;
+            return FRAME_INCOMPLETE;
+        }
+
+        if (mBinaryLength < mBinaryExpected) {
+            return FRAME_INCOMPLETE;
+        }
+
+        mState = STATE_IDLE;
+        int dataLength = mBinaryLength - 1;
+        if (crc8(mBinaryFrame, dataLength) != mBinaryFrame[dataLength]) {
+            mUnparsableFrames++;
+            return FRAME_INVALID;
+        }
+
+        int opcode = mBinaryFrame[0] & 0xFF;
+        mOpcode = (opcode > OP_NONE && opcode < OP_UNKNOWN) ? opcode : OP_UNKNOWN;
+        mPoint = true;
+
+        int sequence = mBinaryFrame[1] & 0xFF;
+        if (mLastSequence >= 0) {
+            mLostFrames += (sequence - mLastSequence - 1) & 0xFF;
+        }
+        mLastSequence = sequence;
+
+        mSampleCount = mBinaryFrame[2] & 0xFF;
+        int offset = BINARY_HEADER_LENGTH;
+        for (int i = 0; i < mSampleCount; i++) {
+            mX[i] = (short) ((mBinaryFrame[offset] & 0xFF) | (mBinaryFrame[offset + 1] << 8));
+            mY[i] = (short) ((mBinaryFrame[offset + 2] & 0xFF) | (mBinaryFrame[offset + 3] << 8));
+            mZ[i] = (mBinaryFrame[offset + 4] & 0xFF) | ((mBinaryFrame[offset + 5] & 0xFF) << 8);
+            offset += BINARY_SAMPLE_LENGTH;
+        }
+
+        return FRAME_COMPLETE;
+    }
+
+    /**
+     * CRC-8 with polynomial 0x07, as computed by the firmware
+     */
+    static byte crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                if ((crc & 0x80) != 0) {
+                    crc = ((crc << 1) ^ 0x07) & 0xFF;
+                } else {
+                    crc = (crc << 1) & 0xFF;
+                }
+            }
+        }
+        return (byte) crc;
+    }
+
+    private int lookupOpcode() {
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            byte[] name = COMMAND_NAMES[i];
+            if (name.length != mCommandLength) {
+                continue;
+            }
+
+            int j = 0;
+            while (j < mCommandLength && name[j] == mCommand[j]) {
+                j++;
+            }
+            if (j == mCommandLength) {
+                return COMMAND_OPCODES[i];
+            }
+        }
+        return OP_UNKNOWN;
+    }
+}
@@ -0,0 +1,341 @@
+package com.arksine.resremote;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Class InputPipeline
+ *
+ * Carries decoded touch samples from the thread reading the arduino to NativeInput.  With
+ * POLICY_INLINE samples are injected directly on the reader thread.  With POLICY_HANDOFF they
+ * are copied into a fixed ring of primitive slots and injected by a single consumer thread
+ * running at display priority, so a slow uinput write never stalls reading.  No objects are
+ * allocated per sample in either mode.
+ *
+ * Every sample carries the System.nanoTime() its frame arrived at, so the time reported to
+ * the input system is when the finger moved, not when the sample got through the queue.
+ *
+ * When the consumer falls behind, a move (a DOWN received while the screen is already touched)
+ * replaces a move still waiting at the end of the ring instead of taking a new slot, so the
+ * pointer jumps to the latest position rather than replaying stale ones.  The DOWN that starts
+ * a touch and every UP always keep their own slot.
+ */
+public class InputPipeline {
+
+    private static final String TAG = "InputPipeline";
+
+    public static final int POLICY_INLINE = 0;
+    public static final int POLICY_HANDOFF = 1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // Most samples the consumer hands to the sink at once
+    private static final int MAX_BATCH = 16;
+
+    // How long the consumer waits for samples before flushing the sink, and between retries
+    // while the sink still has a release pending
+    private static final long IDLE_FLUSH_MS = 10;
+
+    /**
+     * Receives the samples, implemented by NativeInput.  processInputs takes the samples the
+     * consumer found waiting in one call, packed as laid out by the NativeInput.EVENT_
+     * constants, with their arrival times in times; the sink may modify the arrays.
+     * flushPending retries anything the sink could not deliver, such as a release the device
+     * refused, and returns true once nothing is left; it is called when the input goes quiet,
+     * on the thread that injects.
+     */
+    public interface InputSink {
+        void processInput(int opcode, int x, int y, int z, long timeNs);
+        void processInputs(int[] events, long[] times, int count);
+        boolean flushPending();
+    }
+
+    private final InputSink mSink;
+    private final int mPolicy;
+
+    // Ring of event slots, one array per field.  mHead and mTail count every slot ever
+    // consumed and published; both are guarded by mLock.
+    private final int[] mOpcodes;
+    private final int[] mXs;
+    private final int[] mYs;
+    private final int[] mZs;
+    private final long[] mArrivals;
+    private final long[] mTimestamps;
+    private final boolean[] mMoves;
+    private final int mMask;
+    private long mHead = 0;
+    private long mTail = 0;
+    private final Object mLock = new Object();
+
+    private volatile boolean mRunning = false;
+    private Thread mConsumer = null;
+
+    // Time from publishing a sample to handing it to the sink, written by the consumer
+    private volatile long mEventCount = 0;
+    private volatile long mTotalHopLatency = 0;
+    private volatile long mMaxHopLatency = 0;
+
+    // Whether the last sample posted left the screen touched, only used by the reader thread
+    private boolean mTouching = false;
+    private volatile long mCoalescedCount = 0;
+
+    public InputPipeline(InputSink sink, int policy) {
+        this(sink, policy, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity - minimum number of slots in the ring, rounded up to a power of two
+     */
+    public InputPipeline(InputSink sink, int policy, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mSink = sink;
+        mPolicy = policy;
+        mOpcodes = new int[size];
+        mXs = new int[size];
+        mYs = new int[size];
+        mZs = new int[size];
+        mArrivals = new long[size];
+        mTimestamps = new long[size];
+        mMoves = new boolean[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Parses a policy name as stored in the preferences, "INLINE" or "HANDOFF"
+     */
+    public static int parsePolicy(String policy) {
+        return "INLINE".equals(policy) ? POLICY_INLINE : POLICY_HANDOFF;
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Starts the consumer thread if the policy hands samples off
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+
+        if (mPolicy == POLICY_HANDOFF) {
+            mConsumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                    consume();
+                }
+            }, "InputPipeline");
+            mConsumer.start();
+        }
+    }
+
+    /**
+     * Stops the consumer thread once the samples already published have been injected
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+
+        if (mConsumer != null) {
+            try {
+                mConsumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mConsumer = null;
+        }
+
+        Log.i(TAG, "Events: " + mEventCount + ", coalesced: " + mCoalescedCount
+                + ", average hop latency: " + getAverageHopLatency() + " us, max: " + getMaxHopLatency() + " us");
+    }
+
+    /**
+     * Passes a sample on to the sink.  Must only be called from the reader thread.  When the
+     * ring is full the reader waits for the consumer rather than dropping the sample, so
+     * touch down and up events are never lost.  Interrupting the reader doesn't drop it
+     * either, the wait finishes and the interrupt is restored for the caller to handle.
+     *
+     * @param timeNs - System.nanoTime() the sample's frame arrived at
+     */
+    public void post(int opcode, int x, int y, int z, long timeNs) {
+        boolean move = mTouching && opcode == FrameDecoder.OP_DOWN;
+        mTouching = (opcode == FrameDecoder.OP_DOWN);
+
+        if (mPolicy == POLICY_INLINE) {
+            mSink.processInput(opcode, x, y, z, timeNs);
+            mEventCount++;
+            return;
+        }
+
+        synchronized (mLock) {
+            // Latest wins.  The consumer takes slots under this lock, so a slot between
+            // mHead and mTail has not been read yet and can be rewritten.
+            if (move && mTail != mHead && mMoves[(int) (mTail - 1) & mMask]) {
+                int slot = (int) (mTail - 1) & mMask;
+                mXs[slot] = x;
+                mYs[slot] = y;
+                mZs[slot] = z;
+                mArrivals[slot] = timeNs;
+                mCoalescedCount++;
+                return;
+            }
+
+            boolean interrupted = false;
+            while (mTail - mHead > mMask && mRunning) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (!mRunning) {
+                return;
+            }
+
+            int slot = (int) mTail & mMask;
+            mOpcodes[slot] = opcode;
+            mXs[slot] = x;
+            mYs[slot] = y;
+            mZs[slot] = z;
+            mArrivals[slot] = timeNs;
+            mTimestamps[slot] = System.nanoTime();
+            mMoves[slot] = move;
+
+            // only wake the consumer if it may be waiting for an empty ring
+            if (mTail++ == mHead) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called by the reader thread when a read timed out without data.  Inline, the sink is
+     * flushed right away; with a consumer thread the consumer flushes it when the ring stays
+     * empty, so this does nothing.
+     */
+    public void onReaderIdle() {
+        if (mPolicy == POLICY_INLINE && mRunning) {
+            mSink.flushPending();
+        }
+    }
+
+    private void consume() {
+        int[] batch = new int[MAX_BATCH * NativeInput.EVENT_SIZE];
+        long[] times = new long[MAX_BATCH];
+        long[] timestamps = new long[MAX_BATCH];
+        int count;
+
+        // false while the sink may hold something undelivered since it was last flushed
+        boolean flushed = true;
+
+        while (true) {
+            synchronized (mLock) {
+                while (mHead == mTail) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    try {
+                        mLock.wait(flushed ? 0 : IDLE_FLUSH_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!flushed && mHead == mTail) {
+                        break;
+                    }
+                }
+
+                // take every sample waiting, up to a batch, so they cross to the sink together
+                boolean full = mTail - mHead > mMask;
+                count = 0;
+                while (mHead != mTail && count < MAX_BATCH) {
+                    int slot = (int) mHead++ & mMask;
+                    int event = count * NativeInput.EVENT_SIZE;
+                    batch[event + NativeInput.EVENT_OPCODE] = mOpcodes[slot];
+                    batch[event + NativeInput.EVENT_X] = mXs[slot];
+                    batch[event + NativeInput.EVENT_Y] = mYs[slot];
+                    batch[event + NativeInput.EVENT_Z] = mZs[slot];
+                    times[count] = mArrivals[slot];
+                    timestamps[count++] = mTimestamps[slot];
+                }
+
+                // wake the reader if it is waiting for a full ring
+                if (full) {
+                    mLock.notifyAll();
+                }
+            }
+
+            if (count == 0) {
+                // nothing arrived for a while, retry what the sink couldn't deliver
+                flushed = mSink.flushPending();
+                continue;
+            }
+            flushed = false;
+
+            long now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                recordHopLatency(now - timestamps[i]);
+            }
+
+            if (count == 1) {
+                mSink.processInput(batch[NativeInput.EVENT_OPCODE], batch[NativeInput.EVENT_X],
+                        batch[NativeInput.EVENT_Y], batch[NativeInput.EVENT_Z], times[0]);
+            } else {
+                mSink.processInputs(batch, times, count);
+            }
+        }
+    }
+
+    private void recordHopLatency(long latency) {
+        mEventCount++;
+        mTotalHopLatency += latency;
+        if (latency > mMaxHopLatency) {
+            mMaxHopLatency = latency;
+        }
+    }
+
+    /**
+     * @return number of samples passed to the sink
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return number of moves dropped because a newer position replaced them in the ring
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return average time in microseconds a sample waited in the ring, 0 when injecting inline
+     */
+    public long getAverageHopLatency() {
+        long count = mEventCount;
+        return (count == 0 || mPolicy == POLICY_INLINE) ? 0 : mTotalHopLatency / count / 1000;
+    }
+
+    /**
+     * @return longest time in microseconds a sample waited in the ring
+     */
+    public long getMaxHopLatency() {
+        return mMaxHopLatency / 1000;
+    }
+}
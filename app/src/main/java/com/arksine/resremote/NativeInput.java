@@ -1,10 +1,10 @@
 package com.arksine.resremote;
 
 import android.util.Log;
-import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import eu.chainfire.libsuperuser.Shell;
@@ -16,7 +16,7 @@ import eu.chainfire.libsuperuser.Shell;
  * This class receives touch events from the ArduinoCom class.  It takes the data
  *
  */
-public class NativeInput {
+public class NativeInput implements InputPipeline.InputSink {
 
     private static String TAG = "NativeInput";
 
@@ -24,18 +24,76 @@ public class NativeInput {
     int xMax;
     int yMax;
 
-    private boolean uinputOpen = false;
-
-    private native boolean openUinput(int screenSizeX, int screenSizeY);
-    private native void processEvent(String command, int x, int y, int z);
-    private native void closeUinput();
+    // Jitter filtering and scale of the position axes, applied by the kernel.  fuzz and flat
+    // are in pixels, resolution in pixels per mm (0 if unknown).
+    private final int fuzz;
+    private final int flat;
+    private final int resolutionX;
+    private final int resolutionY;
+
+    // Handle of the native driver's state for this device (see restouchdrv.cpp), passed to
+    // every native method.  0 while the virtual device isn't open.
+    private long nativeContext = 0;
+    private boolean readerRunning = false;
+
+    // Shared with the native driver when events are injected through a buffer, see
+    // useEventChannel()
+    private EventChannel eventChannel = null;
+
+    // Indices of the native reader statistics, see nativereader.h
+    public static final int STAT_RUNNING = 0;
+    public static final int STAT_BYTES = 1;
+    public static final int STAT_FRAMES = 2;
+    public static final int STAT_POINTS = 3;
+    public static final int STAT_INVALID = 4;
+    public static final int STAT_LOST = 5;
+    public static final int STAT_TRUNCATED = 6;
+    public static final int STAT_OVERSIZED = 7;
+    public static final int STAT_UNPARSABLE = 8;
+    public static final int STAT_READ_ERRORS = 9;
+    public static final int STAT_COUNT = 10;
+
+    // Indices of the uinput writer statistics, see uinputdevice.h
+    public static final int UINPUT_STAT_WRITES = 0;
+    public static final int UINPUT_STAT_EVENTS = 1;
+    public static final int UINPUT_STAT_FAILED_WRITES = 2;
+    public static final int UINPUT_STAT_RETRIED = 3;
+    public static final int UINPUT_STAT_DROPPED = 4;
+    public static final int UINPUT_STAT_COUNT = 5;
+
+    // Layout of an event packed into an int[] for processInputs(), see restouchdrv.cpp
+    public static final int EVENT_OPCODE = 0;
+    public static final int EVENT_X = 1;
+    public static final int EVENT_Y = 2;
+    public static final int EVENT_Z = 3;
+    public static final int EVENT_SIZE = 4;
+
+    private native long openUinput(int screenSizeX, int screenSizeY, int fuzz, int flat,
+                                   int resolutionX, int resolutionY);
+    private native void injectEvent(long context, int opcode, int x, int y, int z, long timeNs);
+    private native void injectEvents(long context, int[] events, long[] times, int count);
+    private native boolean attachEventChannel(long context, ByteBuffer buffer, int capacity);
+    private native int flushEventChannel(long context);
+    private native boolean flushUinput(long context);
+    private native void closeUinput(long context);
+    private native void setTransform(long context, int rotation, int xMax, int yMax);
+    private native boolean startNativeReader(long context, int fd, int endpoint, int packetSize,
+                                             boolean ftdiStatus);
+    private native void stopNativeReader(long context);
+    private native boolean getNativeReaderStats(long context, long[] stats);
+    private native boolean getNativeUinputStats(long context, long[] stats);
 
     static {
         System.loadLibrary("restouchdrv");
     }
 
-    NativeInput(int screenSizeX, int screenSizeY, int rotation) {
+    NativeInput(int screenSizeX, int screenSizeY, int rotation, int fuzz, int flat,
+                int resolutionX, int resolutionY) {
 
+        this.fuzz = fuzz;
+        this.flat = flat;
+        this.resolutionX = resolutionX;
+        this.resolutionY = resolutionY;
 
         setupVirtualDevice(screenSizeX, screenSizeY, rotation);
 
@@ -50,12 +108,13 @@ public class NativeInput {
         yMax = screenSizeY - 1;
 
         // Open uinput if it is not already open
-        if (!uinputOpen) {
+        if (nativeContext == 0) {
 
             File uinputFile = new File("/dev/uinput");
             if (uinputFile.exists()) {
                 if (uinputFile.canRead()) {
-                    uinputOpen = openUinput(screenSizeX, screenSizeY);
+                    nativeContext = openUinput(screenSizeX, screenSizeY, fuzz, flat,
+                            resolutionX, resolutionY);
                 } else {
                     Log.e(TAG, "Unable to read /dev/uinput, are permissions set correctly?");
                 }
@@ -63,68 +122,179 @@ public class NativeInput {
                 Log.e(TAG, "/dev/input does not exist on your device");
             }
         }
+
+        // the native reader translates points itself
+        if (nativeContext != 0) {
+            setTransform(nativeContext, rotation, xMax, yMax);
+        }
     }
 
-    public void processInput(String command, TouchPoint screenCoord) {
+    /**
+     * Translates a point received from the arduino to device coordinates and sends it
+     * to the uinput driver.
+     *
+     * @param opcode - FrameDecoder opcode of the received command
+     * @param x - x coordinate received from the resistive touch screen
+     * @param y - y coordinate received from the resistive touch screen
+     * @param z - pressure received from the resistive touch screen
+     * @param timeNs - System.nanoTime() the point arrived at, reported to the input system
+     *                 as the time of the touch
+     */
+    @Override
+    public void processInput(int opcode, int x, int y, int z, long timeNs) {
+
+        // Only touch events are handled by the driver
+        if (nativeContext == 0
+                || (opcode != FrameDecoder.OP_DOWN && opcode != FrameDecoder.OP_UP)) {
+            return;
+        }
 
-        TouchPoint deviceCoord = getDeviceCoord(screenCoord);
-        processEvent(command, deviceCoord.getX(), deviceCoord.getY(), deviceCoord.getZ());
+        // Translate coordinates based on device rotation
+        int deviceX = TouchTransform.toDeviceX(rotation, xMax, yMax, x, y);
+        int deviceY = TouchTransform.toDeviceY(rotation, xMax, yMax, x, y);
 
+        //Log.d(TAG, "Translated coord: x:" + deviceX + " y:" + deviceY);
+        // A single event is passed as call arguments even when the event channel is attached,
+        // putting it in the ring would only add a write before the same native call
+        injectEvent(nativeContext, opcode, deviceX, deviceY, z, timeNs);
     }
 
     /**
-     * Calculates translates coordinates based on device rotation
+     * Translates a batch of packed points to device coordinates, in place, and sends them
+     * to the uinput driver with a single native call.
      *
-     * @param screenCoord - coordinate received from the resistive touch screen
-     * @return deviceCoord - converted device coordinate
+     * @param events - points laid out by the EVENT_ constants, EVENT_SIZE ints each
+     * @param times - System.nanoTime() each point arrived at
+     * @param count - number of points in events
      */
-    private TouchPoint getDeviceCoord(TouchPoint screenCoord) {
-        TouchPoint deviceCoord;
+    @Override
+    public void processInputs(int[] events, long[] times, int count) {
 
-        int x;
-        int y;
-        int z;
+        if (nativeContext == 0) {
+            return;
+        }
 
+        // the channel only saves work when one signal carries several events
+        EventChannel channel = (count > 1) ? eventChannel : null;
+
+        for (int i = 0; i < count * EVENT_SIZE; i += EVENT_SIZE) {
+            int x = events[i + EVENT_X];
+            int y = events[i + EVENT_Y];
+            events[i + EVENT_X] = TouchTransform.toDeviceX(rotation, xMax, yMax, x, y);
+            events[i + EVENT_Y] = TouchTransform.toDeviceY(rotation, xMax, yMax, x, y);
+
+            if (channel != null) {
+                // signal early only if the batch is larger than the ring
+                long time = times[i / EVENT_SIZE];
+                if (!channel.put(events[i + EVENT_OPCODE], events[i + EVENT_X],
+                        events[i + EVENT_Y], events[i + EVENT_Z], time)) {
+                    flushEventChannel(nativeContext);
+                    channel.put(events[i + EVENT_OPCODE], events[i + EVENT_X],
+                            events[i + EVENT_Y], events[i + EVENT_Z], time);
+                }
+            }
+        }
 
-        if (rotation == Surface.ROTATION_0) {  // Portrait default
-            x = screenCoord.getX();
-            y = screenCoord.getY();
+        // the driver skips anything that isn't a touch event
+        if (channel != null) {
+            flushEventChannel(nativeContext);
+        } else {
+            injectEvents(nativeContext, events, times, count);
         }
-        else if(rotation == Surface.ROTATION_180){  // portrait flipped (x and y are inverted)
-            x = xMax - screenCoord.getX();
-            y = yMax - screenCoord.getY();
+    }
+
+    /**
+     * Sends a release uinput refused earlier, which the driver otherwise only retries before
+     * the next event.  Must be called on the thread that injects.
+     *
+     * @return true if nothing is left pending
+     */
+    @Override
+    public boolean flushPending() {
+        return nativeContext == 0 || flushUinput(nativeContext);
+    }
+
+    /**
+     * Injects batches of events through a ring in a direct ByteBuffer shared with the driver
+     * instead of passing them as call arguments.  The driver reads the ring in place when
+     * signalled, once per batch; single events are still passed as arguments.  Off unless
+     * the user enables it, until a benchmark on a device shows it pays off.  Must be called
+     * before input starts, after the virtual device is open.
+     *
+     * @param capacity - minimum number of events the ring holds
+     * @return false if the driver could not attach to the buffer
+     */
+    public boolean useEventChannel(int capacity) {
+        if (nativeContext == 0) {
+            return false;
         }
-        else if (rotation == Surface.ROTATION_90){ // landscape normal
-            y = screenCoord.getX();
-            x = xMax - screenCoord.getY();
 
+        EventChannel channel = new EventChannel(capacity);
+        if (!attachEventChannel(nativeContext, channel.getBuffer(), channel.getCapacity())) {
+            Log.e(TAG, "Unable to attach event channel, injecting with calls");
+            return false;
         }
-        else if (rotation == Surface.ROTATION_270) { // landscape inverted
-            y = yMax - screenCoord.getX();
-            x = screenCoord.getY();
+        eventChannel = channel;
+        return true;
+    }
+
+    /**
+     * Starts reading a usb device in native code.  Frames are decoded, translated and injected
+     * on a native thread without calling back into Java.
+     *
+     * @param fd - file descriptor of the opened UsbDeviceConnection
+     * @param endpoint - address of the device's bulk IN endpoint
+     * @param packetSize - max packet size of the endpoint
+     * @param ftdiStatus - true if the device is an FTDI chip
+     * @return true if the reader was started
+     */
+    public boolean startReader(int fd, int endpoint, int packetSize, boolean ftdiStatus) {
+        if (nativeContext == 0 || readerRunning) {
+            return false;
         }
-        else {
-            // invalid rotation
-            x = screenCoord.getX();
-            y = screenCoord.getY();
+        readerRunning = startNativeReader(nativeContext, fd, endpoint, packetSize, ftdiStatus);
+        return readerRunning;
+    }
+
+    public void stopReader() {
+        if (readerRunning) {
+            stopNativeReader(nativeContext);
+            readerRunning = false;
         }
+    }
 
-        z = screenCoord.getZ();
+    /**
+     * Copies the native reader's statistics, indexed by the STAT_ constants
+     *
+     * @return false if the reader isn't running
+     */
+    public boolean getReaderStats(long[] stats) {
+        return readerRunning && getNativeReaderStats(nativeContext, stats);
+    }
 
-        //Log.d(TAG, "Translated coord: x:" + x + " y:" + y);
-        deviceCoord = new TouchPoint(x, y, z);
-        return deviceCoord;
+    /**
+     * Copies the uinput writer's statistics, indexed by the UINPUT_STAT_ constants.  Retried
+     * reports waited for a busy device, dropped reports never fully reached it.
+     *
+     * @return false if the virtual device isn't open
+     */
+    public boolean getUinputStats(long[] stats) {
+        return nativeContext != 0 && getNativeUinputStats(nativeContext, stats);
     }
 
     public void closeVirtualDevice() {
 
-        closeUinput();
-        uinputOpen = false;
+        stopReader();
+        if (nativeContext != 0) {
+            closeUinput(nativeContext);     // also detaches the event channel
+            nativeContext = 0;
+        }
+        eventChannel = null;
         revokeUinputPrivs();
     }
 
     public boolean isVirtualDeviceOpen() {
-        return uinputOpen;
+        return nativeContext != 0;
     }
 
     // The functions below use Root (su) to grant privileges to use uinput
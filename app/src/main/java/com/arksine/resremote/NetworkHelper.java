@@ -0,0 +1,454 @@
+package com.arksine.resremote;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class NetworkHelper - Talks to Wi-Fi controllers (ESP8266/ESP32) that speak the same frame
+ * protocol as the arduino over the network.
+ *
+ * Devices are identified by a url, "udp://host:port" or "tcp://host:port".  In UDP mode every
+ * datagram from the controller starts with a 16 bit big endian sequence number followed by one
+ * or more frames.  Datagrams that arrive out of order or twice are dropped, since a stale
+ * position is worse than a missing one.  TCP mode is a plain byte stream with Nagle's algorithm
+ * disabled.
+ *
+ * Controllers are discovered by broadcasting "<DISCOVER>" to DEFAULT_PORT, they answer with
+ * "<HELLO:name>" from the port they listen on.
+ */
+public class NetworkHelper implements SerialHelper {
+
+    private static final String TAG = "NetworkHelper";
+
+    public static final String SCHEME_UDP = "udp://";
+    public static final String SCHEME_TCP = "tcp://";
+    public static final int DEFAULT_PORT = 4210;
+
+    private static final byte[] DISCOVER_COMMAND = "<DISCOVER>".getBytes();
+    private static final String HELLO_PREFIX = "<HELLO:";
+    private static final int DISCOVERY_TIMEOUT = 500;   // ms to collect replies
+    private static final int CONNECT_TIMEOUT = 5000;    // ms for a TCP connection
+
+    private static final int SEQUENCE_LENGTH = 2;
+
+    // A datagram further behind than this, or arriving after this much silence, means the
+    // controller restarted its sequence (ie. after a watchdog reset) rather than a late copy
+    private static final int RESYNC_WINDOW = 64;
+    private static final long RESYNC_SILENCE_NS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int MAX_DATAGRAM = 512;
+
+    private Context mContext;
+
+    private volatile boolean mUdp;
+    private volatile DatagramSocket mDatagramSocket = null;
+    private volatile Socket mSocket = null;
+    private InputStream mSocketIn;
+    private OutputStream mSocketOut;
+    private volatile boolean mConnected = false;
+
+    // Datagram being handed out by read(), reused for every receive
+    private final byte[] mDatagram = new byte[MAX_DATAGRAM];
+    private final DatagramPacket mPacket = new DatagramPacket(mDatagram, MAX_DATAGRAM);
+    private int mDatagramPosition = 0;
+    private int mDatagramLength = 0;
+    private int mLastSequence = -1;
+    private long mLastDatagramTime = 0;
+    private int mSoTimeout = -1;
+
+    // Used by readByte() so it doesn't allocate
+    private final byte[] mSingleByte = new byte[1];
+
+    private volatile long mStaleDatagrams = 0;
+    private volatile long mSequenceResets = 0;
+
+    public NetworkHelper(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Broadcasts a discovery request on every network interface and lists the controllers
+     * that answer.  Each controller is listed once for UDP and once for TCP.  Discovery runs
+     * on its own thread since Android doesn't allow networking on the main thread.
+     */
+    public ArrayList<String> enumerateDevices() {
+
+        final ArrayList<String> deviceList = new ArrayList<>(5);
+
+        Thread discovery = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                discover(deviceList);
+            }
+        }, "NetworkDiscovery");
+        discovery.start();
+
+        try {
+            discovery.join(DISCOVERY_TIMEOUT * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (deviceList) {
+            return new ArrayList<>(deviceList);
+        }
+    }
+
+    private void discover(ArrayList<String> deviceList) {
+        DatagramSocket socket = null;
+        try {
+            socket = new DatagramSocket();
+            socket.setBroadcast(true);
+            socket.setSoTimeout(DISCOVERY_TIMEOUT);
+
+            for (InetAddress broadcast : getBroadcastAddresses()) {
+                socket.send(new DatagramPacket(DISCOVER_COMMAND, DISCOVER_COMMAND.length,
+                        broadcast, DEFAULT_PORT));
+            }
+
+            byte[] reply = new byte[MAX_DATAGRAM];
+            long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT;
+            while (System.currentTimeMillis() < deadline) {
+                DatagramPacket packet = new DatagramPacket(reply, reply.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+
+                String text = new String(packet.getData(), 0, packet.getLength());
+                if (!text.startsWith(HELLO_PREFIX) || !text.endsWith(">")) {
+                    continue;
+                }
+
+                String name = text.substring(HELLO_PREFIX.length(), text.length() - 1);
+                String address = packet.getAddress().getHostAddress() + ":" + packet.getPort();
+                Log.i(TAG, "Network device found: " + name + " at " + address);
+
+                synchronized (deviceList) {
+                    String udpEntry = name + " (UDP)\n" + SCHEME_UDP + address;
+                    if (!deviceList.contains(udpEntry)) {
+                        deviceList.add(udpEntry);
+                        deviceList.add(name + " (TCP)\n" + SCHEME_TCP + address);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error discovering network devices", e);
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private static ArrayList<InetAddress> getBroadcastAddresses() throws SocketException {
+        ArrayList<InetAddress> addresses = new ArrayList<>();
+
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+            for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                if (interfaceAddress.getBroadcast() != null) {
+                    addresses.add(interfaceAddress.getBroadcast());
+                }
+            }
+        }
+
+        if (addresses.isEmpty()) {
+            try {
+                addresses.add(InetAddress.getByName("255.255.255.255"));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to resolve broadcast address", e);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Opens a socket to the device on its own thread.
+     * @param url - "udp://host:port" or "tcp://host:port"
+     */
+    public ConnectionFuture connectDevice(String url, SerialHelper.DeviceReadyListener readyListener) {
+
+        ConnectionFuture connection = new ConnectionFuture(new ConnectionTask(url), readyListener) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    // socket connects can't be interrupted, closing the socket aborts them
+                    closeSockets();
+                }
+                return cancelled;
+            }
+        };
+
+        return connection.start("NetworkConnect");
+    }
+
+    public void disconnect() {
+        closeSockets();
+
+        if (mStaleDatagrams > 0) {
+            Log.i(TAG, "Dropped " + mStaleDatagrams + " stale datagrams");
+        }
+    }
+
+    /**
+     * Closing the sockets is the only way to unblock a read in progress
+     */
+    public void interruptRead() {
+        closeSockets();
+    }
+
+    private void closeSockets() {
+        mConnected = false;
+
+        DatagramSocket datagramSocket = mDatagramSocket;
+        if (datagramSocket != null) {
+            datagramSocket.close();
+            mDatagramSocket = null;
+        }
+
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close socket", e);
+            }
+            mSocket = null;
+        }
+    }
+
+    public boolean isDeviceConnected() {
+        return mConnected;
+    }
+
+    public boolean writeString(String data) {
+        return writeBytes(data.getBytes());
+    }
+
+    public boolean writeBytes(byte[] data) {
+
+        try {
+            if (mUdp) {
+                DatagramSocket socket = mDatagramSocket;
+                if (socket == null) return false;
+                socket.send(new DatagramPacket(data, data.length));
+            } else {
+                if (mSocket == null) return false;
+                mSocketOut.write(data);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to device", e);
+            return false;
+        }
+        return true;
+    }
+
+    public byte readByte() {
+        int count;
+        do {
+            count = read(mSingleByte, 0, 1, 0);
+        } while (count == 0);
+
+        return (count > 0) ? mSingleByte[0] : 0;
+    }
+
+    /**
+     * Reads frame bytes from the device.  In UDP mode each call returns bytes from a single
+     * datagram, stale datagrams are skipped.
+     */
+    public int read(byte[] dst, int off, int len, long timeoutMs) {
+
+        try {
+            if (mUdp) {
+                return readDatagram(dst, off, len, timeoutMs);
+            }
+
+            Socket socket = mSocket;
+            if (socket == null) return -1;
+
+            // interruptRead() may clear mSocket at any time, only use the captured socket
+            if (setTimeout(timeoutMs)) {
+                socket.setSoTimeout(mSoTimeout);
+            }
+            int count = mSocketIn.read(dst, off, len);
+            return (count < 0) ? -1 : count;
+        } catch (SocketTimeoutException e) {
+            return 0;
+        } catch (IOException e) {
+            if (mConnected) {
+                Log.d(TAG, "Error reading from device", e);
+            }
+            return -1;
+        }
+    }
+
+    private int readDatagram(byte[] dst, int off, int len, long timeoutMs) throws IOException {
+        DatagramSocket socket = mDatagramSocket;
+        if (socket == null) return -1;
+
+        while (mDatagramPosition == mDatagramLength) {
+            if (setTimeout(timeoutMs)) {
+                socket.setSoTimeout(mSoTimeout);
+            }
+            mPacket.setLength(MAX_DATAGRAM);
+            socket.receive(mPacket);
+
+            int length = mPacket.getLength();
+            if (length <= SEQUENCE_LENGTH) {
+                continue;
+            }
+
+            int sequence = ((mDatagram[0] & 0xFF) << 8) | (mDatagram[1] & 0xFF);
+            long now = System.nanoTime();
+            if (mLastSequence >= 0) {
+                int distance = (short) (sequence - mLastSequence);
+                if (distance <= -RESYNC_WINDOW || now - mLastDatagramTime > RESYNC_SILENCE_NS) {
+                    if (distance <= 0) {
+                        // the controller started counting again, follow it
+                        mSequenceResets++;
+                        Log.i(TAG, "Controller sequence restarted at " + sequence);
+                    }
+                } else if (distance <= 0) {
+                    // duplicate or older than what has already been handed out
+                    mStaleDatagrams++;
+                    continue;
+                }
+            }
+            mLastSequence = sequence;
+            mLastDatagramTime = now;
+
+            mDatagramPosition = SEQUENCE_LENGTH;
+            mDatagramLength = length;
+        }
+
+        int count = Math.min(len, mDatagramLength - mDatagramPosition);
+        System.arraycopy(mDatagram, mDatagramPosition, dst, off, count);
+        mDatagramPosition += count;
+        return count;
+    }
+
+    /**
+     * Updates mSoTimeout for a read
+     *
+     * @return true if it changed and has to be applied to the socket
+     */
+    private boolean setTimeout(long timeoutMs) {
+        // 0 means block forever for sockets, as it does for read()
+        int timeout = (int) Math.max(0, Math.min(timeoutMs, Integer.MAX_VALUE));
+        if (timeout == mSoTimeout) {
+            return false;
+        }
+        mSoTimeout = timeout;
+        return true;
+    }
+
+    /**
+     * @return number of UDP datagrams dropped because they were duplicated or out of order
+     */
+    public long getStaleDatagrams() {
+        return mStaleDatagrams;
+    }
+
+    /**
+     * @return number of times the controller's sequence restarted and was followed
+     */
+    public long getSequenceResets() {
+        return mSequenceResets;
+    }
+
+    /**
+     * Task for opening a socket to the device.  Returns the connection status.
+     */
+    private class ConnectionTask implements Callable<Boolean> {
+
+        private String url;
+
+        public ConnectionTask(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public Boolean call() {
+
+            boolean udp;
+            String address;
+            if (url.startsWith(SCHEME_UDP)) {
+                udp = true;
+                address = url.substring(SCHEME_UDP.length());
+            } else if (url.startsWith(SCHEME_TCP)) {
+                udp = false;
+                address = url.substring(SCHEME_TCP.length());
+            } else {
+                Log.e(TAG, "Unsupported device url " + url);
+                return false;
+            }
+
+            String host = address;
+            int port = DEFAULT_PORT;
+            int separator = address.lastIndexOf(':');
+            if (separator > 0) {
+                host = address.substring(0, separator);
+                try {
+                    port = Integer.parseInt(address.substring(separator + 1));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid port in device url " + url);
+                    return false;
+                }
+            }
+
+            mUdp = udp;
+            mSoTimeout = -1;
+            mLastSequence = -1;
+            mLastDatagramTime = 0;
+            mDatagramPosition = 0;
+            mDatagramLength = 0;
+
+            try {
+                InetSocketAddress socketAddress = new InetSocketAddress(host, port);
+                if (udp) {
+                    DatagramSocket socket = new DatagramSocket();
+                    // only accept datagrams from the controller
+                    socket.connect(socketAddress);
+                    mDatagramSocket = socket;
+                } else {
+                    Socket socket = new Socket();
+                    mSocket = socket;
+                    socket.setTcpNoDelay(true);
+                    socket.connect(socketAddress, CONNECT_TIMEOUT);
+                    mSocketIn = socket.getInputStream();
+                    mSocketOut = socket.getOutputStream();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to connect to network device " + url, e);
+                closeSockets();
+                return false;
+            }
+
+            mConnected = true;
+            return true;
+        }
+    }
+}
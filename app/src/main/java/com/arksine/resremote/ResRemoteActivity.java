@@ -61,6 +61,7 @@ public class ResRemoteActivity extends Activity {
             PreferenceScreen calibrate = (PreferenceScreen) root.findPreference("pref_key_calibrate") ;
             PreferenceScreen startService = (PreferenceScreen) root.findPreference("pref_key_start_service");
             PreferenceScreen stopService = (PreferenceScreen) root.findPreference("pref_key_stop_service");
+            PreferenceScreen resetBaudRates = (PreferenceScreen) root.findPreference("pref_key_reset_baud_rates");
             ListPreference selectDeviceType = (ListPreference) root.findPreference("pref_key_select_device_type");
             ListPreference selectDevice = (ListPreference) root.findPreference("pref_key_select_device");
             ListPreference selectOrientation = (ListPreference) root.findPreference("pref_key_select_orientation");
@@ -148,6 +149,15 @@ public class ResRemoteActivity extends Activity {
                 }
             });
 
+            resetBaudRates.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    UsbHelper.clearStoredBaudRates(getActivity());
+                    Toast.makeText(getActivity(), "Baud rates reset", Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+            });
+
             IntentFilter filter = new IntentFilter(ACTION_DEVICE_CHANGED);
             LocalBroadcastManager.getInstance(getActivity()).registerReceiver(deviceListReciever, filter);
         }
@@ -169,6 +179,10 @@ public class ResRemoteActivity extends Activity {
                 // user selected bluetooth device
                 mSerialHelper = new BluetoothHelper(getActivity());
             }
+            else if (mDeviceType.equals("NETWORK")) {
+                // user selected a wi-fi controller
+                mSerialHelper = new NetworkHelper(getActivity());
+            }
             else {
                 // user selected usb device
                 mSerialHelper = new UsbHelper(getActivity());
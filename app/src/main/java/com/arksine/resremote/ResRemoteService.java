@@ -10,6 +10,7 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.res.AssetManager;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -19,6 +20,7 @@ import android.os.Message;
 import android.os.Process;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.widget.Toast;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -38,7 +40,9 @@ public class ResRemoteService extends Service {
 
     private static String TAG = "ResRemoteService";
 
-    private ArduinoCom arduino = null;
+    private volatile ArduinoCom arduino = null;
+    private final ControllerStatus mControllerStatus = new ControllerStatus();
+    private Handler mMainHandler;
     private ScreenOrientationEnforcer landscapeEnforcer = null;
     private static volatile boolean policiesRelaxed = false;
 
@@ -115,12 +119,14 @@ public class ResRemoteService extends Service {
 
             }
 
-            arduino = new ArduinoCom((Context)msg.obj);
-            if (arduino.isConnected()) {
-                arduino.run();
+            // published before connecting, so a stop can interrupt the connection attempt
+            ArduinoCom current = new ArduinoCom((Context)msg.obj, mControllerStatus);
+            arduino = current;
+            if (current.open()) {
+                current.run();
             }
 
-            arduino.disconnect();
+            current.disconnect();
             arduino = null;
 
             // Stop the service using the startId, so that we don't stop
@@ -159,6 +165,23 @@ public class ResRemoteService extends Service {
 
         landscapeEnforcer = new ScreenOrientationEnforcer(this);
 
+        // Status events arrive on a background thread, toasts have to be shown from the main one
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mControllerStatus.addListener(new ControllerStatus.StatusListener() {
+            @Override
+            public void onStatus(int status, String message) {
+                if (status == ControllerStatus.STATUS_NOT_CALIBRATED) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(ResRemoteService.this, "Touchscreen is not calibrated",
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        });
+
         // The code below registers a receiver that allows us
         // to stop the service through an action shown on the notification.
         IntentFilter filter = new IntentFilter(getString(R.string.ACTION_STOP_SERVICE));
@@ -226,10 +249,42 @@ public class ResRemoteService extends Service {
 
 
 
+    /**
+     * Lets components in this process talk to the controller without a broadcast
+     */
+    public class LocalBinder extends Binder {
+        public ResRemoteService getService() {
+            return ResRemoteService.this;
+        }
+    }
+    private final IBinder mBinder = new LocalBinder();
+
     @Override
     public IBinder onBind(Intent intent) {
-        // This service doesn't support binding
-        return null;
+        return mBinder;
+    }
+
+    /**
+     * Controller log messages and status events, add a StatusListener to observe them
+     */
+    public ControllerStatus getControllerStatus() {
+        return mControllerStatus;
+    }
+
+    /**
+     * Queues a command for the arduino, see CommandWriter.submit.  Commands should be encoded
+     * once with CommandWriter.encode and reused.
+     *
+     * @return the request id, or CommandWriter.NO_REQUEST if no controller is connected or
+     *         the command queue is full
+     */
+    public int sendCommand(byte[] command, int expectedOpcode, String expectedDesc,
+                           CommandWriter.ResponseListener listener) {
+        ArduinoCom current = arduino;
+        if (current == null) {
+            return CommandWriter.NO_REQUEST;
+        }
+        return current.sendCommand(command, expectedOpcode, expectedDesc, listener);
     }
 
     @Override
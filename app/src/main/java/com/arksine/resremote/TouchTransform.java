@@ -0,0 +1,49 @@
+package com.arksine.resremote;
+
+/**
+ * Class TouchTransform
+ *
+ * Translates points reported by the touch screen controller into device coordinates for the
+ * current display rotation.  Plain Java so the linux daemon can share it; the rotation values
+ * match android.view.Surface.ROTATION_* and transform_point() in uinputdevice.h.
+ */
+public final class TouchTransform {
+
+    public static final int ROTATION_0 = 0;
+    public static final int ROTATION_90 = 1;
+    public static final int ROTATION_180 = 2;
+    public static final int ROTATION_270 = 3;
+
+    private TouchTransform() {}
+
+    /**
+     * @param rotation - display rotation, one of the ROTATION_ constants
+     * @param xMax - largest x coordinate of the device in its natural orientation
+     * @param yMax - largest y coordinate of the device in its natural orientation
+     */
+    public static int toDeviceX(int rotation, int xMax, int yMax, int x, int y) {
+        switch (rotation) {
+            case ROTATION_180:  // portrait flipped (x and y are inverted)
+                return xMax - x;
+            case ROTATION_90:   // landscape normal
+                return xMax - y;
+            case ROTATION_270:  // landscape inverted
+                return y;
+            default:            // portrait default, or an invalid rotation
+                return x;
+        }
+    }
+
+    public static int toDeviceY(int rotation, int xMax, int yMax, int x, int y) {
+        switch (rotation) {
+            case ROTATION_180:
+                return yMax - y;
+            case ROTATION_90:
+                return x;
+            case ROTATION_270:
+                return yMax - x;
+            default:
+                return y;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.arksine.resremote;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class UsbBulkReader
+ *
+ * Reads a usb serial device by keeping several UsbRequests queued on its bulk IN endpoint, so
+ * the adapter always has a transfer to complete while the previous one is being handled.
+ * Completed transfers are copied into a ByteRingBuffer and immediately queued again.  This
+ * replaces UsbSerial's read callback, which only queues the next request after the previous
+ * one has been delivered.
+ *
+ * requestWait() returns whichever request on the connection completes first, so nothing else
+ * may wait for requests on it.  UsbHelper opens the port with UsbSerial's syncOpen() for this.
+ */
+public class UsbBulkReader {
+
+    private static final String TAG = "UsbBulkReader";
+
+    // FTDI chips start every packet with two modem status bytes
+    private static final int FTDI_STATUS_LENGTH = 2;
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbEndpoint mEndpoint;
+    private final ByteRingBuffer mBuffer;
+    private final boolean mStripFtdiStatus;
+
+    private final UsbRequest[] mRequests;
+    private final ByteBuffer[] mRequestBuffers;
+    private final long[] mQueueTimes;
+    private final byte[] mChunk;
+
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+
+    // Time from queueing a request to it being returned by requestWait
+    private volatile long mCompletedCount = 0;
+    private volatile long mTotalTurnaround = 0;
+    private volatile long mMaxTurnaround = 0;
+
+    // Completed requests that belonged to someone else waiting on the connection
+    private volatile long mForeignCount = 0;
+
+    /**
+     * @param requestCount - number of transfers kept in flight
+     * @param stripFtdiStatus - true if the device is an FTDI chip
+     */
+    public UsbBulkReader(UsbDeviceConnection connection, UsbEndpoint endpoint,
+                         ByteRingBuffer buffer, int requestCount, boolean stripFtdiStatus) {
+        mConnection = connection;
+        mEndpoint = endpoint;
+        mBuffer = buffer;
+        mStripFtdiStatus = stripFtdiStatus;
+
+        int length = endpoint.getMaxPacketSize();
+        mRequests = new UsbRequest[requestCount];
+        mRequestBuffers = new ByteBuffer[requestCount];
+        mQueueTimes = new long[requestCount];
+        mChunk = new byte[length];
+
+        for (int i = 0; i < requestCount; i++) {
+            mRequestBuffers[i] = ByteBuffer.allocate(length);
+        }
+    }
+
+    /**
+     * Queues all requests and starts the thread that waits for them
+     *
+     * @return false if the requests could not be queued
+     */
+    public boolean start() {
+        for (int i = 0; i < mRequests.length; i++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(mConnection, mEndpoint)) {
+                Log.e(TAG, "Unable to initialize usb request");
+                closeRequests();
+                return false;
+            }
+            // the index lets the completed request find its buffer and queue time
+            request.setClientData(i);
+            mRequests[i] = request;
+        }
+
+        for (int i = 0; i < mRequests.length; i++) {
+            if (!queue(i)) {
+                Log.e(TAG, "Unable to queue usb request");
+                closeRequests();
+                return false;
+            }
+        }
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                readLoop();
+            }
+        }, "UsbBulkReader");
+        mThread.start();
+        return true;
+    }
+
+    /**
+     * Cancels the outstanding requests and waits for the reading thread to exit
+     */
+    public void stop() {
+        mRunning = false;
+
+        // cancelled requests are returned by requestWait, which lets the thread exit
+        for (UsbRequest request : mRequests) {
+            if (request != null) {
+                request.cancel();
+            }
+        }
+
+        if (mThread != null) {
+            try {
+                mThread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+
+        closeRequests();
+
+        Log.i(TAG, "Transfers: " + mCompletedCount + ", average turnaround: "
+                + getAverageTurnaround() + " us, max: " + getMaxTurnaround() + " us");
+        if (mForeignCount > 0) {
+            Log.w(TAG, "Requests taken from another reader: " + mForeignCount);
+        }
+    }
+
+    private boolean queue(int index) {
+        ByteBuffer requestBuffer = mRequestBuffers[index];
+        requestBuffer.clear();
+        mQueueTimes[index] = SystemClock.elapsedRealtimeNanos();
+        return mRequests[index].queue(requestBuffer, requestBuffer.capacity());
+    }
+
+    private void readLoop() {
+        while (mRunning) {
+            UsbRequest request = mConnection.requestWait();
+            if (request == null) {
+                if (mRunning) {
+                    Log.e(TAG, "Error waiting for usb request, stopping reader");
+                    mRunning = false;
+                }
+                break;
+            }
+
+            if (!mRunning) {
+                break;
+            }
+
+            Object clientData = request.getClientData();
+            if (!(clientData instanceof Integer)) {
+                // Another user of the connection queued it, and its owner will never see it.
+                // Its data can't be interpreted here, but the loss is reported.
+                if (mForeignCount++ == 0) {
+                    Log.e(TAG, "Took a usb request queued by another reader, its data is lost");
+                }
+                continue;
+            }
+            int index = (Integer) clientData;
+
+            recordTurnaround(SystemClock.elapsedRealtimeNanos() - mQueueTimes[index]);
+
+            ByteBuffer requestBuffer = mRequestBuffers[index];
+            int length = requestBuffer.position();
+            requestBuffer.rewind();
+            requestBuffer.get(mChunk, 0, length);
+
+            // requeue before handing the data on so the adapter is never without a transfer
+            if (!queue(index)) {
+                Log.e(TAG, "Unable to requeue usb request");
+            }
+
+            deliver(length);
+        }
+    }
+
+    private void deliver(int length) {
+        if (!mStripFtdiStatus) {
+            mBuffer.write(mChunk, 0, length);
+            return;
+        }
+
+        int packetSize = mEndpoint.getMaxPacketSize();
+        for (int start = 0; start < length; start += packetSize) {
+            int packetLength = Math.min(packetSize, length - start);
+            if (packetLength > FTDI_STATUS_LENGTH) {
+                mBuffer.write(mChunk, start + FTDI_STATUS_LENGTH,
+                        packetLength - FTDI_STATUS_LENGTH);
+            }
+        }
+    }
+
+    private void recordTurnaround(long turnaround) {
+        mCompletedCount++;
+        mTotalTurnaround += turnaround;
+        if (turnaround > mMaxTurnaround) {
+            mMaxTurnaround = turnaround;
+        }
+    }
+
+    private void closeRequests() {
+        for (int i = 0; i < mRequests.length; i++) {
+            if (mRequests[i] != null) {
+                mRequests[i].close();
+                mRequests[i] = null;
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return number of transfers completed
+     */
+    public long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * @return number of completed requests that were queued by another user of the connection
+     */
+    public long getForeignCount() {
+        return mForeignCount;
+    }
+
+    /**
+     * @return average time in microseconds between queueing a transfer and its completion
+     */
+    public long getAverageTurnaround() {
+        long count = mCompletedCount;
+        return (count == 0) ? 0 : mTotalTurnaround / count / 1000;
+    }
+
+    /**
+     * @return longest time in microseconds between queueing a transfer and its completion
+     */
+    public long getMaxTurnaround() {
+        return mMaxTurnaround / 1000;
+    }
+}
@@ -5,10 +5,16 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
@@ -23,8 +29,8 @@ import com.felhr.usbserial.UsbSerialInterface;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 
 
 /**
@@ -38,7 +44,32 @@ public class UsbHelper implements SerialHelper {
     public static final String ACTION_USB_ATTACHED = "android.hardware.usb.action.USB_DEVICE_ATTACHED";
     public static final String ACTION_USB_DETACHED = "android.hardware.usb.action.USB_DEVICE_DETACHED";
     public static final String ACTION_DEVICE_CHANGED = "com.arksine.resremote.ACTION_DEVICE_CHANGED";
-    private static final int BAUD_RATE = 9600; // BaudRate. Change this value if you need
+    private static final int BAUD_RATE = 9600; // Rate the port is opened with
+    private static final int FIRMWARE_BAUD_RATE = 115200;   // Rate the controller starts at
+
+    // Faster rates proposed to the controller after connecting, highest first.  All of them
+    // can be generated exactly (or within 2%) by a 16MHz AVR.
+    private static final int[] BAUD_CANDIDATES = {1000000, 500000, 250000, 115200};
+    private static final String BAUD_PREF_PREFIX = "pref_key_baud_rate_";
+    private static final String BAUD_PREF_TIME = "_time";
+    private static final long BAUD_REPLY_TIMEOUT = 250;  // ms to wait for BAUD_OK and PONG
+    private static final long BAUD_BOOT_TIMEOUT = 3000;  // ms a board reset by opening may take
+    private static final long BAUD_MEMORY_TIME = 7L * 24 * 60 * 60 * 1000;  // ms a rate is reused
+    private static final long BAUD_SETTLE_TIME = 20;     // ms for both sides to switch rates
+    private static final long BAUD_REVERT_TIME = 1100;   // ms the firmware waits for a ping
+    private static final long BAUD_ATTEMPT_TIME = (2 * BAUD_REPLY_TIMEOUT) + BAUD_SETTLE_TIME
+            + BAUD_REVERT_TIME;                          // ms a failed proposal can take
+    private static final long BAUD_NEGOTIATE_TIMEOUT = 6000; // ms, well inside connect timeouts
+    private static final int DEFAULT_BUFFER_CAPACITY = 4096;
+
+    // Read modes, selected with pref_key_usb_reader.  CALLBACK uses UsbSerial's read callback,
+    // BULK keeps several requests in flight with UsbBulkReader.  NATIVE reads with UsbBulkReader
+    // while connecting, then hands the device to the native reader in restouchdrv.
+    private static final String READER_CALLBACK = "CALLBACK";
+    private static final String READER_BULK = "BULK";
+    private static final String READER_NATIVE = "NATIVE";
+    private static final int DEFAULT_REQUEST_COUNT = 4;
+    private static final int SYNC_WRITE_TIMEOUT = 100;  // ms, writes when the port is opened sync
 
     private Context mContext;
     private UsbManager mUsbManager;
@@ -46,11 +77,49 @@ public class UsbHelper implements SerialHelper {
     private UsbDeviceConnection mUsbConnection;
     private UsbSerialDevice mSerialPort;
 
+    // Guards opening and closing the port, so a cancelled connection can't open it after
+    // disconnect() or cancel() closed it
+    private final Object mPortLock = new Object();
+    private volatile ConnectionFuture mConnectFuture = null;
+
+    // True when the port was opened with syncOpen(), which starts none of UsbSerial's threads.
+    // UsbBulkReader and the native reader require it: UsbSerial's read thread would wait for
+    // requests on the same connection and take their completions.
+    private boolean mSyncMode = false;
+
     private volatile boolean serialPortConnected = false;
-    private static SerialHelper.DeviceReadyListener mReadyListener;
 
+    // Receive latency applied by UsbLatencyTuner for the connected adapter
+    private volatile int mLatency = UsbLatencyTuner.LATENCY_UNKNOWN;
+
+    // Reads the device when the BULK reader is selected, null otherwise
+    private volatile UsbBulkReader mBulkReader = null;
+    private UsbEndpoint mBulkEndpoint = null;
+    private int mRequestCount = DEFAULT_REQUEST_COUNT;
+    private boolean mFtdiStatus = false;
+    private volatile boolean mNativeReaderRequested = false;
+
+    /**
+     * What the native reader needs to read the device, see NativeInput.startReader()
+     */
+    public static class NativeReaderConfig {
+        public final int fileDescriptor;
+        public final int endpointAddress;
+        public final int packetSize;
+        public final boolean ftdiStatus;
+
+        NativeReaderConfig(int fileDescriptor, int endpointAddress, int packetSize,
+                           boolean ftdiStatus) {
+            this.fileDescriptor = fileDescriptor;
+            this.endpointAddress = endpointAddress;
+            this.packetSize = packetSize;
+            this.ftdiStatus = ftdiStatus;
+        }
+    }
+
+    // Result of the pending permission request, the latch is released when the user answers
     private volatile boolean requestApproved = false;
-    private volatile boolean requestFinished = false;
+    private volatile CountDownLatch permissionLatch = null;
     private boolean usbReceiverRegistered = false;
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
         @Override
@@ -69,7 +138,11 @@ public class UsbHelper implements SerialHelper {
                     } else {
                         Log.d(TAG, "permission denied for device " + uDev);
                     }
-                    requestFinished = true;
+
+                    CountDownLatch latch = permissionLatch;
+                    if (latch != null) {
+                        latch.countDown();
+                    }
                 }
             } else if (action.equals(ACTION_USB_ATTACHED) || action.equals(ACTION_USB_DETACHED)) {
                 // send a broadcast for the main activity to repopulate the device list if a device
@@ -82,30 +155,37 @@ public class UsbHelper implements SerialHelper {
         }
     };
 
-   LinkedBlockingQueue<Byte> serialBuffer;
+    // Bytes received from the device.  The UsbSerial read thread or the UsbBulkReader thread
+    // is the only producer and the thread calling read() is the only consumer.
+    private final ByteRingBuffer serialBuffer;
 
     private UsbSerialInterface.UsbReadCallback mCallback = new UsbSerialInterface.UsbReadCallback() {
 
         @Override
         public void onReceivedData(byte[] arg0)
         {
-            // add the incoming bytes to a buffer
-            for (byte ch : arg0) {
-                try {
-                    serialBuffer.put(ch);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Unable to add incoming byte to queue", e);
-                }
-            }
+            // copy the incoming chunk to the buffer, this never blocks the callback thread
+            serialBuffer.write(arg0, 0, arg0.length);
         }
     };
 
+    // Used by readByte() so it doesn't allocate
+    private final byte[] mSingleByte = new byte[1];
+
+    private volatile int mBaudRate = BAUD_RATE;
 
     public UsbHelper(Context context) {
+        this(context, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @param bufferCapacity - size of the receive buffer in bytes
+     */
+    public UsbHelper(Context context, int bufferCapacity) {
         this.mContext = context;
         mUsbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
 
-        serialBuffer = new LinkedBlockingQueue<>(128);
+        serialBuffer = new ByteRingBuffer(bufferCapacity);
 
         IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
         filter.addAction(ACTION_USB_ATTACHED);
@@ -164,28 +244,52 @@ public class UsbHelper implements SerialHelper {
         return deviceList;
     }
 
-    public void connectDevice(String usbName, SerialHelper.DeviceReadyListener readyListener ) {
+    public ConnectionFuture connectDevice(String usbName, SerialHelper.DeviceReadyListener readyListener ) {
 
-        mReadyListener = readyListener;
         HashMap<String, UsbDevice> usbDeviceList = mUsbManager.getDeviceList();
         mUsbDevice = usbDeviceList.get(usbName);
 
         if (mUsbDevice != null) {
             // valid device, request permission to use
-            new ConnectionThread().start();
+            serialBuffer.reopen();
+            ConnectionFuture usbConnection = new ConnectionFuture(new ConnectionTask(), readyListener) {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    if (cancelled) {
+                        // wakes a negotiation waiting for the controller, the task sees the
+                        // closed buffer and gives up
+                        serialBuffer.close();
+                        closePort();
+                    }
+                    return cancelled;
+                }
+            };
+            mConnectFuture = usbConnection;
+            return usbConnection.start("UsbConnect");
 
         } else {
             Log.i(TAG, "Invalid usb device: " + usbName);
-            readyListener.OnDeviceReady(false);
+            return ConnectionFuture.failed(readyListener);
         }
 
     }
 
     public void disconnect() {
 
-        if (mSerialPort != null) {
-            mSerialPort.close();
-            mSerialPort = null;
+        // a connection still being made stops at its next step
+        ConnectionFuture connection = mConnectFuture;
+        if (connection != null) {
+            connection.cancel(true);
+            mConnectFuture = null;
+        }
+
+        serialBuffer.close();
+        closePort();
+
+        if (serialBuffer.getOverflowCount() > 0) {
+            Log.w(TAG, "Receive buffer overflowed " + serialBuffer.getOverflowCount()
+                    + " times, " + serialBuffer.getDroppedBytes() + " bytes dropped");
         }
         serialPortConnected = false;
 
@@ -195,104 +299,581 @@ public class UsbHelper implements SerialHelper {
         }
     }
 
-    public boolean writeString(String data) {
+    public void interruptRead() {
+        serialBuffer.close();
+    }
 
-        if (mSerialPort != null) {
-            mSerialPort.write(data.getBytes());
-            return true;
+    private void closePort() {
+        synchronized (mPortLock) {
+            if (mBulkReader != null) {
+                mBulkReader.stop();
+                mBulkReader = null;
+            }
+
+            if (mSerialPort != null) {
+                if (mSyncMode) {
+                    mSerialPort.syncClose();
+                } else {
+                    mSerialPort.close();
+                }
+                mSerialPort = null;
+            }
         }
+    }
 
-        return false;
+    /**
+     * @return true if the connection attempt was cancelled or the helper disconnected
+     */
+    private boolean isConnectAborted() {
+        return Thread.currentThread().isInterrupted() || serialBuffer.isClosed();
+    }
+
+    /**
+     * Sleeps like SystemClock.sleep(), but returns false as soon as the connection attempt is
+     * aborted
+     */
+    private boolean pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !isConnectAborted();
+    }
+
+    public boolean writeString(String data) {
+        return writeBytes(data.getBytes());
     }
 
     public boolean writeBytes(byte[] data) {
-        if (mSerialPort != null) {
-            mSerialPort.write(data);
-            return true;
+        return writePort(data);
+    }
+
+    /**
+     * @return false if the port has been closed
+     */
+    private boolean writePort(byte[] data) {
+        // disconnect() may close the port while a connection is still negotiating
+        UsbSerialDevice serialPort = mSerialPort;
+        if (serialPort == null) {
+            return false;
+        }
+
+        if (mSyncMode) {
+            if (serialPort.syncWrite(data, SYNC_WRITE_TIMEOUT) < data.length) {
+                Log.w(TAG, "Write to usb device failed or timed out");
+            }
+        } else {
+            serialPort.write(data);
         }
+        return true;
+    }
 
-        return false;
+    /**
+     * @return false if the port has been closed
+     */
+    private boolean setPortBaudRate(int rate) {
+        UsbSerialDevice serialPort = mSerialPort;
+        if (serialPort == null) {
+            return false;
+        }
+        serialPort.setBaudRate(rate);
+        return true;
     }
 
     public byte readByte() {
 
-        if (mSerialPort != null) {
-            Byte ch;
+        // blocks until something is received, but there should always be something
+        if (read(mSingleByte, 0, 1, 100) <= 0) {
+            // timeout occured, return null byte
+            return 0;
+        }
+
+        return mSingleByte[0];
+    }
+
+    public int read(byte[] dst, int off, int len, long timeoutMs) {
+
+        UsbBulkReader bulkReader = mBulkReader;
+        if (mSerialPort == null || (bulkReader != null && !bulkReader.isRunning())) {
+            return -1;
+        }
+
+        return serialBuffer.read(dst, off, len, timeoutMs);
+    }
+
+    /**
+     * @return number of received chunks that did not fit in the receive buffer
+     */
+    public long getOverflowCount() {
+        return serialBuffer.getOverflowCount();
+    }
+
+    /**
+     * @return number of received bytes dropped because the receive buffer was full
+     */
+    public long getDroppedBytes() {
+        return serialBuffer.getDroppedBytes();
+    }
+
+    public boolean isDeviceConnected() {
+        return serialPortConnected;
+    }
 
+    /**
+     * @return the receive latency in milliseconds the adapter was configured with, or
+     * UsbLatencyTuner.LATENCY_UNKNOWN if the chip has no such setting
+     */
+    public int getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Starts delivering received data to serialBuffer, using the reader selected in the
+     * preferences.  The bulk reader falls back to the UsbSerial callback if its requests
+     * cannot be queued.
+     */
+    private void startReading(int chip) {
+        if (mSyncMode) {
+            UsbBulkReader bulkReader = new UsbBulkReader(mUsbConnection, mBulkEndpoint,
+                    serialBuffer, mRequestCount, chip == UsbLatencyTuner.CHIP_FTDI);
+            if (bulkReader.start()) {
+                mBulkReader = bulkReader;
+                mFtdiStatus = (chip == UsbLatencyTuner.CHIP_FTDI);
+                Log.i(TAG, "Reading with " + mRequestCount + " bulk requests in flight");
+                return;
+            }
+
+            // the read callback needs UsbSerial's own read thread, open the device again
+            Log.w(TAG, "Bulk reader unavailable, using read callback");
+            mNativeReaderRequested = false;
+            mSerialPort.syncClose();
+            mUsbConnection.close();
+            mUsbConnection = mUsbManager.openDevice(mUsbDevice);
+            mSerialPort = UsbSerialDevice.createUsbSerialDevice(mUsbDevice, mUsbConnection);
+            mSyncMode = false;
+            if (mSerialPort == null || !mSerialPort.open()) {
+                Log.e(TAG, "Unable to reopen serial device");
+                return;
+            }
+            configurePort();
+        }
+
+        mSerialPort.read(mCallback);
+    }
+
+    /**
+     * Opens the serial port.  If UsbBulkReader is going to read it, the port is opened with
+     * syncOpen() so none of UsbSerial's threads wait for requests on the connection.
+     */
+    private boolean openPort() {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String reader = sharedPrefs.getString("pref_key_usb_reader", READER_CALLBACK);
+
+        mSyncMode = false;
+        mNativeReaderRequested = false;
+        if (READER_BULK.equals(reader) || READER_NATIVE.equals(reader)) {
             try {
-                // blocks until something is received, but there should always be something
-                ch = serialBuffer.poll(100, TimeUnit.MILLISECONDS);
-                if (ch == null) {
-                    // timeout occured, return null byte
-                    return 0;
+                mRequestCount = Integer.parseInt(sharedPrefs.getString(
+                        "pref_key_usb_request_count", Integer.toString(DEFAULT_REQUEST_COUNT)));
+            } catch (NumberFormatException e) {
+                mRequestCount = DEFAULT_REQUEST_COUNT;
+            }
+
+            mBulkEndpoint = findBulkInEndpoint(mUsbDevice);
+            if (mBulkEndpoint != null && mRequestCount > 0) {
+                mSyncMode = true;
+                mNativeReaderRequested = READER_NATIVE.equals(reader);
+            } else {
+                Log.w(TAG, "No usable bulk endpoint, using read callback");
+            }
+        }
+
+        if (!(mSyncMode ? mSerialPort.syncOpen() : mSerialPort.open())) {
+            return false;
+        }
+        configurePort();
+        return true;
+    }
+
+    private void configurePort() {
+        mSerialPort.setBaudRate(BAUD_RATE);
+        mSerialPort.setDataBits(UsbSerialInterface.DATA_BITS_8);
+        mSerialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
+        mSerialPort.setParity(UsbSerialInterface.PARITY_NONE);
+        mSerialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+    }
+
+    /**
+     * @return true if the user selected the native reader and the device supports it
+     */
+    public boolean isNativeReaderRequested() {
+        return mNativeReaderRequested;
+    }
+
+    /**
+     * Stops reading the device from Java so the native reader can take over.  Writes still
+     * go through this helper.
+     *
+     * @return the parameters for NativeInput.startReader(), or null if the native reader
+     * was not requested
+     */
+    public NativeReaderConfig detachForNativeReader() {
+        UsbBulkReader bulkReader = mBulkReader;
+        if (!mNativeReaderRequested || bulkReader == null) {
+            return null;
+        }
+
+        bulkReader.stop();
+        mBulkReader = null;
+        serialBuffer.clear();
+
+        return new NativeReaderConfig(mUsbConnection.getFileDescriptor(),
+                mBulkEndpoint.getAddress(), mBulkEndpoint.getMaxPacketSize(), mFtdiStatus);
+    }
+
+    /**
+     * Resumes reading from Java after detachForNativeReader(), for when the native reader
+     * could not be started
+     */
+    public boolean reattachReader() {
+        if (mBulkReader != null || mBulkEndpoint == null || mSerialPort == null) {
+            return false;
+        }
+
+        UsbBulkReader bulkReader = new UsbBulkReader(mUsbConnection, mBulkEndpoint,
+                serialBuffer, mRequestCount, mFtdiStatus);
+        if (!bulkReader.start()) {
+            return false;
+        }
+        mBulkReader = bulkReader;
+        return true;
+    }
+
+    /**
+     * @return the bulk IN endpoint carrying serial data, or null if there isn't one
+     */
+    private static UsbEndpoint findBulkInEndpoint(UsbDevice device) {
+        for (int i = 0; i < device.getInterfaceCount(); i++) {
+            UsbInterface usbInterface = device.getInterface(i);
+
+            // CDC devices carry data on a separate interface from their notifications
+            if (usbInterface.getInterfaceClass() == UsbConstants.USB_CLASS_COMM) {
+                continue;
+            }
+
+            for (int j = 0; j < usbInterface.getEndpointCount(); j++) {
+                UsbEndpoint endpoint = usbInterface.getEndpoint(j);
+                if (endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
+                        && endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                    return endpoint;
                 }
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Unable to retrieve byte", e);
-                return 0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the UsbLatencyTuner chip type of a usb device
+     */
+    private static int identifyChip(UsbDevice device) {
+        int vid = device.getVendorId();
+        int pid = device.getProductId();
+
+        if (UsbSerialDevice.isCdcDevice(device)) {
+            return UsbLatencyTuner.CHIP_CDC;
+        } else if (CH34xIds.isDeviceSupported(vid, pid)) {
+            return UsbLatencyTuner.CHIP_CH34X;
+        } else if (CP210xIds.isDeviceSupported(vid, pid)) {
+            return UsbLatencyTuner.CHIP_CP210X;
+        } else if (FTDISioIds.isDeviceSupported(vid, pid)) {
+            return UsbLatencyTuner.CHIP_FTDI;
+        } else if (PL2303Ids.isDeviceSupported(vid, pid)) {
+            return UsbLatencyTuner.CHIP_PL2303;
+        }
+        return UsbLatencyTuner.CHIP_UNKNOWN;
+    }
+
+    /**
+     * @return the baud rate currently used to talk to the device
+     */
+    public int getBaudRate() {
+        return mBaudRate;
+    }
+
+    /**
+     * Proposes faster baud rates to the controller until one is confirmed with a ping.  Only a
+     * confirmed rate is stored per device.  For BAUD_MEMORY_TIME after that, faster rates are
+     * skipped; then they are tried again.  Nothing is stored when the controller doesn't answer
+     * or doesn't support the BAUD command, so the next connection simply tries again.
+     *
+     * The controller is looked for at its default rate, at the rate stored for the device (a
+     * board that wasn't reset may still be using it) and at the rate the port was opened with.
+     * Everything is bounded by BAUD_NEGOTIATE_TIMEOUT, proposals that can't finish in time are
+     * not made.
+     */
+    private void negotiateBaudRate() {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] buffer = new byte[64];
+        long deadline = SystemClock.elapsedRealtime() + BAUD_NEGOTIATE_TIMEOUT;
+        mBaudRate = BAUD_RATE;
+
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String prefKey = BAUD_PREF_PREFIX + mUsbDevice.getVendorId() + "_"
+                + mUsbDevice.getProductId();
+        int storedRate = sharedPrefs.getInt(prefKey, 0);
+        long storedTime = sharedPrefs.getLong(prefKey + BAUD_PREF_TIME, 0);
+
+        // Boards that reset when the port opens sit in their bootloader for a while
+        int baseRate = waitForController(decoder, buffer, getProbeRates(storedRate));
+        if (baseRate == 0) {
+            setPortBaudRate(BAUD_RATE);
+            Log.i(TAG, "Controller did not answer, staying at " + BAUD_RATE);
+            return;
+        }
+        mBaudRate = baseRate;
+        if (!decoder.getDesc().equals("PONG")) {
+            Log.i(TAG, "Controller does not support baud rate negotiation, using " + baseRate);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - storedTime > BAUD_MEMORY_TIME || now < storedTime) {
+            storedRate = 0;
+        }
+
+        int negotiatedRate = 0;
+        for (int rate : BAUD_CANDIDATES) {
+            if (rate <= baseRate) {
+                // already at least this fast
+                break;
+            }
+            if (isConnectAborted()) {
+                return;
+            }
+            if (storedRate > 0 && rate > storedRate) {
+                // a faster rate failed for this device recently
+                continue;
+            }
+            if (SystemClock.elapsedRealtime() + BAUD_ATTEMPT_TIME > deadline) {
+                Log.i(TAG, "Out of time for baud rate negotiation");
+                break;
+            }
+
+            if (!writePort(("<BAUD:" + rate + ">").getBytes())) {
+                return;
+            }
+            String reply = waitForLog(decoder, buffer);
+            if (reply == null || !reply.equals("BAUD_OK")) {
+                // still at the old rate, nothing to undo
+                Log.i(TAG, "Baud rate " + rate + " not acknowledged");
+                decoder.reset();
+                continue;
+            }
+
+            if (!setPortBaudRate(rate) || !pause(BAUD_SETTLE_TIME)) {
+                return;
+            }
+            serialBuffer.clear();
+            decoder.reset();
+
+            if (!writePort("<PING>".getBytes())) {
+                return;
+            }
+            reply = waitForLog(decoder, buffer);
+            if (reply != null && reply.equals("PONG")) {
+                negotiatedRate = rate;
+                break;
             }
 
-            return ch;
+            // The controller goes back to the rate it was using when it isn't pinged, follow
+            // it and try the next rate
+            Log.i(TAG, "Baud rate " + rate + " failed, falling back");
+            if (!setPortBaudRate(baseRate) || !pause(BAUD_REVERT_TIME)) {
+                return;
+            }
+            serialBuffer.clear();
+            decoder.reset();
+        }
+
+        if (negotiatedRate > 0) {
+            mBaudRate = negotiatedRate;
+            sharedPrefs.edit()
+                    .putInt(prefKey, negotiatedRate)
+                    .putLong(prefKey + BAUD_PREF_TIME, now)
+                    .apply();
         }
+        serialBuffer.clear();
+        Log.i(TAG, "Using baud rate " + mBaudRate);
+    }
+
+    /**
+     * @return the rates the controller may be listening at, most likely first
+     */
+    private static int[] getProbeRates(int storedRate) {
+        if (storedRate <= 0 || storedRate == FIRMWARE_BAUD_RATE || storedRate == BAUD_RATE) {
+            return new int[] {FIRMWARE_BAUD_RATE, BAUD_RATE};
+        }
+        return new int[] {FIRMWARE_BAUD_RATE, storedRate, BAUD_RATE};
+    }
+
+    /**
+     * Pings the controller at each of the rates in turn until it answers or BAUD_BOOT_TIMEOUT
+     * passes.  The port is left at the rate that answered, the reply stays in the decoder.
+     *
+     * @return the rate the controller answered at, 0 if it never did
+     */
+    private int waitForController(FrameDecoder decoder, byte[] buffer, int[] rates) {
+        long deadline = SystemClock.elapsedRealtime() + BAUD_BOOT_TIMEOUT;
+        int next = 0;
+
+        do {
+            int rate = rates[next];
+            next = (next + 1) % rates.length;
+            if (!setPortBaudRate(rate) || !pause(BAUD_SETTLE_TIME)) {
+                return 0;
+            }
+            serialBuffer.clear();
+            decoder.reset();
+
+            if (!writePort("<PING>".getBytes())) {
+                return 0;
+            }
+            if (waitForLog(decoder, buffer) != null) {
+                return rate;
+            }
+            if (isConnectAborted()) {
+                return 0;
+            }
+        } while (SystemClock.elapsedRealtime() < deadline);
 
         return 0;
     }
 
-    public boolean isDeviceConnected() {
-        return serialPortConnected;
+    /**
+     * Forgets the baud rates negotiated with every device, the next connections start over
+     * at the fastest rate
+     */
+    public static void clearStoredBaudRates(Context context) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sharedPrefs.edit();
+        for (String key : sharedPrefs.getAll().keySet()) {
+            if (key.startsWith(BAUD_PREF_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
     }
 
-    // This thread opens a usb serial connection on the specified device
-    private class ConnectionThread extends Thread {
+    /**
+     * Waits for a LOG frame from the controller during baud rate negotiation
+     *
+     * @return the frame's description, or null if none arrived in time
+     */
+    private String waitForLog(FrameDecoder decoder, byte[] buffer) {
+        long deadline = SystemClock.elapsedRealtime() + BAUD_REPLY_TIMEOUT;
+        long remaining = BAUD_REPLY_TIMEOUT;
+
+        while (remaining > 0) {
+            int count = serialBuffer.read(buffer, 0, buffer.length, remaining);
+            if (count < 0 || (count == 0 && isConnectAborted())) {
+                return null;    // the connection is being stopped
+            }
+            for (int i = 0; i < count; i++) {
+                if (decoder.feed(buffer[i]) == FrameDecoder.FRAME_COMPLETE
+                        && decoder.getOpcode() == FrameDecoder.OP_LOG) {
+                    return decoder.getDesc();
+                }
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+
+        return null;
+    }
+
+    // This task opens a usb serial connection on the specified device and returns its status
+    private class ConnectionTask implements Callable<Boolean> {
 
         @Override
-        public void run() {
-            PendingIntent mPendingIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
-            mUsbManager.requestPermission(mUsbDevice, mPendingIntent);
+        public Boolean call() {
+
+            if (!mUsbManager.hasPermission(mUsbDevice)) {
+                requestApproved = false;
+                permissionLatch = new CountDownLatch(1);
+
+                PendingIntent mPendingIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
+                mUsbManager.requestPermission(mUsbDevice, mPendingIntent);
 
-            while(!requestFinished) {
-                // wait for the request to finish
                 try {
-                    Thread.sleep(10);
+                    // wait for the request to finish, cancelling the connection interrupts the wait
+                    permissionLatch.await();
                 } catch (InterruptedException e) {
-                    Log.i(TAG, "Sleep interrupted", e);
+                    Log.i(TAG, "Permission request cancelled");
+                    return false;
+                } finally {
+                    permissionLatch = null;
                 }
-            }
 
-            if (!requestApproved) {
-                mReadyListener.OnDeviceReady(false);
-                return;
+                if (!requestApproved) {
+                    return false;
+                }
             }
 
-            mUsbConnection = mUsbManager.openDevice(mUsbDevice);
+            UsbDeviceConnection usbConnection = mUsbManager.openDevice(mUsbDevice);
+            UsbSerialDevice serialPort =
+                    UsbSerialDevice.createUsbSerialDevice(mUsbDevice, usbConnection);
+            if (serialPort != null) {
+                boolean opened;
+                int chip = identifyChip(mUsbDevice);
+                synchronized (mPortLock) {
+                    if (isConnectAborted()) {
+                        Log.i(TAG, "Connection cancelled");
+                        usbConnection.close();
+                        return false;
+                    }
+                    mUsbConnection = usbConnection;
+                    mSerialPort = serialPort;
 
-            mSerialPort = UsbSerialDevice.createUsbSerialDevice(mUsbDevice, mUsbConnection);
-            if (mSerialPort != null) {
-                if (mSerialPort.open()) {
-                    mSerialPort.setBaudRate(BAUD_RATE);
-                    mSerialPort.setDataBits(UsbSerialInterface.DATA_BITS_8);
-                    mSerialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
-                    mSerialPort.setParity(UsbSerialInterface.PARITY_NONE);
-                    mSerialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
-                    mSerialPort.read(mCallback);
+                    opened = openPort();
+                    if (opened) {
+                        startReading(chip);
+                    }
+                }
+
+                if (opened) {
+                    // after startReading, which may have to reopen the port
+                    mLatency = UsbLatencyTuner.tune(chip,
+                            UsbLatencyTuner.wrap(mUsbConnection), 0);
+                    Log.i(TAG, UsbLatencyTuner.chipName(chip) + " adapter, receive latency: "
+                            + (mLatency == UsbLatencyTuner.LATENCY_UNKNOWN ? "default"
+                            : mLatency + " ms"));
+
+                    negotiateBaudRate();
+
+                    if (isConnectAborted()) {
+                        Log.i(TAG, "Connection cancelled");
+                        closePort();
+                        return false;
+                    }
 
                     // Device is open and ready
                     serialPortConnected = true;
-                    mReadyListener.OnDeviceReady(true);
+                    return true;
                  } else {
                     // Serial port could not be opened, maybe an I/O error or if CDC driver was chosen, it does not really fit
                     // Send an Intent to Main Activity
-                    if (mSerialPort instanceof CDCSerialDevice) {
+                    if (serialPort instanceof CDCSerialDevice) {
                         Log.i(TAG, "Unable to open CDC Serial device");
-                        mReadyListener.OnDeviceReady(false);
                     } else {
                         Log.i(TAG, "Unable to open serial device");
-                        mReadyListener.OnDeviceReady(false);
                     }
+                    return false;
                 }
             } else {
                 // No driver for given device, even generic CDC driver could not be loaded
                 Log.i(TAG, "Serial Device not supported");
-                mReadyListener.OnDeviceReady(false);
+                return false;
             }
         }
     }
@@ -0,0 +1,137 @@
+package com.arksine.resremote;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.util.Log;
+
+/**
+ * Class UsbLatencyTuner
+ *
+ * Applies chip specific settings that make usb serial adapters forward small frames as soon
+ * as they arrive.  FTDI parts hold received bytes for up to 16 ms by default before sending
+ * them to the host, so their latency timer is lowered to 1 ms and the frame end character is
+ * set as the event character.  CP210x parts have no latency timer, their receive buffer is
+ * purged so stale bytes do not precede the first frame.  CH34x, PL2303 and CDC devices have
+ * no equivalent settings and are left as they are.
+ */
+public class UsbLatencyTuner {
+
+    private static final String TAG = "UsbLatencyTuner";
+
+    public static final int CHIP_UNKNOWN = 0;
+    public static final int CHIP_CDC = 1;
+    public static final int CHIP_FTDI = 2;
+    public static final int CHIP_CP210X = 3;
+    public static final int CHIP_CH34X = 4;
+    public static final int CHIP_PL2303 = 5;
+
+    // Returned when the chip's latency is not known or cannot be changed
+    public static final int LATENCY_UNKNOWN = -1;
+
+    private static final int CONTROL_TIMEOUT = 100;  // ms
+
+    // FTDI vendor requests
+    static final int FTDI_REQTYPE_OUT = 0x40;
+    static final int FTDI_SIO_RESET = 0x00;
+    static final int FTDI_SIO_SET_EVENT_CHAR = 0x06;
+    static final int FTDI_SIO_SET_LATENCY_TIMER = 0x09;
+    static final int FTDI_RESET_PURGE_RX = 1;
+    static final int FTDI_EVENT_CHAR_ENABLE = 0x100;
+    static final int FTDI_DEFAULT_LATENCY = 16;
+    static final int FTDI_LOW_LATENCY = 1;
+
+    // CP210x vendor requests
+    static final int CP210X_REQTYPE_OUT = 0x41;
+    static final int CP210X_PURGE = 0x12;
+    static final int CP210X_PURGE_RX = 0x0A;
+
+    /**
+     * The control endpoint of an open usb device.  UsbDeviceConnection is wrapped so the
+     * requests sent to each chip can be checked without a device.
+     */
+    public interface ControlTransport {
+        int controlTransfer(int requestType, int request, int value, int index,
+                            byte[] buffer, int length, int timeout);
+    }
+
+    /**
+     * Wraps an open UsbDeviceConnection
+     */
+    public static ControlTransport wrap(final UsbDeviceConnection connection) {
+        return new ControlTransport() {
+            @Override
+            public int controlTransfer(int requestType, int request, int value, int index,
+                                       byte[] buffer, int length, int timeout) {
+                return connection.controlTransfer(requestType, request, value, index,
+                        buffer, length, timeout);
+            }
+        };
+    }
+
+    /**
+     * Applies the low latency settings for a chip
+     *
+     * @param chip - one of the CHIP_ constants
+     * @param transport - control endpoint of the opened device
+     * @param iface - index of the serial interface on the device
+     * @return the receive latency in milliseconds now in effect, or LATENCY_UNKNOWN
+     */
+    public static int tune(int chip, ControlTransport transport, int iface) {
+        switch (chip) {
+            case CHIP_FTDI:
+                return tuneFtdi(transport, iface);
+            case CHIP_CP210X:
+                return tuneCp210x(transport, iface);
+            default:
+                return LATENCY_UNKNOWN;
+        }
+    }
+
+    private static int tuneFtdi(ControlTransport transport, int iface) {
+        // FTDI ports are numbered from 1
+        int port = iface + 1;
+
+        if (transport.controlTransfer(FTDI_REQTYPE_OUT, FTDI_SIO_SET_LATENCY_TIMER,
+                FTDI_LOW_LATENCY, port, null, 0, CONTROL_TIMEOUT) < 0) {
+            Log.w(TAG, "Unable to set FTDI latency timer");
+            return FTDI_DEFAULT_LATENCY;
+        }
+
+        // Send text frames as soon as their end marker arrives
+        if (transport.controlTransfer(FTDI_REQTYPE_OUT, FTDI_SIO_SET_EVENT_CHAR,
+                FTDI_EVENT_CHAR_ENABLE | FrameDecoder.FRAME_END, port, null, 0,
+                CONTROL_TIMEOUT) < 0) {
+            Log.w(TAG, "Unable to set FTDI event character");
+        }
+
+        transport.controlTransfer(FTDI_REQTYPE_OUT, FTDI_SIO_RESET, FTDI_RESET_PURGE_RX, port,
+                null, 0, CONTROL_TIMEOUT);
+
+        return FTDI_LOW_LATENCY;
+    }
+
+    private static int tuneCp210x(ControlTransport transport, int iface) {
+        // The CP210x forwards received bytes on every poll, there is no timer to lower
+        if (transport.controlTransfer(CP210X_REQTYPE_OUT, CP210X_PURGE, CP210X_PURGE_RX, iface,
+                null, 0, CONTROL_TIMEOUT) < 0) {
+            Log.w(TAG, "Unable to purge CP210x receive buffer");
+        }
+        return LATENCY_UNKNOWN;
+    }
+
+    public static String chipName(int chip) {
+        switch (chip) {
+            case CHIP_CDC:
+                return "CDC";
+            case CHIP_FTDI:
+                return "FTDI";
+            case CHIP_CP210X:
+                return "CP210x";
+            case CHIP_CH34X:
+                return "CH34x";
+            case CHIP_PL2303:
+                return "PL2303";
+            default:
+                return "Unknown";
+        }
+    }
+}
@@ -3,7 +3,7 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := restouchdrv
-LOCAL_SRC_FILES := restouchdrv.cpp util.cpp
+LOCAL_SRC_FILES := restouchdrv.cpp util.cpp framedecoder.cpp nativereader.cpp uinputdevice.cpp eventchannel.cpp
 
 
 # Generate a module that links to /system/lib/liblog.so at load time to enable logging
@@ -0,0 +1,59 @@
+//
+// Consumes the touch events Java writes into a shared direct ByteBuffer
+//
+#include "eventchannel.h"
+#include "framedecoder.h"
+#include "uinputdevice.h"
+#include "util.h"
+
+bool event_channel_attach(EventChannel* channel, void* base, int64_t length, int capacity) {
+    if (base == nullptr || capacity <= 0 || (capacity & (capacity - 1)) != 0
+            || length < CHANNEL_HEADER_SIZE + (int64_t) capacity * CHANNEL_RECORD_SIZE) {
+        LOGE("Event channel of %d records does not fit a buffer of %lld bytes", capacity,
+             (long long) length);
+        return false;
+    }
+
+    channel->base = (uint8_t*) base;
+    channel->mask = capacity - 1;
+    return true;
+}
+
+void event_channel_detach(EventChannel* channel) {
+    channel->base = nullptr;
+    channel->mask = 0;
+}
+
+int event_channel_consume(EventChannel* channel, UinputDevice* device) {
+    if (channel->base == nullptr) {
+        return 0;
+    }
+
+    uint32_t* tailCounter = (uint32_t*) (channel->base + CHANNEL_TAIL);
+    uint32_t* headCounter = (uint32_t*) (channel->base + CHANNEL_HEAD);
+    uint32_t tail = __atomic_load_n(tailCounter, __ATOMIC_ACQUIRE);
+    uint32_t head = *headCounter;
+
+    // the counters wrap, their difference is the number of records waiting
+    if (tail - head > channel->mask + 1) {
+        LOGE("Event channel corrupt, head %u tail %u", head, tail);
+        __atomic_store_n(headCounter, tail, __ATOMIC_RELEASE);
+        return 0;
+    }
+
+    int count = 0;
+    for (; head != tail; head++, count++) {
+        const int32_t* record = (const int32_t*) (channel->base + CHANNEL_HEADER_SIZE
+                + (head & channel->mask) * CHANNEL_RECORD_SIZE);
+
+        int opcode = record[RECORD_OPCODE];
+        if (opcode == OP_DOWN || opcode == OP_UP) {
+            uinput_inject(device, opcode, record[RECORD_X], record[RECORD_Y],
+                          *(const int64_t*) (record + RECORD_TIME));
+        }
+    }
+
+    // hands the records back to Java
+    __atomic_store_n(headCounter, head, __ATOMIC_RELEASE);
+    return count;
+}
@@ -0,0 +1,40 @@
+//
+// Ring of touch events in a direct ByteBuffer shared with com.arksine.resremote.EventChannel.
+// Java writes records and publishes the tail, native code consumes them when signalled.
+//
+
+#ifndef RESREMOTE_EVENTCHANNEL_H
+#define RESREMOTE_EVENTCHANNEL_H
+
+#include <stdint.h>
+#include "uinputdevice.h"
+
+// Layout of the buffer, matching EventChannel.  The header holds two counters of every
+// record ever written (tail, written by Java) and consumed (head, written here), followed
+// by capacity records of four native order ints and the capture time in nanoseconds.
+#define CHANNEL_TAIL            0
+#define CHANNEL_HEAD            4
+#define CHANNEL_HEADER_SIZE     16
+#define CHANNEL_RECORD_SIZE     24
+
+// int offsets of a record's fields
+#define RECORD_OPCODE           0
+#define RECORD_X                1
+#define RECORD_Y                2
+#define RECORD_Z                3
+#define RECORD_TIME             4   // int64, occupies two ints
+
+struct EventChannel {
+    uint8_t* base;
+    uint32_t mask;      // capacity - 1, the capacity is a power of two
+};
+
+// Attaches to a buffer of length bytes, returns false if it can't hold capacity records
+bool event_channel_attach(EventChannel* channel, void* base, int64_t length, int capacity);
+
+void event_channel_detach(EventChannel* channel);
+
+// Injects every record published since the last call into device, returns the number consumed
+int event_channel_consume(EventChannel* channel, UinputDevice* device);
+
+#endif //RESREMOTE_EVENTCHANNEL_H
@@ -0,0 +1,249 @@
+//
+// Native port of com.arksine.resremote.FrameDecoder
+//
+#include "framedecoder.h"
+#include <cstring>
+
+#define FRAME_START     '<'
+#define FRAME_END       '>'
+#define BINARY_SYNC     0xA5
+#define FIELD_SEPARATOR ':'
+
+#define MAX_FIELD_VALUE 99999
+#define POINT_FIELDS    3
+
+#define STATE_IDLE      0
+#define STATE_COMMAND   1
+#define STATE_FIELDS    2
+#define STATE_BINARY    3
+
+static const char* const commandNames[] = {"DOWN", "UP", "CAL", "STOP", "LOG", "CAPS"};
+static const int commandOpcodes[] = {OP_DOWN, OP_UP, OP_CAL, OP_STOP, OP_LOG, OP_CAPS};
+static const int commandCount = sizeof(commandOpcodes) / sizeof(commandOpcodes[0]);
+
+FrameDecoder::FrameDecoder() {
+    memset(static_cast<void*>(this), 0, sizeof(*this));
+    state = STATE_IDLE;
+    opcode = OP_NONE;
+    lastSequence = -1;
+}
+
+void FrameDecoder::reset() {
+    state = STATE_IDLE;
+}
+
+void FrameDecoder::setBinaryEnabled(bool enabled) {
+    binaryEnabled = enabled;
+    if (!enabled && state == STATE_BINARY) {
+        state = STATE_IDLE;
+    }
+}
+
+int FrameDecoder::feed(uint8_t ch) {
+
+    if (state == STATE_IDLE) {
+        if (ch == FRAME_START) {
+            beginFrame();
+        } else if (ch == BINARY_SYNC && binaryEnabled) {
+            beginBinaryFrame();
+        }
+        return FRAME_INCOMPLETE;
+    }
+
+    if (state == STATE_BINARY) {
+        return feedBinary(ch);
+    }
+
+    if (ch == FRAME_START || (ch == BINARY_SYNC && binaryEnabled)) {
+        // The end of the current frame was lost, resync on the new frame
+        truncatedFrames++;
+        if (ch == FRAME_START) {
+            beginFrame();
+        } else {
+            beginBinaryFrame();
+        }
+        return FRAME_INVALID;
+    }
+
+    if (ch == FRAME_END) {
+        bool hasFields = (state == STATE_FIELDS);
+        state = STATE_IDLE;
+        if (!hasFields) {
+            // Nothing was received after the command
+            unparsableFrames++;
+            return FRAME_INVALID;
+        }
+        return finishFrame();
+    }
+
+    if (state == STATE_COMMAND) {
+        if (ch == FIELD_SEPARATOR) {
+            state = STATE_FIELDS;
+            beginField();
+        } else if (commandLength < FRAME_MAX_COMMAND) {
+            command[commandLength++] = ch;
+        } else {
+            // command too long, drop the frame and wait for the next start marker
+            oversizedFrames++;
+            state = STATE_IDLE;
+            return FRAME_INVALID;
+        }
+        return FRAME_INCOMPLETE;
+    }
+
+    // STATE_FIELDS
+    if (payloadLength == FRAME_MAX_PAYLOAD) {
+        oversizedFrames++;
+        state = STATE_IDLE;
+        return FRAME_INVALID;
+    }
+    desc[payloadLength++] = ch;
+
+    if (ch == FIELD_SEPARATOR) {
+        endField();
+        beginField();
+    } else if (ch >= '0' && ch <= '9') {
+        if (fieldValue > MAX_FIELD_VALUE) {
+            // far outside of any coordinate, don't let the value overflow
+            fieldsNumeric = false;
+        }
+        fieldValue = (fieldValue * 10) + (ch - '0');
+        fieldHasDigits = true;
+    } else if (ch == '-' && !fieldHasDigits && !fieldNegative) {
+        fieldNegative = true;
+    } else {
+        fieldsNumeric = false;
+    }
+
+    return FRAME_INCOMPLETE;
+}
+
+void FrameDecoder::beginFrame() {
+    state = STATE_COMMAND;
+    commandLength = 0;
+    payloadLength = 0;
+    fieldCount = 0;
+    fieldsNumeric = true;
+}
+
+void FrameDecoder::beginBinaryFrame() {
+    state = STATE_BINARY;
+    binaryLength = 0;
+    binaryExpected = FRAME_HEADER_LENGTH;
+}
+
+void FrameDecoder::beginField() {
+    fieldValue = 0;
+    fieldNegative = false;
+    fieldHasDigits = false;
+}
+
+void FrameDecoder::endField() {
+    if (!fieldHasDigits) {
+        fieldsNumeric = false;
+    }
+    if (fieldCount < POINT_FIELDS) {
+        fields[fieldCount] = fieldNegative ? -fieldValue : fieldValue;
+    }
+    fieldCount++;
+}
+
+int FrameDecoder::finishFrame() {
+    endField();
+    desc[payloadLength] = '\0';
+
+    if (fieldCount == 1) {
+        // Text frame
+        opcode = lookupOpcode();
+        point = false;
+        return FRAME_COMPLETE;
+    } else if (fieldCount == POINT_FIELDS && fieldsNumeric) {
+        opcode = lookupOpcode();
+        point = true;
+        sampleCount = 1;
+        x[0] = fields[0];
+        y[0] = fields[1];
+        z[0] = fields[2];
+        return FRAME_COMPLETE;
+    }
+
+    unparsableFrames++;
+    return FRAME_INVALID;
+}
+
+int FrameDecoder::feedBinary(uint8_t ch) {
+    if (ch == FRAME_START && (binaryLength == 0 || binaryLength == 2)) {
+        // Opcodes and sample counts never look like '<', so the sync byte was noise or the
+        // rest of the frame was lost.  Samples, the sequence and the CRC are left to the CRC.
+        truncatedFrames++;
+        beginFrame();
+        return FRAME_INVALID;
+    }
+    binaryFrame[binaryLength++] = ch;
+
+    if (binaryLength == FRAME_HEADER_LENGTH) {
+        int count = binaryFrame[2];
+        if (count == 0 || count > FRAME_MAX_SAMPLES) {
+            unparsableFrames++;
+            state = STATE_IDLE;
+            return FRAME_INVALID;
+        }
+        // samples followed by the CRC
+        binaryExpected = FRAME_HEADER_LENGTH + (count * FRAME_SAMPLE_LENGTH) + 1;
+        return FRAME_INCOMPLETE;
+    }
+
+    if (binaryLength < binaryExpected) {
+        return FRAME_INCOMPLETE;
+    }
+
+    state = STATE_IDLE;
+    int dataLength = binaryLength - 1;
+    if (crc8(binaryFrame, dataLength) != binaryFrame[dataLength]) {
+        unparsableFrames++;
+        return FRAME_INVALID;
+    }
+
+    int frameOpcode = binaryFrame[0];
+    opcode = (frameOpcode > OP_NONE && frameOpcode < OP_UNKNOWN) ? frameOpcode : OP_UNKNOWN;
+    point = true;
+
+    int sequence = binaryFrame[1];
+    if (lastSequence >= 0) {
+        lostFrames += (sequence - lastSequence - 1) & 0xFF;
+    }
+    lastSequence = sequence;
+
+    sampleCount = binaryFrame[2];
+    const uint8_t* sample = binaryFrame + FRAME_HEADER_LENGTH;
+    for (int i = 0; i < sampleCount; i++) {
+        x[i] = (int16_t) (sample[0] | (sample[1] << 8));
+        y[i] = (int16_t) (sample[2] | (sample[3] << 8));
+        z[i] = sample[4] | (sample[5] << 8);
+        sample += FRAME_SAMPLE_LENGTH;
+    }
+
+    return FRAME_COMPLETE;
+}
+
+// CRC-8 with polynomial 0x07, as computed by the firmware
+uint8_t FrameDecoder::crc8(const uint8_t* data, int length) {
+    uint8_t crc = 0;
+    for (int i = 0; i < length; i++) {
+        crc ^= data[i];
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x80) ? (uint8_t) ((crc << 1) ^ 0x07) : (uint8_t) (crc << 1);
+        }
+    }
+    return crc;
+}
+
+int FrameDecoder::lookupOpcode() {
+    for (int i = 0; i < commandCount; i++) {
+        if ((int) strlen(commandNames[i]) == commandLength
+                && strncmp(commandNames[i], command, commandLength) == 0) {
+            return commandOpcodes[i];
+        }
+    }
+    return OP_UNKNOWN;
+}
@@ -0,0 +1,100 @@
+//
+// Native port of com.arksine.resremote.FrameDecoder, used when frames are read and
+// injected without passing through Java.  Opcodes, limits and counters match the Java class.
+//
+
+#ifndef RESREMOTE_FRAMEDECODER_H
+#define RESREMOTE_FRAMEDECODER_H
+
+#include <stdint.h>
+
+// Opcodes for the commands the arduino can send
+#define OP_NONE     0
+#define OP_DOWN     1
+#define OP_UP       2
+#define OP_CAL      3
+#define OP_STOP     4
+#define OP_LOG      5
+#define OP_CAPS     6
+#define OP_UNKNOWN  7
+
+// Results returned by feed()
+#define FRAME_INCOMPLETE    0
+#define FRAME_COMPLETE      1
+#define FRAME_INVALID       -1
+
+#define FRAME_MAX_SAMPLES       8
+#define FRAME_MAX_COMMAND       16
+#define FRAME_MAX_PAYLOAD       96
+#define FRAME_HEADER_LENGTH     3
+#define FRAME_SAMPLE_LENGTH     6
+
+class FrameDecoder {
+public:
+    FrameDecoder();
+
+    /* Feeds a single byte to the decoder.  Bytes received outside of a frame are ignored.
+     *
+     * Returns FRAME_COMPLETE when a valid frame has been decoded, FRAME_INVALID when a frame
+     * ended but could not be parsed, FRAME_INCOMPLETE otherwise.
+     */
+    int feed(uint8_t ch);
+
+    // Discards any partially received frame
+    void reset();
+
+    /* Binary frames are only accepted after the firmware acknowledged the BINARY command,
+     * so a stray 0xA5 on a text link can't swallow the next frame.  Switching them off
+     * drops a binary frame in progress.
+     */
+    void setBinaryEnabled(bool enabled);
+
+    // Decoded frame
+    int opcode;
+    bool point;
+    int sampleCount;
+    int x[FRAME_MAX_SAMPLES];
+    int y[FRAME_MAX_SAMPLES];
+    int z[FRAME_MAX_SAMPLES];
+
+    // Description of the last text frame, null terminated
+    char desc[FRAME_MAX_PAYLOAD + 1];
+
+    // Corruption counters
+    uint64_t lostFrames;
+    uint64_t truncatedFrames;
+    uint64_t oversizedFrames;
+    uint64_t unparsableFrames;
+
+    static uint8_t crc8(const uint8_t* data, int length);
+
+private:
+    void beginFrame();
+    void beginBinaryFrame();
+    void beginField();
+    void endField();
+    int finishFrame();
+    int feedBinary(uint8_t ch);
+    int lookupOpcode();
+
+    int state;
+    bool binaryEnabled;
+
+    char command[FRAME_MAX_COMMAND];
+    int commandLength;
+    int payloadLength;
+
+    int fields[3];
+    int fieldCount;
+    int fieldValue;
+    bool fieldNegative;
+    bool fieldHasDigits;
+    bool fieldsNumeric;
+
+    uint8_t binaryFrame[FRAME_HEADER_LENGTH + (FRAME_MAX_SAMPLES * FRAME_SAMPLE_LENGTH) + 1];
+    int binaryLength;
+    int binaryExpected;
+    int lastSequence;
+};
+
+#endif //RESREMOTE_FRAMEDECODER_H
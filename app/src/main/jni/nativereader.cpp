@@ -0,0 +1,198 @@
+//
+// Native frame reader, see nativereader.h
+//
+#include "nativereader.h"
+#include "util.h"
+#include <cerrno>
+#include <cstdlib>
+#include <cstring>
+#include <poll.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/ioctl.h>
+#include <linux/usbdevice_fs.h>
+
+#define FTDI_STATUS_LENGTH  2
+#define DEFAULT_PACKET_SIZE 64
+
+NativeReader::NativeReader(int fd, int endpoint, int packetSize, bool ftdiStatus,
+                           PointCallback callback, void* arg)
+        : fd(fd), endpoint(endpoint), packetSize(packetSize > 0 ? packetSize : DEFAULT_PACKET_SIZE),
+          ftdiStatus(ftdiStatus), callback(callback), idleCallback(nullptr), callbackArg(arg),
+          running(false), threadStarted(false), bytes(0), frames(0), points(0), invalidFrames(0),
+          readErrors(0) {
+
+    buffer = (uint8_t*) malloc(this->packetSize);
+}
+
+NativeReader::~NativeReader() {
+    stop();
+    free(buffer);
+}
+
+void NativeReader::setIdleCallback(IdleCallback idle) {
+    idleCallback = idle;
+}
+
+bool NativeReader::start() {
+    if (running || buffer == nullptr) {
+        return false;
+    }
+
+    running = true;
+    if (pthread_create(&thread, nullptr, threadMain, this) != 0) {
+        LOGE("Unable to start native reader thread");
+        running = false;
+        return false;
+    }
+    threadStarted = true;
+    return true;
+}
+
+void NativeReader::stop() {
+    running = false;
+    if (threadStarted) {
+        // the thread notices within READER_TIMEOUT_MS
+        pthread_join(thread, nullptr);
+        threadStarted = false;
+    }
+}
+
+bool NativeReader::isRunning() {
+    return running;
+}
+
+void* NativeReader::threadMain(void* reader) {
+    ((NativeReader*) reader)->run();
+    return nullptr;
+}
+
+void NativeReader::run() {
+    while (running) {
+        int count = readChunk();
+        if (count < 0) {
+            if (running) {
+                LOGE("Native reader lost connection to device");
+                running = false;
+            }
+            break;
+        } else if (count == 0) {
+            if (idleCallback != nullptr) {
+                idleCallback(callbackArg);
+            }
+            continue;
+        }
+
+        // every frame completed by this read arrived now
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        int64_t timeNs = (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+
+        if (ftdiStatus) {
+            for (int start = 0; start < count; start += packetSize) {
+                int packetLength = count - start < packetSize ? count - start : packetSize;
+                if (packetLength > FTDI_STATUS_LENGTH) {
+                    process(buffer + start + FTDI_STATUS_LENGTH,
+                            packetLength - FTDI_STATUS_LENGTH, timeNs);
+                }
+            }
+        } else {
+            process(buffer, count, timeNs);
+        }
+    }
+}
+
+/* Reads whatever the device has, waiting at most READER_TIMEOUT_MS.
+ *
+ * Returns the number of bytes read, 0 on timeout or -1 if the device is gone.
+ */
+int NativeReader::readChunk() {
+    int count;
+
+    if (endpoint >= 0) {
+        struct usbdevfs_bulktransfer bulk;
+        bulk.ep = (unsigned int) endpoint;
+        bulk.len = (unsigned int) packetSize;
+        bulk.timeout = READER_TIMEOUT_MS;
+        bulk.data = buffer;
+
+        count = ioctl(fd, USBDEVFS_BULK, &bulk);
+        if (count < 0) {
+            if (errno == ETIMEDOUT || errno == EINTR) {
+                return 0;
+            }
+            readErrors++;
+            return -1;
+        }
+        return count;
+    }
+
+    struct pollfd pfd;
+    pfd.fd = fd;
+    pfd.events = POLLIN;
+    pfd.revents = 0;
+
+    int ready = poll(&pfd, 1, READER_TIMEOUT_MS);
+    if (ready == 0 || (ready < 0 && errno == EINTR)) {
+        return 0;
+    } else if (ready < 0) {
+        readErrors++;
+        return -1;
+    }
+
+    count = read(fd, buffer, packetSize);
+    if (count < 0) {
+        if (errno == EAGAIN || errno == EINTR) {
+            return 0;
+        }
+        readErrors++;
+        return -1;
+    } else if (count == 0) {
+        // end of file, the writer closed its end
+        return -1;
+    }
+    return count;
+}
+
+void NativeReader::process(const uint8_t* data, int length, int64_t timeNs) {
+    bytes += length;
+
+    for (int i = 0; i < length; i++) {
+        int result = decoder.feed(data[i]);
+        if (result == FRAME_INVALID) {
+            invalidFrames++;
+            continue;
+        } else if (result != FRAME_COMPLETE) {
+            continue;
+        }
+
+        frames++;
+        if (decoder.point) {
+            for (int s = 0; s < decoder.sampleCount; s++) {
+                points++;
+                callback(callbackArg, decoder.opcode, decoder.x[s], decoder.y[s], decoder.z[s],
+                         timeNs);
+            }
+        } else if (decoder.opcode == OP_LOG) {
+            if (strcmp(decoder.desc, "BINARY_OK") == 0) {
+                // binary frames follow the acknowledgement
+                decoder.setBinaryEnabled(true);
+            }
+            LOGI("Arduino: %s", decoder.desc);
+        }
+    }
+}
+
+void NativeReader::getStats(int64_t* stats) {
+    // counters are only written by the reader thread, a snapshot may be a frame out of date
+    stats[STAT_RUNNING] = running ? 1 : 0;
+    stats[STAT_BYTES] = bytes;
+    stats[STAT_FRAMES] = frames;
+    stats[STAT_POINTS] = points;
+    stats[STAT_INVALID] = invalidFrames;
+    stats[STAT_LOST] = decoder.lostFrames;
+    stats[STAT_TRUNCATED] = decoder.truncatedFrames;
+    stats[STAT_OVERSIZED] = decoder.oversizedFrames;
+    stats[STAT_UNPARSABLE] = decoder.unparsableFrames;
+    stats[STAT_READ_ERRORS] = readErrors;
+}
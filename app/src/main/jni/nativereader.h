@@ -0,0 +1,86 @@
+//
+// Reads frames from a device file descriptor on a native thread and hands decoded points to
+// a callback, so samples can go from the usb adapter to uinput without crossing into Java.
+//
+
+#ifndef RESREMOTE_NATIVEREADER_H
+#define RESREMOTE_NATIVEREADER_H
+
+#include <pthread.h>
+#include <stdint.h>
+#include "framedecoder.h"
+
+// Receives every decoded sample of a point frame, with the CLOCK_MONOTONIC time in nanoseconds
+// the read that completed the frame returned
+typedef void (*PointCallback)(void* arg, int opcode, int x, int y, int z, int64_t timeNs);
+
+// Called with the same arg when a read times out without data, every READER_TIMEOUT_MS while
+// the device is quiet
+typedef void (*IdleCallback)(void* arg);
+
+// Indices of the values copied by NativeReader::getStats, matching NativeInput.STAT_*
+#define STAT_RUNNING        0
+#define STAT_BYTES          1
+#define STAT_FRAMES         2
+#define STAT_POINTS         3
+#define STAT_INVALID        4
+#define STAT_LOST           5
+#define STAT_TRUNCATED      6
+#define STAT_OVERSIZED      7
+#define STAT_UNPARSABLE     8
+#define STAT_READ_ERRORS    9
+#define STAT_COUNT          10
+
+#define READER_TIMEOUT_MS   100  // bounds how long stop() waits for the thread
+
+class NativeReader {
+public:
+    /* fd - usbdevfs file descriptor of the device, or any readable descriptor
+     * endpoint - address of the bulk IN endpoint, or -1 to read() the descriptor
+     * packetSize - max packet size of the endpoint
+     * ftdiStatus - true if every packet starts with FTDI modem status bytes
+     */
+    NativeReader(int fd, int endpoint, int packetSize, bool ftdiStatus,
+                 PointCallback callback, void* arg);
+    ~NativeReader();
+
+    // Must be set before start()
+    void setIdleCallback(IdleCallback idle);
+
+    bool start();
+    void stop();
+
+    bool isRunning();
+    void getStats(int64_t* stats);
+
+private:
+    static void* threadMain(void* reader);
+
+    // Reads and decodes until stop() is called or the device fails
+    void run();
+    int readChunk();
+    void process(const uint8_t* data, int length, int64_t timeNs);
+
+    int fd;
+    int endpoint;
+    int packetSize;
+    bool ftdiStatus;
+    PointCallback callback;
+    IdleCallback idleCallback;
+    void* callbackArg;
+
+    volatile bool running;
+    bool threadStarted;
+    pthread_t thread;
+
+    FrameDecoder decoder;
+    uint8_t* buffer;
+
+    uint64_t bytes;
+    uint64_t frames;
+    uint64_t points;
+    uint64_t invalidFrames;
+    uint64_t readErrors;
+};
+
+#endif //RESREMOTE_NATIVEREADER_H
@@ -3,160 +3,236 @@
 //
 #include <jni.h>
 #include <cstddef>
-#include <linux/input.h>
-#include <linux/uinput.h>
-#include <fcntl.h>
-#include <sys/time.h>
-#include <cstring>
 #include "util.h"
+#include "framedecoder.h"
+#include "nativereader.h"
+#include "uinputdevice.h"
+#include "eventchannel.h"
 
-void send_event(int type, int code, int value);
+void reader_callback(void* arg, int opcode, int x, int y, int z, int64_t timeNs);
+void reader_idle(void* arg);
 
-static int uinp_fd;			// uinput file descriptor
-bool isTouching = false;
-int prevXCoord = 0;
-int prevYCoord = 0;
-const int coordOffset = 2;  // The number of pixels a tool must travel before the touch is registered
-const int trackingID = 9000;
+// Native state of one NativeInput, allocated by openUinput and passed back to every native
+// method as a jlong handle.  Nothing here is global, so each instance drives its own device.
+struct DriverContext {
+	UinputDevice* device;
 
+	// Rotation transform used for points read natively, see NativeInput.processInput
+	volatile int rotation;
+	volatile int xMax;
+	volatile int yMax;
 
-// TODO: this is an arbitrary pressure for initial testing, once the app is working 
-//		 we will attempt to use pressure calculated from the screen
-const int pressure = 50;		
+	NativeReader* reader;	// reads the device natively when it has been started
+
+	// Shared with NativeInput when it injects through an EventChannel
+	EventChannel channel;
+};
+
+static inline DriverContext* get_context(jlong handle) {
+	return reinterpret_cast<DriverContext*>(handle);
+}
+
+// Layout of the events packed by NativeInput.processInputs, see the NativeInput.EVENT_ constants
+#define EVENT_OPCODE	0
+#define EVENT_X			1
+#define EVENT_Y			2
+#define EVENT_SIZE		4
+
+// Events copied out of a batch at a time, so the copy fits on the stack
+#define BATCH_CHUNK		32
+
+static inline void inject_event(DriverContext* context, int opcode, int x, int y, int64_t timeNs);
 
 #ifdef __cplusplus
 extern "C" {
 #endif
 
-	JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_NativeInput_openUinput(JNIEnv* jenv, 
-		jobject thisObj, jint screenSizeX, jint screenSizeY) {
+	// Returns the handle of a new context, or 0 if the device could not be created
+	JNIEXPORT jlong JNICALL Java_com_arksine_resremote_NativeInput_openUinput(JNIEnv* jenv, 
+		jobject thisObj, jint screenSizeX, jint screenSizeY, jint fuzz, jint flat,
+		jint resolutionX, jint resolutionY) {
 
-		struct uinput_user_dev uinp;
-		uinp_fd = open("/dev/uinput", O_WRONLY|O_NONBLOCK);
-		if(uinp_fd == -1) {
-			 LOGE("Unable to open uinput device");
-			 return false;
+		UinputAxis axisX = {fuzz, flat, resolutionX};
+		UinputAxis axisY = {fuzz, flat, resolutionY};
+		UinputDevice* device = uinput_open(screenSizeX, screenSizeY, &axisX, &axisY);
+		if (device == nullptr) {
+			return 0;
 		}
 
-		// configure touch device event properties
-		memset(&uinp, 0, sizeof(uinp));
-		strncpy(uinp.name, "ArduinoTouchScreen", UINPUT_MAX_NAME_SIZE);
-		uinp.id.version = 4;
-		uinp.id.bustype = BUS_USB;
-		uinp.absmin[ABS_MT_SLOT] = 0;
-		uinp.absmax[ABS_MT_SLOT] = 9; // track up to 9 fingers
-		uinp.absmin[ABS_MT_TOUCH_MAJOR] = 0;
-		uinp.absmax[ABS_MT_TOUCH_MAJOR] = 15;
-		uinp.absmin[ABS_MT_POSITION_X] = 0; // screen dimension
-		uinp.absmax[ABS_MT_POSITION_X] = (int)screenSizeX - 1; // screen dimension
-		uinp.absmin[ABS_MT_POSITION_Y] = 0; // screen dimension
-		uinp.absmax[ABS_MT_POSITION_Y] = (int)screenSizeY - 1; // screen dimension
-		uinp.absmin[ABS_MT_TRACKING_ID] = 0;
-		uinp.absmax[ABS_MT_TRACKING_ID] = 65535;
-		uinp.absmin[ABS_MT_PRESSURE] = 0;
-		uinp.absmax[ABS_MT_PRESSURE] = 255;
-
-		// Setup the uinput device
-		int ret = 0;
-		ret = ret | ioctl(uinp_fd, UI_SET_EVBIT, EV_KEY);
-		ret = ret | ioctl(uinp_fd, UI_SET_EVBIT, EV_REL);
-		ret = ret | ioctl(uinp_fd, UI_SET_EVBIT, EV_SYN);
-    
-		// Touch
-		ret = ret | ioctl (uinp_fd, UI_SET_EVBIT,  EV_ABS);
-		ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_SLOT);
-		ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_TOUCH_MAJOR);
-		ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_POSITION_X);
-		ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_POSITION_Y);
-		ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_TRACKING_ID);
-		ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_PRESSURE);
-		ret = ret | ioctl (uinp_fd, UI_SET_PROPBIT, INPUT_PROP_DIRECT);
-
-        if (ret < 0) {
-        LOGE("Unable to ioctl to device");
-        	return false;
-        }
-		/* Create input device into input sub-system */
-		write(uinp_fd, &uinp, sizeof(uinp));
-		ioctl(uinp_fd, UI_DEV_CREATE);
+		DriverContext* context = new DriverContext();
+		context->device = device;
+		context->rotation = ROTATION_0;
+		context->xMax = screenSizeX - 1;
+		context->yMax = screenSizeY - 1;
+		context->reader = nullptr;
+		context->channel = {nullptr, 0};
+		return reinterpret_cast<jlong>(context);
+	}
 
-		return true;
+	JNIEXPORT void JNICALL Java_com_arksine_resremote_NativeInput_injectEvent(JNIEnv* jenv,
+		jobject thisObj, jlong handle, jint opcode, jint x, jint y, jint z, jlong timeNs) {
+
+		inject_event(get_context(handle), opcode, x, y, timeNs);
 	}
 
-	JNIEXPORT void JNICALL Java_com_arksine_resremote_NativeInput_processEvent(JNIEnv* jenv, 
-		jobject thisObj, jstring command, jint x, jint y, jint z) {
+	JNIEXPORT void JNICALL Java_com_arksine_resremote_NativeInput_injectEvents(JNIEnv* jenv,
+		jobject thisObj, jlong handle, jintArray events, jlongArray times, jint count) {
 
-		
-		const char* cmd = jenv->GetStringUTFChars(command, 0);
+		DriverContext* context = get_context(handle);
 
-		if (strncmp(cmd, "DOWN", 4) == 0) {		// command finger down
+		if (count < 0 || (jlong) count * EVENT_SIZE > jenv->GetArrayLength(events)
+				|| count > jenv->GetArrayLength(times)) {
+			LOGE("Event batch of %d does not fit its arrays", count);
+			return;
+		}
 
-			if (!isTouching) {		// first touch
-				isTouching = true;
+		jint chunk[BATCH_CHUNK * EVENT_SIZE];
+		jlong chunkTimes[BATCH_CHUNK];
+		for (int start = 0; start < count; start += BATCH_CHUNK) {
+			int length = (count - start < BATCH_CHUNK) ? count - start : BATCH_CHUNK;
+			jenv->GetIntArrayRegion(events, start * EVENT_SIZE, length * EVENT_SIZE, chunk);
+			jenv->GetLongArrayRegion(times, start, length, chunkTimes);
+
+			for (int i = 0; i < length; i++) {
+				const jint* event = chunk + i * EVENT_SIZE;
+				inject_event(context, event[EVENT_OPCODE], event[EVENT_X], event[EVENT_Y],
+							 chunkTimes[i]);
+			}
+		}
+	}
 
-				send_event(EV_ABS, ABS_MT_TRACKING_ID, trackingID);
-				send_event(EV_ABS, ABS_MT_POSITION_X, x);
-				send_event(EV_ABS, ABS_MT_POSITION_Y, y);
-				send_event(EV_ABS, ABS_MT_PRESSURE, pressure);
-				send_event(EV_SYN, SYN_REPORT, 0);
+	JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_NativeInput_attachEventChannel(
+		JNIEnv* jenv, jobject thisObj, jlong handle, jobject buffer, jint capacity) {
 
-				prevXCoord = x;
-				prevYCoord = y;
+		return event_channel_attach(&get_context(handle)->channel,
+									jenv->GetDirectBufferAddress(buffer),
+									jenv->GetDirectBufferCapacity(buffer), capacity);
+	}
 
-			}
-			else {					// holding
-				bool coordChanged = false;  // we need to send a sync event if something has changed
-
-				if ((x < (prevXCoord - coordOffset)) || (x > (prevXCoord + coordOffset))) {
-					send_event(EV_ABS, ABS_MT_POSITION_X, x);
-					prevXCoord = x;
-					coordChanged = true;
-				}
-
-				if ((y < (prevYCoord - coordOffset)) || (y > (prevYCoord + coordOffset))) {
-					send_event(EV_ABS, ABS_MT_POSITION_Y, y);
-					prevYCoord = y;
-					coordChanged = true;
-				}
-
-				if (coordChanged) {
-					send_event(EV_SYN, SYN_REPORT, 0);
-				}
-			}
-			
+	JNIEXPORT jint JNICALL Java_com_arksine_resremote_NativeInput_flushEventChannel(
+		JNIEnv* jenv, jobject thisObj, jlong handle) {
+
+		DriverContext* context = get_context(handle);
+		return event_channel_consume(&context->channel, context->device);
+	}
+
+	// Retries a release uinput refused, returns true if nothing is left pending
+	JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_NativeInput_flushUinput(JNIEnv* jenv,
+		jobject thisObj, jlong handle) {
+
+		return uinput_flush(get_context(handle)->device);
+	}
+
+	JNIEXPORT void JNICALL Java_com_arksine_resremote_NativeInput_setTransform(JNIEnv* jenv,
+		jobject thisObj, jlong handle, jint screenRotation, jint maxX, jint maxY) {
+
+		DriverContext* context = get_context(handle);
+		context->rotation = screenRotation;
+		context->xMax = maxX;
+		context->yMax = maxY;
+	}
+
+	JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_NativeInput_startNativeReader(
+		JNIEnv* jenv, jobject thisObj, jlong handle, jint fd, jint endpoint, jint packetSize,
+		jboolean ftdiStatus) {
 
+		DriverContext* context = get_context(handle);
+		if (context->reader != nullptr) {
+			LOGE("Native reader already running");
+			return false;
 		}
-		else if (strncmp(cmd, "UP", 2) == 0) {	// command finger up
-			isTouching = false;
 
-			send_event(EV_ABS, ABS_MT_TRACKING_ID, -1);
-			send_event(EV_SYN, SYN_REPORT, 0);
-				
+		context->reader = new NativeReader(fd, endpoint, packetSize, ftdiStatus,
+										   reader_callback, context);
+		context->reader->setIdleCallback(reader_idle);
+		if (!context->reader->start()) {
+			delete context->reader;
+			context->reader = nullptr;
+			return false;
 		}
-		else {	// unknown command
-			LOGI("Unknown command %s: ", cmd);
+		return true;
+	}
+
+	JNIEXPORT void JNICALL Java_com_arksine_resremote_NativeInput_stopNativeReader(JNIEnv* jenv,
+		jobject thisObj, jlong handle) {
+
+		DriverContext* context = get_context(handle);
+		if (context->reader != nullptr) {
+			context->reader->stop();
+			delete context->reader;
+			context->reader = nullptr;
+		}
+	}
+
+	JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_NativeInput_getNativeReaderStats(
+		JNIEnv* jenv, jobject thisObj, jlong handle, jlongArray stats) {
+
+		NativeReader* reader = get_context(handle)->reader;
+		if (reader == nullptr || jenv->GetArrayLength(stats) < STAT_COUNT) {
+			return false;
+		}
+
+		int64_t values[STAT_COUNT];
+		reader->getStats(values);
+		jenv->SetLongArrayRegion(stats, 0, STAT_COUNT, (const jlong*) values);
+		return true;
+	}
+
+	JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_NativeInput_getNativeUinputStats(
+		JNIEnv* jenv, jobject thisObj, jlong handle, jlongArray stats) {
+
+		if (jenv->GetArrayLength(stats) < UINPUT_STAT_COUNT) {
+			return false;
 		}
 
-		jenv->ReleaseStringUTFChars(command, cmd);
+		int64_t values[UINPUT_STAT_COUNT];
+		uinput_copy_stats(get_context(handle)->device, values);
+		jenv->SetLongArrayRegion(stats, 0, UINPUT_STAT_COUNT, (const jlong*) values);
+		return true;
 	}
 
+	// Stops the reader if it is still running and frees the context, the handle is invalid
+	// afterwards
 	JNIEXPORT void JNICALL Java_com_arksine_resremote_NativeInput_closeUinput(JNIEnv* jenv, 
-		jobject thisObj) {
+		jobject thisObj, jlong handle) {
 
-		ioctl(uinp_fd, UI_DEV_DESTROY);
-		close(uinp_fd);
+		DriverContext* context = get_context(handle);
+		if (context->reader != nullptr) {
+			context->reader->stop();
+			delete context->reader;
+		}
+		event_channel_detach(&context->channel);
+		uinput_close(context->device);
+		delete context;
 	}
 
 #ifdef __cplusplus
 }
 #endif
 
-void send_event(int type, int code, int value) {
-	struct input_event ev;
-	memset(&ev, 0, sizeof(ev));
-    gettimeofday(&ev.time, nullptr);
-    ev.type = type;  
-    ev.code = code;
-    ev.value = value;
-    write(uinp_fd, &ev, sizeof(ev));
-}
\ No newline at end of file
+// Sends a point already in device coordinates, ignoring anything but touch events
+static inline void inject_event(DriverContext* context, int opcode, int x, int y, int64_t timeNs) {
+	if (opcode == OP_DOWN || opcode == OP_UP) {
+		uinput_inject(context->device, opcode, x, y, timeNs);
+	}
+	else {
+		LOGI("Unknown opcode %d", opcode);
+	}
+}
+
+// Called on the native reader thread with points as received from the arduino
+void reader_callback(void* arg, int opcode, int x, int y, int z, int64_t timeNs) {
+	DriverContext* context = static_cast<DriverContext*>(arg);
+	int deviceX;
+	int deviceY;
+
+	// Translate coordinates based on device rotation, as NativeInput.processInput does
+	transform_point(context->rotation, context->xMax, context->yMax, x, y, &deviceX, &deviceY);
+	uinput_inject(context->device, opcode, deviceX, deviceY, timeNs);
+}
+
+// Called on the native reader thread when the device has been quiet for a read timeout
+void reader_idle(void* arg) {
+	DriverContext* context = static_cast<DriverContext*>(arg);
+	uinput_flush(context->device);
+}
@@ -0,0 +1,216 @@
+//
+// Host test for the native frame decoder and reader.  Frames are written into a pipe and
+// read back by a NativeReader, the same way it reads a usb device on Android.
+//
+// Build and run with "make" in this directory.
+//
+#include <cstdio>
+#include <cstring>
+#include <unistd.h>
+#include "../framedecoder.h"
+#include "../nativereader.h"
+
+#define MAX_POINTS 64
+
+struct Point {
+    int opcode;
+    int x;
+    int y;
+    int z;
+    int64_t timeNs;
+};
+
+struct Recorder {
+    Point points[MAX_POINTS];
+    int count;
+    volatile int idle;      // read timeouts reported to the idle callback
+};
+
+static int failures = 0;
+
+#define CHECK(condition) \
+    do { \
+        if (!(condition)) { \
+            fprintf(stderr, "%s:%d: check failed: %s\n", __FILE__, __LINE__, #condition); \
+            failures++; \
+        } \
+    } while (0)
+
+static void record(void* arg, int opcode, int x, int y, int z, int64_t timeNs) {
+    Recorder* recorder = (Recorder*) arg;
+    if (recorder->count < MAX_POINTS) {
+        Point& point = recorder->points[recorder->count++];
+        point.opcode = opcode;
+        point.x = x;
+        point.y = y;
+        point.z = z;
+        point.timeNs = timeNs;
+    }
+}
+
+static void recordIdle(void* arg) {
+    ((Recorder*) arg)->idle++;
+}
+
+// Builds a binary frame with the given samples, returns its length
+static int binaryFrame(uint8_t* frame, int opcode, int sequence, const int (*samples)[3],
+                       int count) {
+    int length = 0;
+    frame[length++] = 0xA5;
+    frame[length++] = (uint8_t) opcode;
+    frame[length++] = (uint8_t) sequence;
+    frame[length++] = (uint8_t) count;
+    for (int i = 0; i < count; i++) {
+        for (int field = 0; field < 3; field++) {
+            frame[length++] = (uint8_t) (samples[i][field] & 0xFF);
+            frame[length++] = (uint8_t) ((samples[i][field] >> 8) & 0xFF);
+        }
+    }
+    frame[length] = FrameDecoder::crc8(frame + 1, length - 1);
+    return length + 1;
+}
+
+// Writes data into a pipe, closes it, and lets a NativeReader read until end of file
+static void readThroughPipe(const uint8_t* data, int length, Recorder* recorder,
+                            int64_t* stats) {
+    int fds[2];
+    if (pipe(fds) != 0) {
+        perror("pipe");
+        failures++;
+        return;
+    }
+
+    NativeReader reader(fds[0], -1, 64, false, record, recorder);
+    CHECK(reader.start());
+
+    // small writes so frames are split across reads
+    for (int offset = 0; offset < length; offset += 5) {
+        int chunk = (length - offset) < 5 ? (length - offset) : 5;
+        CHECK(write(fds[1], data + offset, chunk) == chunk);
+    }
+    close(fds[1]);
+
+    while (reader.isRunning()) {
+        usleep(1000);
+    }
+    reader.getStats(stats);
+    reader.stop();
+    close(fds[0]);
+}
+
+static void testTextFrames() {
+    const char* text = "noise<DOWN:100:200:30><LOG:Device ready><DOWN:-5:7:0><UP:100:200:0>";
+    Recorder recorder = {};
+    int64_t stats[STAT_COUNT];
+
+    readThroughPipe((const uint8_t*) text, strlen(text), &recorder, stats);
+
+    CHECK(recorder.count == 3);
+    CHECK(recorder.points[0].opcode == OP_DOWN && recorder.points[0].x == 100
+          && recorder.points[0].y == 200 && recorder.points[0].z == 30);
+    CHECK(recorder.points[1].x == -5 && recorder.points[1].y == 7);
+    CHECK(recorder.points[2].opcode == OP_UP);
+    CHECK(recorder.points[0].timeNs > 0);
+    CHECK(recorder.points[2].timeNs >= recorder.points[0].timeNs);
+    CHECK(stats[STAT_FRAMES] == 4);
+    CHECK(stats[STAT_POINTS] == 3);
+    CHECK(stats[STAT_BYTES] == (int64_t) strlen(text));
+    CHECK(stats[STAT_RUNNING] == 0);
+}
+
+static void testResync() {
+    // the end of the first frame is lost, the second must still be decoded
+    // a stray binary sync byte is ignored while binary frames are off
+    const char* text = "<DOWN:1:2<DOWN:3:4:5>\xA5<DOWN:x:y:z><:1:2>";
+    Recorder recorder = {};
+    int64_t stats[STAT_COUNT];
+
+    readThroughPipe((const uint8_t*) text, strlen(text), &recorder, stats);
+
+    CHECK(recorder.count == 1);
+    CHECK(recorder.points[0].x == 3 && recorder.points[0].z == 5);
+    CHECK(stats[STAT_TRUNCATED] == 1);
+    CHECK(stats[STAT_UNPARSABLE] == 2);
+    CHECK(stats[STAT_INVALID] == 3);
+}
+
+static void testBinaryFrames() {
+    const int first[2][3] = {{10, 20, 300}, {-11, 21, 301}};
+    const int second[1][3] = {{40, 50, 0}};
+    uint8_t data[128];
+    const char* ack = "<LOG:BINARY_OK>";
+    int length = strlen(ack);
+
+    memcpy(data, ack, length);
+    length += binaryFrame(data + length, OP_DOWN, 1, first, 2);
+    // corrupt frame, dropped on its CRC
+    int corrupt = binaryFrame(data + length, OP_DOWN, 2, second, 1);
+    data[length + 5] ^= 0xFF;
+    length += corrupt;
+    // sequence 3 is missing
+    length += binaryFrame(data + length, OP_UP, 4, second, 1);
+
+    Recorder recorder = {};
+    int64_t stats[STAT_COUNT];
+    readThroughPipe(data, length, &recorder, stats);
+
+    CHECK(recorder.count == 3);
+    CHECK(recorder.points[0].x == 10 && recorder.points[0].y == 20 && recorder.points[0].z == 300);
+    CHECK(recorder.points[1].x == -11 && recorder.points[1].z == 301);
+    CHECK(recorder.points[2].opcode == OP_UP && recorder.points[2].x == 40);
+    CHECK(stats[STAT_UNPARSABLE] == 1);
+    CHECK(stats[STAT_LOST] == 2);
+}
+
+static void testOversized() {
+    char text[256];
+    memset(text, 0, sizeof(text));
+    strcpy(text, "<LOG:");
+    memset(text + 5, 'a', 120);
+    strcat(text, "><DOWN:1:1:1>");
+
+    Recorder recorder = {};
+    int64_t stats[STAT_COUNT];
+    readThroughPipe((const uint8_t*) text, strlen(text), &recorder, stats);
+
+    CHECK(recorder.count == 1);
+    CHECK(stats[STAT_OVERSIZED] == 1);
+}
+
+// A quiet device reports every read timeout, so a pending release can be retried
+static void testIdle() {
+    int fds[2];
+    if (pipe(fds) != 0) {
+        perror("pipe");
+        failures++;
+        return;
+    }
+
+    Recorder recorder = {};
+    NativeReader reader(fds[0], -1, 64, false, record, &recorder);
+    reader.setIdleCallback(recordIdle);
+    CHECK(reader.start());
+
+    usleep(READER_TIMEOUT_MS * 1000 * 5 / 2);
+    reader.stop();
+    CHECK(recorder.idle >= 2);
+    CHECK(recorder.count == 0);
+
+    close(fds[1]);
+    close(fds[0]);
+}
+
+int main() {
+    testTextFrames();
+    testResync();
+    testBinaryFrames();
+    testOversized();
+    testIdle();
+
+    if (failures > 0) {
+        fprintf(stderr, "%d checks failed\n", failures);
+        return 1;
+    }
+    printf("All native reader tests passed\n");
+    return 0;
+}
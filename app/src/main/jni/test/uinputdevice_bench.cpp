@@ -0,0 +1,160 @@
+//
+// Host benchmark comparing the cost of one write() per report, as the uinput report writer
+// does, with the previous one write() per event.  Not part of the tests, since timings vary
+// between runs and machines.
+//
+// Build and run with "make bench" in this directory.
+//
+#include <cstdio>
+#include <cstring>
+#include <pthread.h>
+#include <unistd.h>
+#include <sys/resource.h>
+#include <sys/time.h>
+#include <linux/input.h>
+#include "../framedecoder.h"
+#include "../uinputdevice.h"
+
+static int failures = 0;
+
+// The previous implementation, one gettimeofday() and write() per event, sending the same
+// events as the report writer
+static int legacyFd = -1;
+static long long legacyWrites = 0;
+
+static void legacy_send_event(int type, int code, int value) {
+    struct input_event ev;
+    memset(&ev, 0, sizeof(ev));
+    gettimeofday(&ev.time, nullptr);
+    ev.type = type;
+    ev.code = code;
+    ev.value = value;
+    write(legacyFd, &ev, sizeof(ev));
+    legacyWrites++;
+}
+
+static void legacy_inject(int opcode, int x, int y, bool firstTouch) {
+    if (opcode == OP_DOWN && firstTouch) {
+        legacy_send_event(EV_ABS, ABS_MT_TRACKING_ID, 9000);
+        legacy_send_event(EV_ABS, ABS_MT_POSITION_X, x);
+        legacy_send_event(EV_ABS, ABS_MT_POSITION_Y, y);
+        legacy_send_event(EV_ABS, ABS_MT_PRESSURE, 50);
+    } else if (opcode == OP_DOWN) {
+        legacy_send_event(EV_ABS, ABS_MT_POSITION_X, x);
+        legacy_send_event(EV_ABS, ABS_MT_POSITION_Y, y);
+    } else {
+        legacy_send_event(EV_ABS, ABS_MT_TRACKING_ID, -1);
+    }
+    legacy_send_event(EV_MSC, MSC_TIMESTAMP, 0);
+    legacy_send_event(EV_SYN, SYN_REPORT, 0);
+}
+
+// Empties the pipe so writes never block on a full pipe
+static void* drain(void* arg) {
+    int fd = *(int*) arg;
+    char buffer[65536];
+    while (read(fd, buffer, sizeof(buffer)) > 0) {
+    }
+    return nullptr;
+}
+
+static double seconds(const struct timeval& time) {
+    return time.tv_sec + time.tv_usec / 1e6;
+}
+
+struct Cost {
+    double wall;
+    double system;
+};
+
+// Runs strokes of a touch, 30 moves and a release, through one of the two writers
+// Sends the strokes, with the report writer if batched, and fills stats with its counters
+static Cost runStrokes(bool batched, int strokes, UinputStats* stats) {
+    int fds[2];
+    if (pipe(fds) != 0) {
+        perror("pipe");
+        failures++;
+        Cost none = {0, 0};
+        return none;
+    }
+
+    pthread_t drainThread;
+    pthread_create(&drainThread, nullptr, drain, &fds[0]);
+
+    UinputDevice* device = nullptr;
+    if (batched) {
+        device = uinput_attach_fd(fds[1]);
+    } else {
+        legacyFd = fds[1];
+        legacyWrites = 0;
+    }
+
+    struct rusage startUsage;
+    struct rusage endUsage;
+    struct timeval start;
+    struct timeval end;
+    getrusage(RUSAGE_SELF, &startUsage);
+    gettimeofday(&start, nullptr);
+
+    for (int stroke = 0; stroke < strokes; stroke++) {
+        for (int i = 0; i <= 30; i++) {
+            // every move changes both axes
+            int x = 100 + i * 10;
+            int y = 400 - i * 10;
+            if (batched) {
+                uinput_inject(device, OP_DOWN, x, y, 0);
+            } else {
+                legacy_inject(OP_DOWN, x, y, i == 0);
+            }
+        }
+        if (batched) {
+            uinput_inject(device, OP_UP, 0, 0, 0);
+        } else {
+            legacy_inject(OP_UP, 0, 0, false);
+        }
+    }
+
+    gettimeofday(&end, nullptr);
+    getrusage(RUSAGE_SELF, &endUsage);
+
+    if (batched) {
+        uinput_get_stats(device, stats);
+        uinput_close(device);
+    } else {
+        close(fds[1]);
+    }
+    pthread_join(drainThread, nullptr);
+    close(fds[0]);
+
+    Cost cost;
+    cost.wall = seconds(end) - seconds(start);
+    cost.system = seconds(endUsage.ru_stime) - seconds(startUsage.ru_stime);
+    return cost;
+}
+
+static void benchmark() {
+    const int strokes = 20000;
+    const long long reports = strokes * 32LL;
+
+    UinputStats stats;
+    Cost legacy = runStrokes(false, strokes, &stats);
+    long long perEventWrites = legacyWrites;
+
+    Cost batchedCost = runStrokes(true, strokes, &stats);
+
+    if (stats.writes != reports || perEventWrites != stats.events) {
+        fprintf(stderr, "writers sent different events, results are not comparable\n");
+        failures++;
+    }
+
+    printf("%lld reports, %lld events\n", reports, stats.events);
+    printf("  write per event:  %lld writes, %.0f ns/report, %.2f s system\n",
+           perEventWrites, legacy.wall * 1e9 / reports, legacy.system);
+    printf("  write per report: %lld writes, %.0f ns/report, %.2f s system\n",
+           stats.writes, batchedCost.wall * 1e9 / reports, batchedCost.system);
+}
+
+int main() {
+    benchmark();
+    return failures > 0 ? 1 : 0;
+}
@@ -0,0 +1,294 @@
+//
+// Host test for the uinput report writer.  Reports are written into a pipe instead of a
+// uinput device, then read back and checked.  uinputdevice_bench.cpp measures its cost.
+//
+// Build and run with "make" in this directory.
+//
+#include <cstdio>
+#include <cstring>
+#include <fcntl.h>
+#include <pthread.h>
+#include <unistd.h>
+#include <linux/input.h>
+#include "../framedecoder.h"
+#include "../uinputdevice.h"
+
+static int failures = 0;
+
+#define CHECK(condition) \
+    do { \
+        if (!(condition)) { \
+            fprintf(stderr, "%s:%d: check failed: %s\n", __FILE__, __LINE__, #condition); \
+            failures++; \
+        } \
+    } while (0)
+
+static bool sameTime(const struct input_event& a, const struct input_event& b) {
+    return a.time.tv_sec == b.time.tv_sec && a.time.tv_usec == b.time.tv_usec;
+}
+
+static void testReports() {
+    int fds[2];
+    if (pipe(fds) != 0) {
+        perror("pipe");
+        failures++;
+        return;
+    }
+
+    // capture times, as System.nanoTime() would give them
+    const int64_t down = 5000001000LL;
+    const int64_t move = 5008001000LL;
+    const int64_t up = 5016001000LL;
+
+    UinputDevice* device = uinput_attach_fd(fds[1]);
+    uinput_inject(device, OP_DOWN, 100, 200, down); // first touch, 4 events, timestamp and sync
+    uinput_inject(device, OP_DOWN, 100, 200, move); // no change, nothing sent
+    uinput_inject(device, OP_DOWN, 101, 200, move); // x moved a pixel, x, timestamp and sync
+    uinput_inject(device, OP_UP, 101, 200, up);     // release, tracking id, timestamp and sync
+
+    UinputStats stats;
+    uinput_get_stats(device, &stats);
+    CHECK(stats.writes == 3);
+    CHECK(stats.events == 12);
+    CHECK(stats.failedWrites == 0);
+
+    struct input_event events[16];
+    int count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 12);
+
+    // first touch, every event of the report carries the capture time
+    CHECK(events[0].type == EV_ABS && events[0].code == ABS_MT_TRACKING_ID);
+    CHECK(events[1].code == ABS_MT_POSITION_X && events[1].value == 100);
+    CHECK(events[2].code == ABS_MT_POSITION_Y && events[2].value == 200);
+    CHECK(events[3].code == ABS_MT_PRESSURE);
+    CHECK(events[4].type == EV_MSC && events[4].code == MSC_TIMESTAMP
+          && events[4].value == (int) (uint32_t) (down / 1000));
+    CHECK(events[5].type == EV_SYN && events[5].code == SYN_REPORT);
+    CHECK(events[0].time.tv_sec == 5 && events[0].time.tv_usec == 1);
+    for (int i = 1; i < 6; i++) {
+        CHECK(sameTime(events[0], events[i]));
+    }
+
+    // no dead band, a one pixel move is written and left to the kernel's fuzz
+    CHECK(events[6].code == ABS_MT_POSITION_X && events[6].value == 101);
+    CHECK(events[7].type == EV_MSC && events[7].value == (int) (uint32_t) (move / 1000));
+    CHECK(events[8].type == EV_SYN && sameTime(events[6], events[8]));
+    CHECK(events[6].time.tv_sec == 5 && events[6].time.tv_usec == 8001);
+
+    CHECK(events[9].code == ABS_MT_TRACKING_ID && events[9].value == -1);
+    CHECK(events[10].type == EV_MSC && events[10].value == (int) (uint32_t) (up / 1000));
+    CHECK(events[11].type == EV_SYN && events[11].code == SYN_REPORT);
+
+    // the timestamp is microseconds wrapping at 32 bits
+    const int64_t late = 4295000000000LL;   // just past 2^32 us
+    uinput_inject(device, OP_DOWN, 10, 10, late);
+    count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 6);
+    CHECK(events[4].type == EV_MSC && events[4].value == (int) (4295000000LL - 4294967296LL));
+
+    uinput_close(device);   // closes the write end
+    close(fds[0]);
+}
+
+// Devices share no touch state, a touch held on one is a first touch on another
+static void testSeparateDevices() {
+    int first[2];
+    int second[2];
+    if (pipe(first) != 0 || pipe(second) != 0) {
+        perror("pipe");
+        failures++;
+        return;
+    }
+
+    UinputDevice* a = uinput_attach_fd(first[1]);
+    UinputDevice* b = uinput_attach_fd(second[1]);
+    uinput_inject(a, OP_DOWN, 100, 200, 0);
+    uinput_inject(b, OP_DOWN, 100, 200, 0);     // same point, still a new touch on b
+    uinput_inject(a, OP_DOWN, 100, 200, 0);     // a is unchanged, nothing sent
+
+    struct input_event events[16];
+    int count = read(first[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 6);
+    count = read(second[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 6);
+    CHECK(events[0].code == ABS_MT_TRACKING_ID && events[0].value != -1);
+
+    UinputStats stats;
+    uinput_get_stats(b, &stats);
+    CHECK(stats.writes == 1);
+
+    uinput_close(a);
+    uinput_close(b);
+    close(first[0]);
+    close(second[0]);
+}
+
+// Fills a non-blocking pipe until it refuses even a byte, returns the bytes written
+static size_t fillPipe(int fd) {
+    static char block[4096];
+    size_t filled = 0;
+    ssize_t written;
+    while ((written = write(fd, block, sizeof(block))) > 0) {
+        filled += written;
+    }
+    while ((written = write(fd, block, 1)) > 0) {
+        filled += written;
+    }
+    return filled;
+}
+
+static void discard(int fd, size_t bytes) {
+    static char block[4096];
+    while (bytes > 0) {
+        ssize_t got = read(fd, block, bytes < sizeof(block) ? bytes : sizeof(block));
+        if (got <= 0) {
+            return;
+        }
+        bytes -= got;
+    }
+}
+
+struct Backlog {
+    int fd;
+    size_t bytes;
+};
+
+// Frees the pipe a few milliseconds late, while a release waits for room
+static void* discardLater(void* arg) {
+    Backlog* backlog = (Backlog*) arg;
+    usleep(5000);
+    discard(backlog->fd, backlog->bytes);
+    return nullptr;
+}
+
+// A full device drops moves after a short wait but keeps a release until it gets through
+static void testBackpressure() {
+    int fds[2];
+    if (pipe(fds) != 0) {
+        perror("pipe");
+        failures++;
+        return;
+    }
+    fcntl(fds[1], F_SETFL, O_NONBLOCK);     // as /dev/uinput is opened
+
+    UinputDevice* device = uinput_attach_fd(fds[1]);
+    UinputStats stats;
+    struct input_event events[16];
+
+    // a first touch that doesn't fit is dropped, the next DOWN starts the touch again
+    size_t filled = fillPipe(fds[1]);
+    uinput_inject(device, OP_DOWN, 100, 200, 0);
+    uinput_get_stats(device, &stats);
+    CHECK(stats.droppedReports == 1);
+    CHECK(stats.retriedReports == 1);
+    discard(fds[0], filled);
+
+    uinput_inject(device, OP_DOWN, 100, 200, 0);
+    int count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 6);
+    CHECK(events[0].code == ABS_MT_TRACKING_ID && events[0].value != -1);
+
+    // after a dropped move both axes are sent again
+    filled = fillPipe(fds[1]);
+    uinput_inject(device, OP_DOWN, 101, 201, 0);
+    discard(fds[0], filled);
+    uinput_inject(device, OP_DOWN, 101, 201, 0);
+    count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 4);
+    CHECK(events[0].code == ABS_MT_POSITION_X && events[0].value == 101);
+    CHECK(events[1].code == ABS_MT_POSITION_Y && events[1].value == 201);
+
+    // a release that times out goes ahead of the next report
+    filled = fillPipe(fds[1]);
+    uinput_inject(device, OP_UP, 0, 0, 0);
+    uinput_get_stats(device, &stats);
+    CHECK(stats.droppedReports == 3);
+    discard(fds[0], filled);
+
+    uinput_inject(device, OP_DOWN, 5, 5, 0);
+    count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 9);
+    CHECK(events[0].code == ABS_MT_TRACKING_ID && events[0].value == -1);
+    CHECK(events[2].type == EV_SYN);
+    CHECK(events[3].code == ABS_MT_TRACKING_ID && events[3].value != -1);
+
+    // a release waits for room within its budget
+    Backlog backlog = {fds[0], fillPipe(fds[1])};
+    pthread_t thread;
+    pthread_create(&thread, nullptr, discardLater, &backlog);
+    uinput_inject(device, OP_UP, 0, 0, 0);
+    pthread_join(thread, nullptr);
+
+    uinput_get_stats(device, &stats);
+    CHECK(stats.droppedReports == 3);
+    CHECK(stats.retriedReports == 4);
+    count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 3);
+    CHECK(events[0].code == ABS_MT_TRACKING_ID && events[0].value == -1);
+
+    uinput_close(device);
+    close(fds[0]);
+}
+
+// Without new input a refused release is sent by uinput_flush(), at the latest by uinput_close()
+static void testFlush() {
+    int fds[2];
+    if (pipe(fds) != 0) {
+        perror("pipe");
+        failures++;
+        return;
+    }
+    fcntl(fds[1], F_SETFL, O_NONBLOCK);
+
+    UinputDevice* device = uinput_attach_fd(fds[1]);
+    UinputStats stats;
+    struct input_event events[16];
+
+    uinput_inject(device, OP_DOWN, 10, 20, 0);
+    int count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 6);
+
+    size_t filled = fillPipe(fds[1]);
+    uinput_inject(device, OP_UP, 0, 0, 0);
+    CHECK(!uinput_flush(device));       // still full
+    discard(fds[0], filled);
+
+    CHECK(uinput_flush(device));
+    count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 3);
+    CHECK(events[0].code == ABS_MT_TRACKING_ID && events[0].value == -1);
+
+    // nothing pending, nothing written
+    uinput_get_stats(device, &stats);
+    long long writes = stats.writes;
+    CHECK(uinput_flush(device));
+    uinput_get_stats(device, &stats);
+    CHECK(stats.writes == writes);
+
+    uinput_inject(device, OP_DOWN, 10, 20, 0);
+    count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 6);
+    filled = fillPipe(fds[1]);
+    uinput_inject(device, OP_UP, 0, 0, 0);
+    discard(fds[0], filled);
+
+    uinput_close(device);
+    count = read(fds[0], events, sizeof(events)) / sizeof(struct input_event);
+    CHECK(count == 3);
+    CHECK(events[0].code == ABS_MT_TRACKING_ID && events[0].value == -1);
+    close(fds[0]);
+}
+
+int main() {
+    testReports();
+    testSeparateDevices();
+    testBackpressure();
+    testFlush();
+
+    if (failures > 0) {
+        fprintf(stderr, "%d checks failed\n", failures);
+        return 1;
+    }
+    printf("All uinput device tests passed\n");
+    return 0;
+}
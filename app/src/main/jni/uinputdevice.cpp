@@ -0,0 +1,389 @@
+//
+// Virtual touch screen created through uinput.  Shared by the android driver (restouchdrv)
+// and the linux daemon.
+//
+#include "uinputdevice.h"
+#include "framedecoder.h"
+#include "util.h"
+#include <linux/input.h>
+#include <linux/uinput.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/ioctl.h>
+#include <poll.h>
+#include <errno.h>
+#include <time.h>
+#include <cstring>
+
+#ifndef MSC_TIMESTAMP
+#define MSC_TIMESTAMP 0x05	// missing from older NDK headers
+#endif
+
+// Events of one report, written to uinput together and ended by MSC_TIMESTAMP and
+// SYN_REPORT.  The longest report is a first touch: tracking id, x, y and pressure.
+#define MAX_REPORT_EVENTS 8
+
+// How long a report may wait for uinput to take it, in milliseconds.  A move is superseded by
+// the next one soon enough, a release can't be and leaves the finger down if it is lost.
+#define MOVE_WRITE_BUDGET_MS	2
+#define LIFT_WRITE_BUDGET_MS	20
+
+// A virtual touch screen and its touch state.  Nothing is shared between devices, so each
+// can be driven from its own thread.
+struct UinputDevice {
+	int fd;				// uinput file descriptor
+	bool isTouching;
+	bool liftPending;	// a release was dropped and has to be sent before anything else
+	int prevXCoord;
+	int prevYCoord;
+
+	struct input_event report[MAX_REPORT_EVENTS];
+	int reportLength;
+	UinputStats stats;
+};
+
+static inline void report_add(UinputDevice* device, int type, int code, int value);
+static bool report_submit(UinputDevice* device, int64_t timeNs, int budgetMs);
+static void send_lift(UinputDevice* device, int64_t timeNs);
+
+const int trackingID = 9000;
+
+#define DEVICE_NAME "ArduinoTouchScreen"
+
+// TODO: this is an arbitrary pressure for initial testing, once the app is working 
+//		 we will attempt to use pressure calculated from the screen
+const int pressure = 50;		
+
+/* Creates the device with UI_DEV_SETUP and UI_ABS_SETUP, which can give each axis a
+ * resolution.  Returns false if the running kernel's uinput predates them (version 5, linux
+ * 4.5), the caller then falls back to uinput_user_dev.
+ */
+static bool setup_device(int fd, int screenSizeX, int screenSizeY, const UinputAxis* axisX,
+						 const UinputAxis* axisY) {
+#if defined(UI_DEV_SETUP) && defined(UI_ABS_SETUP) && defined(UI_GET_VERSION)
+	unsigned int version = 0;
+	if (ioctl(fd, UI_GET_VERSION, &version) < 0 || version < 5) {
+		return false;
+	}
+
+	struct uinput_setup setup;
+	memset(&setup, 0, sizeof(setup));
+	strncpy(setup.name, DEVICE_NAME, UINPUT_MAX_NAME_SIZE - 1);
+	setup.id.version = 4;
+	setup.id.bustype = BUS_USB;
+	if (ioctl(fd, UI_DEV_SETUP, &setup) < 0) {
+		return false;
+	}
+
+	static const UinputAxis none = {0, 0, 0};
+	struct AxisRange {
+		int code;
+		int max;
+		const UinputAxis* axis;
+	};
+	const AxisRange ranges[] = {
+		{ABS_MT_SLOT, 9, &none},				// track up to 9 fingers
+		{ABS_MT_TOUCH_MAJOR, 15, &none},
+		{ABS_MT_POSITION_X, screenSizeX - 1, axisX},
+		{ABS_MT_POSITION_Y, screenSizeY - 1, axisY},
+		{ABS_MT_TRACKING_ID, 65535, &none},
+		{ABS_MT_PRESSURE, 255, &none},
+	};
+
+	for (const AxisRange& range : ranges) {
+		struct uinput_abs_setup abs;
+		memset(&abs, 0, sizeof(abs));
+		abs.code = range.code;
+		abs.absinfo.minimum = 0;
+		abs.absinfo.maximum = range.max;
+		abs.absinfo.fuzz = range.axis->fuzz;
+		abs.absinfo.flat = range.axis->flat;
+		abs.absinfo.resolution = range.axis->resolution;
+		if (ioctl(fd, UI_ABS_SETUP, &abs) < 0) {
+			return false;
+		}
+	}
+	return true;
+#else
+	return false;
+#endif
+}
+
+// Creates the device by writing a uinput_user_dev, which has no resolution
+static bool setup_legacy_device(int fd, int screenSizeX, int screenSizeY,
+								const UinputAxis* axisX, const UinputAxis* axisY) {
+	struct uinput_user_dev uinp;
+
+	// configure touch device event properties
+	memset(&uinp, 0, sizeof(uinp));
+	strncpy(uinp.name, DEVICE_NAME, UINPUT_MAX_NAME_SIZE - 1);
+	uinp.id.version = 4;
+	uinp.id.bustype = BUS_USB;
+	uinp.absmin[ABS_MT_SLOT] = 0;
+	uinp.absmax[ABS_MT_SLOT] = 9; // track up to 9 fingers
+	uinp.absmin[ABS_MT_TOUCH_MAJOR] = 0;
+	uinp.absmax[ABS_MT_TOUCH_MAJOR] = 15;
+	uinp.absmin[ABS_MT_POSITION_X] = 0; // screen dimension
+	uinp.absmax[ABS_MT_POSITION_X] = (int)screenSizeX - 1; // screen dimension
+	uinp.absfuzz[ABS_MT_POSITION_X] = axisX->fuzz;
+	uinp.absflat[ABS_MT_POSITION_X] = axisX->flat;
+	uinp.absmin[ABS_MT_POSITION_Y] = 0; // screen dimension
+	uinp.absmax[ABS_MT_POSITION_Y] = (int)screenSizeY - 1; // screen dimension
+	uinp.absfuzz[ABS_MT_POSITION_Y] = axisY->fuzz;
+	uinp.absflat[ABS_MT_POSITION_Y] = axisY->flat;
+	uinp.absmin[ABS_MT_TRACKING_ID] = 0;
+	uinp.absmax[ABS_MT_TRACKING_ID] = 65535;
+	uinp.absmin[ABS_MT_PRESSURE] = 0;
+	uinp.absmax[ABS_MT_PRESSURE] = 255;
+
+	return write(fd, &uinp, sizeof(uinp)) == (ssize_t) sizeof(uinp);
+}
+
+/* Configures and creates the device on an open /dev/uinput.  Returns false if the device
+ * could not be created.
+ */
+static bool create_device(int uinp_fd, int screenSizeX, int screenSizeY,
+						  const UinputAxis* axisX, const UinputAxis* axisY) {
+
+	// Setup the uinput device
+	int ret = 0;
+	ret = ret | ioctl(uinp_fd, UI_SET_EVBIT, EV_KEY);
+	ret = ret | ioctl(uinp_fd, UI_SET_EVBIT, EV_REL);
+	ret = ret | ioctl(uinp_fd, UI_SET_EVBIT, EV_SYN);
+
+	// Capture time of each report
+	ret = ret | ioctl(uinp_fd, UI_SET_EVBIT, EV_MSC);
+	ret = ret | ioctl(uinp_fd, UI_SET_MSCBIT, MSC_TIMESTAMP);
+    
+	// Touch
+	ret = ret | ioctl (uinp_fd, UI_SET_EVBIT,  EV_ABS);
+	ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_SLOT);
+	ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_TOUCH_MAJOR);
+	ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_POSITION_X);
+	ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_POSITION_Y);
+	ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_TRACKING_ID);
+	ret = ret | ioctl (uinp_fd, UI_SET_ABSBIT, ABS_MT_PRESSURE);
+	ret = ret | ioctl (uinp_fd, UI_SET_PROPBIT, INPUT_PROP_DIRECT);
+
+        if (ret < 0) {
+        LOGE("Unable to ioctl to device");
+        	return false;
+        }
+
+	// The kernel smooths each axis with its fuzz before anything reads the device
+	if (!setup_device(uinp_fd, screenSizeX, screenSizeY, axisX, axisY)) {
+		LOGI("uinput predates UI_DEV_SETUP, axes are set up without a resolution");
+		if (!setup_legacy_device(uinp_fd, screenSizeX, screenSizeY, axisX, axisY)) {
+			LOGE("Unable to set up uinput device");
+			return false;
+		}
+	}
+
+	/* Create input device into input sub-system */
+	if (ioctl(uinp_fd, UI_DEV_CREATE) < 0) {
+		LOGE("Unable to create uinput device");
+		return false;
+	}
+
+	return true;
+}
+
+UinputDevice* uinput_open(int screenSizeX, int screenSizeY, const UinputAxis* axisX,
+						  const UinputAxis* axisY) {
+
+	int fd = open("/dev/uinput", O_WRONLY|O_NONBLOCK);
+	if (fd == -1) {
+		LOGE("Unable to open uinput device");
+		return nullptr;
+	}
+
+	if (!create_device(fd, screenSizeX, screenSizeY, axisX, axisY)) {
+		close(fd);
+		return nullptr;
+	}
+	return uinput_attach_fd(fd);
+}
+
+UinputDevice* uinput_attach_fd(int fd) {
+	UinputDevice* device = new UinputDevice();	// zeroed, nothing touching
+	device->fd = fd;
+	return device;
+}
+
+void uinput_get_stats(const UinputDevice* device, UinputStats* out) {
+	*out = device->stats;
+}
+
+void uinput_copy_stats(const UinputDevice* device, int64_t* values) {
+	values[UINPUT_STAT_WRITES] = device->stats.writes;
+	values[UINPUT_STAT_EVENTS] = device->stats.events;
+	values[UINPUT_STAT_FAILED_WRITES] = device->stats.failedWrites;
+	values[UINPUT_STAT_RETRIED] = device->stats.retriedReports;
+	values[UINPUT_STAT_DROPPED] = device->stats.droppedReports;
+}
+
+void uinput_close(UinputDevice* device) {
+
+	if (device == nullptr) {
+		return;
+	}
+
+	// the finger would otherwise stay down until the device is gone
+	if (!uinput_flush(device)) {
+		LOGE("Release still pending when closing uinput");
+	}
+	ioctl(device->fd, UI_DEV_DESTROY);
+	close(device->fd);
+	delete device;
+}
+
+// Sends the report for a touch in device coordinates
+void uinput_inject(UinputDevice* device, int opcode, int x, int y, int64_t timeNs) {
+
+	// a release that didn't get through goes first, whatever comes next
+	if (device->liftPending) {
+		send_lift(device, timeNs);
+	}
+
+	if (opcode == OP_DOWN) {
+
+		if (!device->isTouching) {		// first touch
+			report_add(device, EV_ABS, ABS_MT_TRACKING_ID, trackingID);
+			report_add(device, EV_ABS, ABS_MT_POSITION_X, x);
+			report_add(device, EV_ABS, ABS_MT_POSITION_Y, y);
+			report_add(device, EV_ABS, ABS_MT_PRESSURE, pressure);
+
+			// if dropped the next DOWN starts the touch again
+			device->isTouching = report_submit(device, timeNs, MOVE_WRITE_BUDGET_MS);
+
+			device->prevXCoord = x;
+			device->prevYCoord = y;
+
+		}
+		else {					// holding
+			// no dead band, the kernel smooths small changes with the axes' fuzz
+			if (x != device->prevXCoord) {
+				report_add(device, EV_ABS, ABS_MT_POSITION_X, x);
+				device->prevXCoord = x;
+			}
+
+			if (y != device->prevYCoord) {
+				report_add(device, EV_ABS, ABS_MT_POSITION_Y, y);
+				device->prevYCoord = y;
+			}
+
+			// only sync if something has changed
+			if (device->reportLength > 0
+					&& !report_submit(device, timeNs, MOVE_WRITE_BUDGET_MS)) {
+				// the next move sends both axes again
+				device->prevXCoord = -1;
+				device->prevYCoord = -1;
+			}
+		}
+	}
+	else if (opcode == OP_UP) {
+		// a touch that never got through needs no release
+		if (device->isTouching) {
+			device->isTouching = false;
+			send_lift(device, timeNs);
+		}
+	}
+}
+
+bool uinput_flush(UinputDevice* device) {
+	if (device->liftPending) {
+		send_lift(device, 0);
+	}
+	return !device->liftPending;
+}
+
+// Ends the touch, remembering to try again if uinput doesn't take the release
+static void send_lift(UinputDevice* device, int64_t timeNs) {
+	report_add(device, EV_ABS, ABS_MT_TRACKING_ID, -1);
+	device->liftPending = !report_submit(device, timeNs, LIFT_WRITE_BUDGET_MS);
+}
+
+static inline void report_add(UinputDevice* device, int type, int code, int value) {
+	struct input_event& ev = device->report[device->reportLength++];
+	ev.type = type;
+	ev.code = code;
+	ev.value = value;
+}
+
+int64_t uinput_now() {
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+/* Ends the pending report with its capture time and SYN_REPORT, and writes all of its events
+ * with one write().  Every event carries the capture time, and MSC_TIMESTAMP repeats it in
+ * microseconds, wrapping at 32 bits as the kernel documents.
+ *
+ * If uinput is busy or takes only part of the report, the rest is written again as soon as
+ * the device is writable, for up to budgetMs.  Returns false if the report was dropped.
+ */
+static bool report_submit(UinputDevice* device, int64_t timeNs, int budgetMs) {
+	if (timeNs <= 0) {
+		timeNs = uinput_now();
+	}
+
+	report_add(device, EV_MSC, MSC_TIMESTAMP, (int) (uint32_t) (timeNs / 1000));
+	report_add(device, EV_SYN, SYN_REPORT, 0);
+
+	struct timeval time;
+	time.tv_sec = (time_t) (timeNs / 1000000000LL);
+	time.tv_usec = (suseconds_t) ((timeNs % 1000000000LL) / 1000);
+	for (int i = 0; i < device->reportLength; i++) {
+		device->report[i].time = time;
+	}
+
+	const char* data = (const char*) device->report;
+	ssize_t remaining = device->reportLength * sizeof(struct input_event);
+	device->reportLength = 0;
+
+	int64_t deadline = 0;
+	bool retried = false;
+	while (true) {
+		ssize_t written = write(device->fd, data, remaining);
+		device->stats.writes++;
+
+		if (written >= 0) {
+			device->stats.events += written / sizeof(struct input_event);
+			if (written == remaining) {
+				break;
+			}
+			data += written;
+			remaining -= written;
+		}
+		else if (errno == EINTR) {
+			continue;
+		}
+		else if (errno != EAGAIN) {
+			device->stats.failedWrites++;
+			device->stats.droppedReports++;
+			LOGE("Unable to write to uinput, errno %d", errno);
+			return false;
+		}
+
+		// short or refused, wait for room while the budget lasts
+		device->stats.failedWrites++;
+		int64_t now = uinput_now();
+		if (deadline == 0) {
+			deadline = now + budgetMs * 1000000LL;
+		}
+		int waitMs = (int) ((deadline - now + 999999) / 1000000);
+		if (waitMs <= 0) {
+			device->stats.droppedReports++;
+			return false;
+		}
+
+		struct pollfd pfd = {device->fd, POLLOUT, 0};
+		poll(&pfd, 1, waitMs);
+		if (!retried) {
+			retried = true;
+			device->stats.retriedReports++;
+		}
+	}
+	return true;
+}
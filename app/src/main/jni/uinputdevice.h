@@ -0,0 +1,103 @@
+//
+// Virtual touch screen created through uinput
+//
+
+#ifndef RESREMOTE_UINPUTDEVICE_H
+#define RESREMOTE_UINPUTDEVICE_H
+
+// Rotations, matching android.view.Surface.ROTATION_*
+#define ROTATION_0      0
+#define ROTATION_90     1
+#define ROTATION_180    2
+#define ROTATION_270    3
+
+#include <stdint.h>
+
+struct UinputStats {
+    long long writes;           // write() calls, one per report unless retried
+    long long events;           // input_events written, including SYN_REPORT
+    long long failedWrites;     // writes that failed or were short
+    long long retriedReports;   // reports that needed more than one write()
+    long long droppedReports;   // reports not fully written within their budget
+};
+
+// Indices of the values copied by uinput_copy_stats, matching NativeInput.UINPUT_STAT_*
+#define UINPUT_STAT_WRITES          0
+#define UINPUT_STAT_EVENTS          1
+#define UINPUT_STAT_FAILED_WRITES   2
+#define UINPUT_STAT_RETRIED         3
+#define UINPUT_STAT_DROPPED         4
+#define UINPUT_STAT_COUNT           5
+
+// Filtering and scale of a position axis, as in struct input_absinfo
+struct UinputAxis {
+    int fuzz;           // evdev drops changes < fuzz / 2, smooths changes < 2 * fuzz
+    int flat;           // dead zone around the center, 0 for a touch screen
+    int resolution;     // pixels per mm, 0 if unknown
+};
+
+// One virtual touch screen, opaque to callers.  A device must only be used by one thread
+// at a time, separate devices share nothing.
+struct UinputDevice;
+
+// Creates a virtual device, returns nullptr if uinput can't be opened or configured
+UinputDevice* uinput_open(int screenSizeX, int screenSizeY, const UinputAxis* axisX,
+                          const UinputAxis* axisY);
+
+/* Sends the events for a DOWN or UP opcode, in device coordinates.  timeNs is when the point
+ * was captured, in CLOCK_MONOTONIC nanoseconds (the clock of System.nanoTime()), or 0 for now.
+ *
+ * The device is non-blocking, a report that uinput refuses (EAGAIN) or takes only part of is
+ * retried for a short budget.  A release gets a longer budget than a move, and if it is still
+ * dropped it is sent again before the next report or by uinput_flush(), so a finger is never
+ * left down.
+ */
+void uinput_inject(UinputDevice* device, int opcode, int x, int y, int64_t timeNs);
+
+/* Sends a release that uinput refused earlier, if there is one.  Without new input nothing
+ * else retries it, so callers flush whenever the input goes quiet, e.g. on a read timeout.
+ * Returns true if nothing is left pending.
+ */
+bool uinput_flush(UinputDevice* device);
+
+// Current CLOCK_MONOTONIC time in nanoseconds
+int64_t uinput_now();
+
+// Flushes a pending release, then destroys the device and frees it.  Does nothing for nullptr
+void uinput_close(UinputDevice* device);
+
+// Sends reports to an already open file descriptor instead of a new uinput device.  Used by
+// the host tests to inject into a pipe; uinput_close() closes it.
+UinputDevice* uinput_attach_fd(int fd);
+
+void uinput_get_stats(const UinputDevice* device, UinputStats* stats);
+
+// Copies the statistics into UINPUT_STAT_COUNT values indexed by the UINPUT_STAT_ constants
+void uinput_copy_stats(const UinputDevice* device, int64_t* values);
+
+/* Translates a point from the touch screen to device coordinates for a display rotation.
+ * Matches com.arksine.resremote.TouchTransform.
+ */
+static inline void transform_point(int rotation, int xMax, int yMax, int x, int y,
+                                   int* deviceX, int* deviceY) {
+    switch (rotation) {
+        case ROTATION_180:      // portrait flipped (x and y are inverted)
+            *deviceX = xMax - x;
+            *deviceY = yMax - y;
+            break;
+        case ROTATION_90:       // landscape normal
+            *deviceY = x;
+            *deviceX = xMax - y;
+            break;
+        case ROTATION_270:      // landscape inverted
+            *deviceY = yMax - x;
+            *deviceX = y;
+            break;
+        default:                // portrait default
+            *deviceX = x;
+            *deviceY = y;
+            break;
+    }
+}
+
+#endif //RESREMOTE_UINPUTDEVICE_H
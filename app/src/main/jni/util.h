@@ -5,11 +5,20 @@
 #ifndef RESREMOTE_UTIL_H
 #define RESREMOTE_UTIL_H
 
+#define LOG_TAG "NativeInputJNI"
+
+#ifdef __ANDROID__
 #include <android/log.h>
 
-#define LOG_TAG "NativeInputJNI"
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+#else
+// host builds, used by the tests under jni/test
+#include <cstdio>
+
+#define LOGI(...) (fprintf(stderr, "I/" LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#define LOGE(...) (fprintf(stderr, "E/" LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#endif
 
 #define CLEAR(x) memset(&(x), 0, sizeof(x))
 
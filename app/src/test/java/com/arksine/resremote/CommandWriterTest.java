@@ -0,0 +1,236 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs CommandWriter against a serial device whose writes can be held up
+ */
+public class CommandWriterTest {
+
+    private static final long TIMEOUT = 1000;
+
+    // Records writes, each one blocks until the gate opens
+    private static class SlowSerial implements SerialHelper {
+        final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch firstWrite = new CountDownLatch(1);
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        volatile boolean fail = false;
+
+        @Override
+        public boolean writeBytes(byte[] data) {
+            firstWrite.countDown();
+            try {
+                gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            writes.add(new String(data));
+            return !fail;
+        }
+
+        @Override
+        public boolean writeString(String data) {
+            return writeBytes(data.getBytes());
+        }
+
+        @Override public ArrayList<String> enumerateDevices() {return null;}
+        @Override public ConnectionFuture connectDevice(String id, DeviceReadyListener l) {return null;}
+        @Override public void disconnect() {}
+        @Override public void interruptRead() {}
+        @Override public boolean isDeviceConnected() {return true;}
+        @Override public byte readByte() {return 0;}
+        @Override public int read(byte[] dst, int off, int len, long timeoutMs) {return 0;}
+    }
+
+    private static class RecordingListener implements CommandWriter.ResponseListener {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done;
+
+        RecordingListener(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onResponse(int requestId, FrameDecoder response) {
+            events.add(requestId + ":" + response.getDesc());
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(int requestId) {
+            events.add(requestId + ":failed");
+            done.countDown();
+        }
+    }
+
+    private static FrameDecoder decode(String frame) {
+        FrameDecoder decoder = new FrameDecoder();
+        for (byte b : frame.getBytes()) {
+            decoder.feed(b);
+        }
+        return decoder;
+    }
+
+    @Test
+    public void submit_doesNotWaitForSlowWrites() throws Exception {
+        SlowSerial serial = new SlowSerial();
+        serial.gate = new CountDownLatch(1);
+        CommandWriter writer = new CommandWriter(serial);
+        writer.start();
+        try {
+            long start = System.nanoTime();
+            assertTrue(writer.submit(CommandWriter.encode("<START>")) != CommandWriter.NO_REQUEST);
+            assertTrue(writer.submit(CommandWriter.encode("<PING>")) != CommandWriter.NO_REQUEST);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+            serial.gate.countDown();
+        } finally {
+            writer.stop(TIMEOUT);
+        }
+        assertEquals(2, serial.writes.size());
+        assertEquals("<START>", serial.writes.get(0));
+        assertEquals("<PING>", serial.writes.get(1));
+    }
+
+    @Test
+    public void submit_coalescesCommandsStillQueued() throws Exception {
+        SlowSerial serial = new SlowSerial();
+        serial.gate = new CountDownLatch(1);
+        CommandWriter writer = new CommandWriter(serial);
+        writer.start();
+        byte[] ping = CommandWriter.encode("<PING>");
+        try {
+            writer.submit(CommandWriter.encode("<START>"));
+            assertTrue(serial.firstWrite.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // START is being written, both PINGs wait behind it
+            int first = writer.submit(ping);
+            int second = writer.submit(CommandWriter.encode("<PING>"));
+            assertEquals(first, second);
+            assertEquals(1, writer.getCoalescedCount());
+
+            serial.gate.countDown();
+        } finally {
+            writer.stop(TIMEOUT);
+        }
+        assertEquals(2, serial.writes.size());
+    }
+
+    @Test
+    public void submit_rejectsWhenQueueFull() throws Exception {
+        SlowSerial serial = new SlowSerial();
+        serial.gate = new CountDownLatch(1);
+        CommandWriter writer = new CommandWriter(serial, 2, TIMEOUT);
+        writer.start();
+        try {
+            writer.submit(CommandWriter.encode("<START>"));
+            assertTrue(serial.firstWrite.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            assertTrue(writer.submit(CommandWriter.encode("<A>")) != CommandWriter.NO_REQUEST);
+            assertTrue(writer.submit(CommandWriter.encode("<B>")) != CommandWriter.NO_REQUEST);
+            assertEquals(CommandWriter.NO_REQUEST, writer.submit(CommandWriter.encode("<C>")));
+            assertEquals(1, writer.getRejectedCount());
+
+            serial.gate.countDown();
+        } finally {
+            writer.stop(TIMEOUT);
+        }
+        assertEquals(CommandWriter.NO_REQUEST, writer.submit(CommandWriter.encode("<D>")));
+    }
+
+    @Test
+    public void onFrame_matchesResponsesToRequestsInFlight() throws Exception {
+        SlowSerial serial = new SlowSerial();
+        CommandWriter writer = new CommandWriter(serial);
+        RecordingListener listener = new RecordingListener(2);
+        writer.start();
+        try {
+            int baud = writer.submit(CommandWriter.encode("<BAUD:115200>"),
+                    FrameDecoder.OP_LOG, "BAUD_OK", listener);
+            int ping = writer.submit(CommandWriter.encode("<PING>"),
+                    FrameDecoder.OP_LOG, "PONG", listener);
+            while (serial.writes.size() < 2) {
+                Thread.sleep(1);
+            }
+
+            // an unrelated log frame and a point are not answers
+            assertFalse(writer.onFrame(decode("<LOG:Device ready>")));
+            assertFalse(writer.onFrame(decode("<DOWN:1:2:3>")));
+            assertTrue(writer.onFrame(decode("<LOG:PONG>")));
+            assertTrue(writer.onFrame(decode("<LOG:BAUD_OK>")));
+            assertFalse(writer.onFrame(decode("<LOG:PONG>")));
+
+            assertTrue(listener.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(ping + ":PONG", listener.events.get(0));
+            assertEquals(baud + ":BAUD_OK", listener.events.get(1));
+            assertFalse(writer.isPending(ping));
+        } finally {
+            writer.stop(TIMEOUT);
+        }
+    }
+
+    @Test
+    public void onFrame_answersCapsReplyThatParsesAsPoint() throws Exception {
+        SlowSerial serial = new SlowSerial();
+        CommandWriter writer = new CommandWriter(serial);
+        final int[] caps = new int[3];
+        RecordingListener listener = new RecordingListener(1) {
+            @Override
+            public void onResponse(int requestId, FrameDecoder response) {
+                caps[0] = response.getX();
+                caps[1] = response.getY();
+                caps[2] = response.getZ();
+                super.onResponse(requestId, response);
+            }
+        };
+        writer.start();
+        try {
+            int request = writer.submit(CommandWriter.encode("<CAPS>"), FrameDecoder.OP_CAPS,
+                    null, listener);
+            while (serial.writes.isEmpty()) {
+                Thread.sleep(1);
+            }
+
+            FrameDecoder reply = decode("<CAPS:3:200:10>");
+            assertTrue(reply.isPoint());
+            assertTrue(writer.onFrame(reply));
+
+            assertTrue(listener.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertArrayEquals(new int[] {3, 200, 10}, caps);
+            assertFalse(writer.isPending(request));
+        } finally {
+            writer.stop(TIMEOUT);
+        }
+    }
+
+    @Test
+    public void requestsFailWithoutResponseOrWrite() throws Exception {
+        SlowSerial serial = new SlowSerial();
+        CommandWriter writer = new CommandWriter(serial, 4, 50);
+        RecordingListener listener = new RecordingListener(2);
+        writer.start();
+        try {
+            int caps = writer.submit(CommandWriter.encode("<CAPS>"), FrameDecoder.OP_CAPS,
+                    null, listener);
+            assertTrue(listener.done.getCount() == 2);
+
+            serial.fail = true;
+            int start = writer.submit(CommandWriter.encode("<START>"),
+                    CommandWriter.NO_RESPONSE, null, listener);
+
+            assertTrue(listener.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(listener.events.contains(caps + ":failed"));
+            assertTrue(listener.events.contains(start + ":failed"));
+        } finally {
+            writer.stop(TIMEOUT);
+        }
+    }
+}
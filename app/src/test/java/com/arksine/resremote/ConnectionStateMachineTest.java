@@ -0,0 +1,146 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the connection state transitions, and drives rapid start/stop cycles through the
+ * same pattern ArduinoCom uses: an owner thread reading a ByteRingBuffer until another
+ * thread drains the connection and interrupts the read.
+ */
+public class ConnectionStateMachineTest {
+
+    // Far longer than CLOSE_TIMEOUT, a stop that waited for a read to time out fails the test
+    private static final long READ_TIMEOUT = 5000;
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    @Test
+    public void transitions_areExclusive() throws Exception {
+        ConnectionStateMachine state = new ConnectionStateMachine();
+        assertEquals(ConnectionStateMachine.CONNECTING, state.getState());
+
+        assertTrue(state.transition(ConnectionStateMachine.CONNECTING,
+                ConnectionStateMachine.RUNNING));
+        assertFalse(state.transition(ConnectionStateMachine.CONNECTING,
+                ConnectionStateMachine.RUNNING));
+        assertTrue(state.isRunning());
+
+        assertTrue(state.drain());
+        assertFalse(state.drain());
+        assertEquals(ConnectionStateMachine.DRAINING, state.getState());
+
+        state.close();
+        assertFalse(state.drain());
+        assertTrue(state.awaitState(ConnectionStateMachine.DRAINING, 0));
+        assertEquals("CLOSED", state.toString());
+    }
+
+    @Test
+    public void drain_stopsConnectionThatIsStillConnecting() throws Exception {
+        ConnectionStateMachine state = new ConnectionStateMachine();
+
+        assertTrue(state.drain());
+        assertFalse(state.transition(ConnectionStateMachine.CONNECTING,
+                ConnectionStateMachine.RUNNING));
+        assertFalse(state.awaitState(ConnectionStateMachine.CLOSED, 10));
+    }
+
+    @Test
+    public void close_wakesInterruptedRead() throws Exception {
+        final ByteRingBuffer buffer = new ByteRingBuffer(16);
+        final AtomicReference<Integer> result = new AtomicReference<>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(buffer.read(new byte[4], 0, 4, 10000));
+            }
+        });
+        reader.start();
+        Thread.sleep(20);
+
+        long start = System.nanoTime();
+        buffer.close();
+        reader.join(CLOSE_TIMEOUT);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(Integer.valueOf(-1), result.get());
+        assertTrue("read took " + elapsed + " ms to notice close", elapsed < CLOSE_TIMEOUT / 2);
+
+        buffer.reopen();
+        assertEquals(0, buffer.read(new byte[4], 0, 4, 1));
+    }
+
+    @Test
+    public void rapidStartStopCycles() throws Exception {
+        final int cycles = 500;
+        final Random random = new Random(17);
+
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            final ConnectionStateMachine state = new ConnectionStateMachine();
+            final ByteRingBuffer transport = new ByteRingBuffer(256);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+            // Owner: starts the connection, reads until drained, then tears down and closes
+            Thread owner = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (state.transition(ConnectionStateMachine.CONNECTING,
+                                ConnectionStateMachine.RUNNING)) {
+                            byte[] chunk = new byte[32];
+                            while (state.isRunning()) {
+                                if (transport.read(chunk, 0, chunk.length, READ_TIMEOUT) < 0) {
+                                    state.drain();
+                                }
+                            }
+                        }
+                        assertTrue(state.getState() == ConnectionStateMachine.DRAINING);
+                        state.close();
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            }, "Owner" + cycle);
+
+            // Producer: keeps the transport busy like a controller streaming points
+            final byte[] frame = "<DOWN:1:2:3>".getBytes();
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (state.getState() < ConnectionStateMachine.DRAINING) {
+                        transport.write(frame, 0, frame.length);
+                        Thread.yield();
+                    }
+                }
+            }, "Producer" + cycle);
+
+            owner.start();
+            producer.start();
+
+            // stop anywhere from before the owner starts running to well into reading
+            int delay = random.nextInt(3);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            state.drain();
+            transport.close();
+            boolean closed = state.awaitState(ConnectionStateMachine.CLOSED, CLOSE_TIMEOUT);
+
+            owner.join(CLOSE_TIMEOUT);
+            producer.join(CLOSE_TIMEOUT);
+            if (failure.get() != null) {
+                throw new AssertionError("cycle " + cycle + " failed", failure.get());
+            }
+            assertTrue("cycle " + cycle + " did not close", closed);
+            assertFalse(owner.isAlive());
+            assertFalse(producer.isAlive());
+        }
+    }
+}
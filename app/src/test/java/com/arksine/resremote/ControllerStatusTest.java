@@ -0,0 +1,110 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that log frames reach listeners as typed events without ever holding up the reader
+ */
+public class ControllerStatusTest {
+
+    private static final long TIMEOUT = 1000;
+
+    private static FrameDecoder decode(String frame) {
+        FrameDecoder decoder = new FrameDecoder();
+        for (byte b : frame.getBytes()) {
+            decoder.feed(b);
+        }
+        return decoder;
+    }
+
+    // Records events, the first one blocks until the gate opens
+    private static class GatedListener implements ControllerStatus.StatusListener {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch gate;
+        final CountDownLatch firstEvent = new CountDownLatch(1);
+
+        GatedListener(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void onStatus(int status, String message) {
+            firstEvent.countDown();
+            try {
+                gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            statuses.add(status);
+            messages.add(message);
+        }
+    }
+
+    @Test
+    public void classify_mapsKnownMessages() {
+        assertEquals(ControllerStatus.STATUS_NOT_CALIBRATED,
+                ControllerStatus.classify("Device not calibrated"));
+        assertEquals(ControllerStatus.STATUS_CALIBRATED,
+                ControllerStatus.classify("Device calibrated"));
+        assertEquals(ControllerStatus.STATUS_UNKNOWN_COMMAND,
+                ControllerStatus.classify("UKNOWN COMMAND BINARY"));
+        assertEquals(ControllerStatus.STATUS_MESSAGE, ControllerStatus.classify("OK"));
+    }
+
+    @Test
+    public void post_deliversTypedEvents() throws Exception {
+        ControllerStatus status = new ControllerStatus();
+        GatedListener listener = new GatedListener(new CountDownLatch(0));
+        status.addListener(listener);
+        status.start();
+
+        assertTrue(status.post(decode("<LOG:Device not calibrated>")));
+        assertTrue(status.post(decode("<LOG:Sketch Version-2>")));
+        status.stop();
+
+        assertEquals(2, listener.messages.size());
+        assertEquals(Integer.valueOf(ControllerStatus.STATUS_NOT_CALIBRATED),
+                listener.statuses.get(0));
+        assertEquals("Sketch Version-2", listener.messages.get(1));
+    }
+
+    @Test
+    public void post_dropsOldestWhenConsumerStalls() throws Exception {
+        ControllerStatus status = new ControllerStatus(4);
+        CountDownLatch gate = new CountDownLatch(1);
+        GatedListener listener = new GatedListener(gate);
+        status.addListener(listener);
+        status.start();
+
+        // the consumer is stuck in the listener with the first message
+        status.post(decode("<LOG:first>"));
+        assertTrue(listener.firstEvent.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // a chatty firmware, the reader must not wait for the consumer
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            status.post(decode("<LOG:message " + i + ">"));
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("posting took " + elapsed + " ms", elapsed < 500);
+        assertEquals(996, status.getDroppedCount());
+
+        gate.countDown();
+        status.stop();
+
+        // the newest messages survive
+        assertEquals(5, listener.messages.size());
+        assertEquals("first", listener.messages.get(0));
+        assertEquals("message 996", listener.messages.get(1));
+        assertEquals("message 999", listener.messages.get(4));
+    }
+}
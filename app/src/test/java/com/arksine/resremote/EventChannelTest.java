@@ -0,0 +1,69 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the buffer layout the native driver reads, playing the native side by hand
+ */
+public class EventChannelTest {
+
+    // Consumes every published record like event_channel_consume, returns them as text
+    private static String consume(EventChannel channel) {
+        ByteBuffer buffer = channel.getBuffer();
+        int head = buffer.getInt(EventChannel.HEAD_OFFSET);
+        int tail = buffer.getInt(EventChannel.TAIL_OFFSET);
+
+        StringBuilder events = new StringBuilder();
+        for (; head != tail; head++) {
+            int record = EventChannel.HEADER_SIZE
+                    + (head & (channel.getCapacity() - 1)) * EventChannel.RECORD_SIZE;
+            events.append(buffer.getInt(record)).append(':')
+                    .append(buffer.getInt(record + 4)).append(':')
+                    .append(buffer.getInt(record + 8)).append('@')
+                    .append(buffer.getLong(record + 16)).append(' ');
+        }
+        buffer.putInt(EventChannel.HEAD_OFFSET, head);
+        return events.toString().trim();
+    }
+
+    @Test
+    public void buffer_isDirectNativeOrderAndSized() {
+        EventChannel channel = new EventChannel(5);
+        assertEquals(8, channel.getCapacity());
+        assertTrue(channel.getBuffer().isDirect());
+        assertEquals(ByteOrder.nativeOrder(), channel.getBuffer().order());
+        assertEquals(EventChannel.HEADER_SIZE + 8 * EventChannel.RECORD_SIZE,
+                channel.getBuffer().capacity());
+    }
+
+    @Test
+    public void put_refusesRecordsWhenRingIsFull() {
+        EventChannel channel = new EventChannel(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(channel.put(FrameDecoder.OP_DOWN, i, i, 0, i * 1000L));
+        }
+        assertFalse(channel.put(FrameDecoder.OP_UP, 9, 9, 0, 9000L));
+        assertEquals(4, channel.getPending());
+
+        assertEquals("1:0:0@0 1:1:1@1000 1:2:2@2000 1:3:3@3000", consume(channel));
+        assertEquals(0, channel.getPending());
+        assertTrue(channel.put(FrameDecoder.OP_UP, 9, 9, 0, 9000L));
+    }
+
+    @Test
+    public void records_wrapAroundTheRing() {
+        EventChannel channel = new EventChannel(4);
+        for (int round = 0; round < 10; round++) {
+            channel.put(FrameDecoder.OP_DOWN, round, 1, 0, round);
+            channel.put(FrameDecoder.OP_DOWN, round, 2, 0, round);
+            channel.put(FrameDecoder.OP_UP, round, 3, 0, Long.MAX_VALUE - round);
+            assertEquals("1:" + round + ":1@" + round + " 1:" + round + ":2@" + round
+                    + " 2:" + round + ":3@" + (Long.MAX_VALUE - round), consume(channel));
+        }
+    }
+}
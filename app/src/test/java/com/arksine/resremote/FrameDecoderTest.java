@@ -0,0 +1,238 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks text and binary frame decoding, resync and the corruption counters
+ */
+public class FrameDecoderTest {
+
+    // Feeds every byte, returns the result of the last one
+    private static int feed(FrameDecoder decoder, byte[] bytes) {
+        int result = FrameDecoder.FRAME_INCOMPLETE;
+        for (byte b : bytes) {
+            result = decoder.feed(b);
+        }
+        return result;
+    }
+
+    private static int feed(FrameDecoder decoder, String text) {
+        return feed(decoder, text.getBytes());
+    }
+
+    // Builds a binary frame of x, y, z triples with a valid CRC
+    private static byte[] binaryFrame(int opcode, int sequence, int... samples) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(opcode);
+        frame.write(sequence);
+        frame.write(samples.length / 3);
+        for (int value : samples) {
+            frame.write(value & 0xFF);
+            frame.write((value >> 8) & 0xFF);
+        }
+        byte[] data = frame.toByteArray();
+        frame.write(FrameDecoder.crc8(data, data.length));
+
+        byte[] body = frame.toByteArray();
+        byte[] bytes = new byte[body.length + 1];
+        bytes[0] = FrameDecoder.BINARY_SYNC;
+        System.arraycopy(body, 0, bytes, 1, body.length);
+        return bytes;
+    }
+
+    @Test
+    public void text_decodesPointAndLogFrames() {
+        FrameDecoder decoder = new FrameDecoder();
+
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<DOWN:120:-5:300>"));
+        assertEquals(FrameDecoder.OP_DOWN, decoder.getOpcode());
+        assertTrue(decoder.isPoint());
+        assertEquals(1, decoder.getSampleCount());
+        assertEquals(120, decoder.getX());
+        assertEquals(-5, decoder.getY());
+        assertEquals(300, decoder.getZ());
+
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "noise<LOG:Device calibrated>"));
+        assertEquals(FrameDecoder.OP_LOG, decoder.getOpcode());
+        assertFalse(decoder.isPoint());
+        assertEquals("Device calibrated", decoder.getDesc());
+
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<BEEP:1>"));
+        assertEquals(FrameDecoder.OP_UNKNOWN, decoder.getOpcode());
+        assertEquals("BEEP", decoder.getCommandName());
+    }
+
+    @Test
+    public void text_countsOversizedAndUnparsableFrames() {
+        FrameDecoder decoder = new FrameDecoder();
+
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, "<ABCDEFGHIJKLMNOPQ"));
+        StringBuilder payload = new StringBuilder("<LOG:");
+        // one byte more than the 96 the decoder keeps
+        for (int i = 0; i <= 96; i++) {
+            payload.append('x');
+        }
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, payload.toString()));
+        assertEquals(2, decoder.getOversizedFrames());
+
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, "<DOWN>"));
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, "<DOWN:1:x:3>"));
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, "<DOWN:1:2>"));
+        assertEquals(3, decoder.getUnparsableFrames());
+
+        // the decoder still works afterwards
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<UP:0:0:0>"));
+        decoder.resetStatistics();
+        assertEquals(0, decoder.getOversizedFrames());
+        assertEquals(0, decoder.getUnparsableFrames());
+    }
+
+    @Test
+    public void text_threeNumericFieldsArePointsWhateverTheCommand() {
+        // a CAPS reply parses like a point, consumers have to check the opcode
+        FrameDecoder decoder = new FrameDecoder();
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<CAPS:3:2:115200>"));
+        assertTrue(decoder.isPoint());
+        assertEquals(FrameDecoder.OP_CAPS, decoder.getOpcode());
+        assertEquals(3, decoder.getX());
+        assertEquals(115200, decoder.getZ());
+    }
+
+    @Test
+    public void text_resyncsOnStrayStartMarkers() {
+        FrameDecoder decoder = new FrameDecoder();
+
+        // the end of the first frame was lost
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, "<DOWN:1:2<"));
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "UP:3:4:0>"));
+        assertEquals(FrameDecoder.OP_UP, decoder.getOpcode());
+        assertEquals(3, decoder.getX());
+
+        // once binary frames are on, a binary sync byte also ends a text frame
+        decoder.setBinaryEnabled(true);
+        feed(decoder, "<DOWN:5:6");
+        assertEquals(FrameDecoder.FRAME_INVALID, decoder.feed(FrameDecoder.BINARY_SYNC));
+        assertTrue(decoder.isInFrame());
+        decoder.reset();
+
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<DOWN:7:8:0>"));
+        assertEquals(7, decoder.getX());
+        assertEquals(2, decoder.getTruncatedFrames());
+    }
+
+    @Test
+    public void text_ignoresBinarySyncUntilBinaryIsEnabled() {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] noise = {FrameDecoder.BINARY_SYNC};
+
+        // line noise between text frames must not start a binary frame
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<DOWN:1:2:3>"));
+        assertEquals(FrameDecoder.FRAME_INCOMPLETE, feed(decoder, noise));
+        assertFalse(decoder.isInFrame());
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<UP:4:5:6>"));
+        assertEquals(FrameDecoder.OP_UP, decoder.getOpcode());
+        assertEquals(4, decoder.getX());
+
+        // nor cut a text frame short, it is just an invalid field byte
+        feed(decoder, "<DOWN:7:");
+        assertEquals(FrameDecoder.FRAME_INCOMPLETE, feed(decoder, noise));
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, "8>"));
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<DOWN:7:8:9>"));
+        assertEquals(0, decoder.getTruncatedFrames());
+    }
+
+    @Test
+    public void binary_abortsOnStartMarkerInHeader() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setBinaryEnabled(true);
+        byte[] noise = {FrameDecoder.BINARY_SYNC};
+
+        // a noise sync byte right before a text frame
+        feed(decoder, noise);
+        assertEquals(FrameDecoder.FRAME_INVALID, decoder.feed(FrameDecoder.FRAME_START));
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "LOG:PONG>"));
+        assertEquals("PONG", decoder.getDesc());
+        assertEquals(1, decoder.getTruncatedFrames());
+
+        // '<' is a valid sample byte
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder,
+                binaryFrame(FrameDecoder.OP_DOWN, '<', '<', '<', '<')));
+        assertEquals('<', decoder.getX());
+        assertEquals('<', decoder.getZ());
+
+        // switching binary off drops a frame in progress
+        feed(decoder, noise);
+        assertTrue(decoder.isInFrame());
+        decoder.setBinaryEnabled(false);
+        assertFalse(decoder.isInFrame());
+    }
+
+    @Test
+    public void reset_discardsPartialFrame() {
+        FrameDecoder decoder = new FrameDecoder();
+
+        feed(decoder, "<DOWN:5:6");
+        assertTrue(decoder.isInFrame());
+        decoder.reset();
+        assertFalse(decoder.isInFrame());
+
+        // bytes outside a frame are ignored
+        assertEquals(FrameDecoder.FRAME_INCOMPLETE, feed(decoder, ":7>"));
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder, "<UP:1:2:3>"));
+        assertEquals(1, decoder.getX());
+    }
+    @Test
+    public void binary_decodesMultiSampleFrames() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setBinaryEnabled(true);
+
+        assertEquals(FrameDecoder.FRAME_COMPLETE, feed(decoder,
+                binaryFrame(FrameDecoder.OP_DOWN, 0, 100, -200, 300, 1000, 2000, 65535)));
+        assertEquals(FrameDecoder.OP_DOWN, decoder.getOpcode());
+        assertTrue(decoder.isPoint());
+        assertEquals(2, decoder.getSampleCount());
+        assertEquals(100, decoder.getX(0));
+        assertEquals(-200, decoder.getY(0));
+        assertEquals(300, decoder.getZ(0));
+        assertEquals(1000, decoder.getX(1));
+        assertEquals(2000, decoder.getY(1));
+        assertEquals(65535, decoder.getZ(1));
+    }
+
+    @Test
+    public void binary_rejectsBadCrcAndSampleCount() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setBinaryEnabled(true);
+
+        byte[] frame = binaryFrame(FrameDecoder.OP_DOWN, 0, 1, 2, 3);
+        frame[4] ^= 0x10;
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, frame));
+
+        byte[] empty = {FrameDecoder.BINARY_SYNC, FrameDecoder.OP_DOWN, 0, 0};
+        assertEquals(FrameDecoder.FRAME_INVALID, feed(decoder, empty));
+        assertEquals(2, decoder.getUnparsableFrames());
+
+        assertEquals(FrameDecoder.FRAME_COMPLETE,
+                feed(decoder, binaryFrame(FrameDecoder.OP_UP, 1, 1, 2, 3)));
+        assertEquals(FrameDecoder.OP_UP, decoder.getOpcode());
+    }
+
+    @Test
+    public void binary_countsLostFramesAcrossSequenceWrap() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setBinaryEnabled(true);
+
+        feed(decoder, binaryFrame(FrameDecoder.OP_DOWN, 254, 1, 1, 1));
+        feed(decoder, binaryFrame(FrameDecoder.OP_DOWN, 255, 1, 1, 1));
+        feed(decoder, binaryFrame(FrameDecoder.OP_DOWN, 0, 1, 1, 1));
+        assertEquals(0, decoder.getLostFrames());
+
+        // 1 and 2 never arrived
+        feed(decoder, binaryFrame(FrameDecoder.OP_UP, 3, 1, 1, 1));
+        assertEquals(2, decoder.getLostFrames());
+    }
+}
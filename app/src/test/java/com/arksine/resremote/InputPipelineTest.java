@@ -0,0 +1,240 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that samples waiting in the ring reach the sink together, packed the way
+ * NativeInput.processInputs expects them
+ */
+public class InputPipelineTest {
+
+    private static final long TIMEOUT = 1000;
+
+    // Records calls, the first one blocks until the gate opens
+    private static class GatedSink implements InputPipeline.InputSink {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch firstCall = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger flushes = new AtomicInteger();
+        volatile int refusedFlushes = 0;    // flushes that still report something pending
+
+        private void waitForGate() {
+            firstCall.countDown();
+            try {
+                gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void processInput(int opcode, int x, int y, int z, long timeNs) {
+            waitForGate();
+            calls.add("single " + opcode + ":" + x + ":" + y + "@" + timeNs);
+            received.add(opcode + ":" + x);
+        }
+
+        @Override
+        public void processInputs(int[] events, long[] times, int count) {
+            waitForGate();
+            StringBuilder call = new StringBuilder("batch");
+            for (int i = 0; i < count; i++) {
+                int event = i * NativeInput.EVENT_SIZE;
+                call.append(' ').append(events[event + NativeInput.EVENT_OPCODE])
+                        .append(':').append(events[event + NativeInput.EVENT_X])
+                        .append(':').append(events[event + NativeInput.EVENT_Y])
+                        .append('@').append(times[i]);
+                received.add(events[event + NativeInput.EVENT_OPCODE] + ":"
+                        + events[event + NativeInput.EVENT_X]);
+            }
+            calls.add(call.toString());
+        }
+
+        @Override
+        public boolean flushPending() {
+            flushes.incrementAndGet();
+            return refusedFlushes-- <= 0;
+        }
+    }
+
+    @Test
+    public void handoff_batchesSamplesWaitingInRing() throws Exception {
+        GatedSink sink = new GatedSink();
+        InputPipeline pipeline = new InputPipeline(sink, InputPipeline.POLICY_HANDOFF);
+        pipeline.start();
+
+        // the consumer is stuck in the sink with the first touch
+        pipeline.post(FrameDecoder.OP_DOWN, 1, 1, 0, 100);
+        assertTrue(sink.firstCall.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // a move, a release and a new touch wait for it
+        pipeline.post(FrameDecoder.OP_DOWN, 2, 2, 0, 200);
+        pipeline.post(FrameDecoder.OP_UP, 2, 2, 0, 300);
+        pipeline.post(FrameDecoder.OP_DOWN, 3, 3, 0, 400);
+
+        sink.gate.countDown();
+        pipeline.stop();
+
+        assertEquals(2, sink.calls.size());
+        assertEquals("single 1:1:1@100", sink.calls.get(0));
+        assertEquals("batch 1:2:2@200 2:2:2@300 1:3:3@400", sink.calls.get(1));
+        assertEquals(4, pipeline.getEventCount());
+    }
+
+    @Test
+    public void handoff_coalescesWaitingMovesButKeepsDownAndUp() throws Exception {
+        GatedSink sink = new GatedSink();
+        InputPipeline pipeline = new InputPipeline(sink, InputPipeline.POLICY_HANDOFF);
+        pipeline.start();
+
+        pipeline.post(FrameDecoder.OP_DOWN, 1, 1, 0, 100);
+        assertTrue(sink.firstCall.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // moves collapse into the latest, the touch that follows the release keeps its DOWN
+        pipeline.post(FrameDecoder.OP_DOWN, 2, 2, 0, 200);
+        pipeline.post(FrameDecoder.OP_DOWN, 3, 3, 0, 300);
+        pipeline.post(FrameDecoder.OP_DOWN, 4, 4, 0, 400);
+        pipeline.post(FrameDecoder.OP_UP, 5, 5, 0, 500);
+        pipeline.post(FrameDecoder.OP_DOWN, 6, 6, 0, 600);
+        pipeline.post(FrameDecoder.OP_DOWN, 7, 7, 0, 700);
+        pipeline.post(FrameDecoder.OP_DOWN, 8, 8, 0, 800);
+        pipeline.post(FrameDecoder.OP_UP, 9, 9, 0, 900);
+
+        sink.gate.countDown();
+        pipeline.stop();
+
+        assertEquals("batch 1:4:4@400 2:5:5@500 1:6:6@600 1:8:8@800 2:9:9@900",
+                sink.calls.get(1));
+        assertEquals(3, pipeline.getCoalescedCount());
+        assertEquals(6, pipeline.getEventCount());
+    }
+
+    @Test
+    public void inline_passesEachSampleStraightThrough() throws Exception {
+        GatedSink sink = new GatedSink();
+        sink.gate.countDown();
+        InputPipeline pipeline = new InputPipeline(sink, InputPipeline.POLICY_INLINE);
+        pipeline.start();
+
+        pipeline.post(FrameDecoder.OP_DOWN, 5, 6, 0, 500);
+        pipeline.post(FrameDecoder.OP_UP, 5, 6, 0, 600);
+        pipeline.stop();
+
+        assertEquals(2, sink.calls.size());
+        assertEquals("single 2:5:6@600", sink.calls.get(1));
+    }
+
+    @Test
+    public void handoff_fullRingBlocksReaderUntilConsumerDrains() throws Exception {
+        final GatedSink sink = new GatedSink();
+        final InputPipeline pipeline = new InputPipeline(sink, InputPipeline.POLICY_HANDOFF, 2);
+        pipeline.start();
+
+        pipeline.post(FrameDecoder.OP_DOWN, 1, 1, 0, 100);
+        assertTrue(sink.firstCall.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        pipeline.post(FrameDecoder.OP_UP, 2, 2, 0, 200);
+        pipeline.post(FrameDecoder.OP_DOWN, 3, 3, 0, 300);
+
+        // the ring is full, the release has to wait for a slot
+        final CountDownLatch posted = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.post(FrameDecoder.OP_UP, 4, 4, 0, 400);
+                posted.countDown();
+            }
+        });
+        reader.start();
+        assertFalse(posted.await(50, TimeUnit.MILLISECONDS));
+
+        sink.gate.countDown();
+        assertTrue(posted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        reader.join(TIMEOUT);
+        pipeline.stop();
+
+        assertEquals("[1:1, 2:2, 1:3, 2:4]", sink.received.toString());
+    }
+
+    @Test
+    public void handoff_interruptedReaderStillPublishesRelease() throws Exception {
+        final GatedSink sink = new GatedSink();
+        final InputPipeline pipeline = new InputPipeline(sink, InputPipeline.POLICY_HANDOFF, 2);
+        pipeline.start();
+
+        pipeline.post(FrameDecoder.OP_DOWN, 1, 1, 0, 100);
+        assertTrue(sink.firstCall.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        pipeline.post(FrameDecoder.OP_UP, 2, 2, 0, 200);
+        pipeline.post(FrameDecoder.OP_DOWN, 3, 3, 0, 300);
+
+        final boolean[] interrupted = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.post(FrameDecoder.OP_UP, 4, 4, 0, 400);
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        reader.start();
+        Thread.sleep(20);
+        reader.interrupt();
+
+        // the reader keeps waiting for a slot instead of dropping the release
+        reader.join(50);
+        assertTrue(reader.isAlive());
+
+        sink.gate.countDown();
+        reader.join(TIMEOUT);
+        pipeline.stop();
+
+        assertTrue(interrupted[0]);
+        assertEquals("[1:1, 2:2, 1:3, 2:4]", sink.received.toString());
+    }
+
+    @Test
+    public void handoff_flushesSinkUntilNothingIsPending() throws Exception {
+        GatedSink sink = new GatedSink();
+        sink.gate.countDown();
+        sink.refusedFlushes = 2;
+        InputPipeline pipeline = new InputPipeline(sink, InputPipeline.POLICY_HANDOFF);
+        pipeline.start();
+
+        // quiet after the release, the consumer retries until the sink has nothing left
+        pipeline.post(FrameDecoder.OP_DOWN, 1, 1, 0, 100);
+        pipeline.post(FrameDecoder.OP_UP, 1, 1, 0, 200);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (sink.flushes.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, sink.flushes.get());
+
+        // and then waits for input again
+        Thread.sleep(50);
+        pipeline.stop();
+        assertEquals(3, sink.flushes.get());
+    }
+
+    @Test
+    public void inline_flushesSinkWhenReaderIsIdle() throws Exception {
+        GatedSink sink = new GatedSink();
+        sink.gate.countDown();
+        InputPipeline pipeline = new InputPipeline(sink, InputPipeline.POLICY_INLINE);
+        pipeline.start();
+
+        pipeline.onReaderIdle();
+        assertEquals(1, sink.flushes.get());
+
+        pipeline.stop();
+        pipeline.onReaderIdle();
+        assertEquals(1, sink.flushes.get());
+    }
+}
@@ -0,0 +1,203 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs NetworkHelper against a fake controller on localhost
+ */
+public class NetworkHelperTest {
+
+    private static final long TIMEOUT = 1000;
+
+    private static byte[] datagram(int sequence, String frames) {
+        byte[] payload = frames.getBytes();
+        byte[] data = new byte[payload.length + 2];
+        data[0] = (byte) (sequence >> 8);
+        data[1] = (byte) sequence;
+        System.arraycopy(payload, 0, data, 2, payload.length);
+        return data;
+    }
+
+    private static String readFrame(NetworkHelper helper) {
+        byte[] buffer = new byte[64];
+        int count = helper.read(buffer, 0, buffer.length, TIMEOUT);
+        return (count > 0) ? new String(buffer, 0, count) : null;
+    }
+
+    @Test
+    public void udp_dropsStaleAndDuplicateDatagrams() throws Exception {
+        DatagramSocket controller = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        NetworkHelper helper = new NetworkHelper(null);
+        try {
+            String url = NetworkHelper.SCHEME_UDP + "127.0.0.1:" + controller.getLocalPort();
+            assertTrue(helper.connectDevice(url, null).get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // the controller learns where to send from the first command
+            assertTrue(helper.writeString("<START>"));
+            DatagramPacket command = new DatagramPacket(new byte[64], 64);
+            controller.receive(command);
+            assertEquals("<START>", new String(command.getData(), 0, command.getLength()));
+
+            String[] frames = {"<DOWN:1:1:1>", "<DOWN:2:2:2>", "<DOWN:3:3:3>"};
+            int[] sequences = {65534, 65533, 65535};
+            for (int i = 0; i < frames.length; i++) {
+                byte[] data = datagram(sequences[i], frames[i]);
+                controller.send(new DatagramPacket(data, data.length,
+                        command.getSocketAddress()));
+            }
+            // duplicate, then a sequence number that wrapped around
+            byte[] duplicate = datagram(65535, "<DOWN:4:4:4>");
+            controller.send(new DatagramPacket(duplicate, duplicate.length,
+                    command.getSocketAddress()));
+            byte[] wrapped = datagram(0, "<UP:5:5:0>");
+            controller.send(new DatagramPacket(wrapped, wrapped.length,
+                    command.getSocketAddress()));
+
+            assertEquals("<DOWN:1:1:1>", readFrame(helper));
+            assertEquals("<DOWN:3:3:3>", readFrame(helper));
+            assertEquals("<UP:5:5:0>", readFrame(helper));
+            assertEquals(2, helper.getStaleDatagrams());
+        } finally {
+            helper.disconnect();
+            controller.close();
+        }
+    }
+
+    @Test
+    public void udp_followsControllerThatRestartedItsSequence() throws Exception {
+        DatagramSocket controller = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        NetworkHelper helper = new NetworkHelper(null);
+        try {
+            String url = NetworkHelper.SCHEME_UDP + "127.0.0.1:" + controller.getLocalPort();
+            assertTrue(helper.connectDevice(url, null).get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            assertTrue(helper.writeString("<START>"));
+            DatagramPacket command = new DatagramPacket(new byte[64], 64);
+            controller.receive(command);
+
+            // far behind the last sequence, the controller was reset
+            String[] frames = {"<DOWN:1:1:1>", "<DOWN:2:2:2>", "<DOWN:3:3:3>"};
+            int[] sequences = {30000, 0, 1};
+            for (int i = 0; i < frames.length; i++) {
+                byte[] data = datagram(sequences[i], frames[i]);
+                controller.send(new DatagramPacket(data, data.length,
+                        command.getSocketAddress()));
+            }
+            assertEquals("<DOWN:1:1:1>", readFrame(helper));
+            assertEquals("<DOWN:2:2:2>", readFrame(helper));
+            assertEquals("<DOWN:3:3:3>", readFrame(helper));
+
+            // close behind, but after a silence a reset controller is more likely than a copy
+            Thread.sleep(600);
+            byte[] data = datagram(0, "<UP:4:4:0>");
+            controller.send(new DatagramPacket(data, data.length, command.getSocketAddress()));
+            assertEquals("<UP:4:4:0>", readFrame(helper));
+
+            assertEquals(0, helper.getStaleDatagrams());
+            assertEquals(2, helper.getSequenceResets());
+        } finally {
+            helper.disconnect();
+            controller.close();
+        }
+    }
+
+    @Test
+    public void udp_readTimesOutWithoutData() throws Exception {
+        DatagramSocket controller = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        NetworkHelper helper = new NetworkHelper(null);
+        try {
+            String url = NetworkHelper.SCHEME_UDP + "127.0.0.1:" + controller.getLocalPort();
+            assertTrue(helper.connectDevice(url, null).get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            assertEquals(0, helper.read(new byte[16], 0, 16, 20));
+            helper.disconnect();
+            assertEquals(-1, helper.read(new byte[16], 0, 16, 20));
+        } finally {
+            helper.disconnect();
+            controller.close();
+        }
+    }
+
+    @Test
+    public void tcp_streamsFramesWithNoDelay() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        NetworkHelper helper = new NetworkHelper(null);
+        try {
+            String url = NetworkHelper.SCHEME_TCP + "127.0.0.1:" + server.getLocalPort();
+            assertTrue(helper.connectDevice(url, null).get(TIMEOUT, TimeUnit.MILLISECONDS));
+            Socket controller = server.accept();
+
+            assertTrue(helper.writeString("<START>"));
+            byte[] command = new byte[7];
+            int received = 0;
+            while (received < command.length) {
+                received += controller.getInputStream().read(command, received,
+                        command.length - received);
+            }
+            assertEquals("<START>", new String(command));
+
+            controller.getOutputStream().write("<DOWN:7:8:9>".getBytes());
+            StringBuilder frames = new StringBuilder();
+            while (frames.length() < "<DOWN:7:8:9>".length()) {
+                String chunk = readFrame(helper);
+                assertNotNull(chunk);
+                frames.append(chunk);
+            }
+            assertEquals("<DOWN:7:8:9>", frames.toString());
+
+            // controller hung up
+            controller.close();
+            assertEquals(-1, helper.read(new byte[16], 0, 16, TIMEOUT));
+        } finally {
+            helper.disconnect();
+            server.close();
+        }
+    }
+
+    @Test
+    public void udp_answersArriveInOrder() throws Exception {
+        final DatagramSocket controller = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        NetworkHelper helper = new NetworkHelper(null);
+        try {
+            String url = NetworkHelper.SCHEME_UDP + "127.0.0.1:" + controller.getLocalPort();
+            assertTrue(helper.connectDevice(url, null).get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // fake controller answering every command with a sequenced point frame
+            Thread echo = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    DatagramPacket command = new DatagramPacket(new byte[64], 64);
+                    try {
+                        for (int sequence = 0; ; sequence++) {
+                            controller.receive(command);
+                            byte[] data = datagram(sequence, "<DOWN:1:2:3>");
+                            controller.send(new DatagramPacket(data, data.length,
+                                    command.getSocketAddress()));
+                        }
+                    } catch (Exception e) {
+                        // socket closed
+                    }
+                }
+            });
+            echo.start();
+
+            for (int i = 0; i < 20; i++) {
+                assertTrue(helper.writeString("<PING>"));
+                assertEquals("<DOWN:1:2:3>", readFrame(helper));
+            }
+            assertEquals(0, helper.getStaleDatagrams());
+        } finally {
+            helper.disconnect();
+            controller.close();
+        }
+    }
+}
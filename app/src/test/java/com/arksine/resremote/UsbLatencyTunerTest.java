@@ -0,0 +1,84 @@
+package com.arksine.resremote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the control requests UsbLatencyTuner sends to each chip
+ */
+public class UsbLatencyTunerTest {
+
+    // Records every control transfer instead of sending it to a device
+    private static class RecordingTransport implements UsbLatencyTuner.ControlTransport {
+        final ArrayList<int[]> transfers = new ArrayList<>();
+        int result = 0;
+
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index,
+                                   byte[] buffer, int length, int timeout) {
+            transfers.add(new int[] {requestType, request, value, index});
+            return result;
+        }
+
+        boolean sent(int requestType, int request, int value, int index) {
+            for (int[] transfer : transfers) {
+                if (transfer[0] == requestType && transfer[1] == request
+                        && transfer[2] == value && transfer[3] == index) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Test
+    public void ftdi_setsLatencyTimerAndEventChar() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+
+        int latency = UsbLatencyTuner.tune(UsbLatencyTuner.CHIP_FTDI, transport, 0);
+
+        assertEquals(UsbLatencyTuner.FTDI_LOW_LATENCY, latency);
+        assertTrue(transport.sent(UsbLatencyTuner.FTDI_REQTYPE_OUT,
+                UsbLatencyTuner.FTDI_SIO_SET_LATENCY_TIMER, 1, 1));
+        assertTrue(transport.sent(UsbLatencyTuner.FTDI_REQTYPE_OUT,
+                UsbLatencyTuner.FTDI_SIO_SET_EVENT_CHAR, 0x100 | '>', 1));
+    }
+
+    @Test
+    public void ftdi_reportsDefaultLatencyWhenTimerRejected() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        transport.result = -1;
+
+        int latency = UsbLatencyTuner.tune(UsbLatencyTuner.CHIP_FTDI, transport, 0);
+
+        assertEquals(UsbLatencyTuner.FTDI_DEFAULT_LATENCY, latency);
+        assertEquals(1, transport.transfers.size());
+    }
+
+    @Test
+    public void cp210x_purgesReceiveBuffer() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+
+        int latency = UsbLatencyTuner.tune(UsbLatencyTuner.CHIP_CP210X, transport, 0);
+
+        assertEquals(UsbLatencyTuner.LATENCY_UNKNOWN, latency);
+        assertTrue(transport.sent(UsbLatencyTuner.CP210X_REQTYPE_OUT,
+                UsbLatencyTuner.CP210X_PURGE, UsbLatencyTuner.CP210X_PURGE_RX, 0));
+    }
+
+    @Test
+    public void otherChips_areLeftAlone() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+
+        assertEquals(UsbLatencyTuner.LATENCY_UNKNOWN,
+                UsbLatencyTuner.tune(UsbLatencyTuner.CHIP_CH34X, transport, 0));
+        assertEquals(UsbLatencyTuner.LATENCY_UNKNOWN,
+                UsbLatencyTuner.tune(UsbLatencyTuner.CHIP_PL2303, transport, 0));
+        assertEquals(UsbLatencyTuner.LATENCY_UNKNOWN,
+                UsbLatencyTuner.tune(UsbLatencyTuner.CHIP_CDC, transport, 0));
+        assertTrue(transport.transfers.isEmpty());
+    }
+}
@@ -12,12 +12,22 @@ TouchManager::TouchManager() : ts(XP, YP, XM, YM, XPLATE), storageManager() {
   isTouching   = false;
   start        = false;
   serialBuffer = "";
+  binaryMode   = false;
+  sequence     = 0;
+  sampleCount  = 0;
+  currentBaud  = DEFAULTBAUD;
+  fallbackBaud = DEFAULTBAUD;
+  baudTimer    = 0;
+  commandTimer = 0;
+  baudPending  = false;
 }
 
 TouchManager::~TouchManager() {}
 
 void TouchManager::loopFunction() {
   checkSerial();
+  checkBaudTimeout();
+  flushBinarySamples();
 
   if (start && ((millis() - loopDelay) >= READLOOPDELAY)) {
     // If we aren't accepting serial data, process touch data
@@ -25,12 +35,20 @@ void TouchManager::loopFunction() {
     TSPoint p = ts.getPoint();
 
     if ((p.z > MINPRESSURE) && (p.z < MAXPRESSURE)) {
-      sendSerialCoordinate(p.x, p.y, p.z);
+      sendSerialCoordinate(p.x, p.y, p.z, !isTouching);
       isTouching = true;
       touchDelay = millis();
     } else if (isTouching && ((millis() - touchDelay) >= TOUCHUPDELAY)) {
       // I might need to adjust the touch up delay, 50 - 100ms should work
-      uartSerial.print("<UP:0:0:0>");
+      if (binaryMode) {
+        // flush any batched samples before lifting
+        if (sampleCount > 0) {
+          sendBinaryFrame(OP_DOWN);
+        }
+        sendBinaryFrame(OP_UP);
+      } else {
+        uartSerial.print("<UP:0:0:0>");
+      }
       isTouching = false;
     }
   }
@@ -47,6 +65,7 @@ void TouchManager::checkSerial() {
     }
     else if (ch == '>') {
       // end of packet, parse it
+      commandTimer = millis();
       processCommand(serialBuffer);
     }
     else {
@@ -56,7 +75,7 @@ void TouchManager::checkSerial() {
   }
 }
 
-void TouchManager::sendSerialCoordinate(int tX, int tY, int tZ) {
+void TouchManager::sendSerialCoordinate(int tX, int tY, int tZ, bool firstSample) {
   int dX;
   int dY;
   int dZ;
@@ -65,6 +84,11 @@ void TouchManager::sendSerialCoordinate(int tX, int tY, int tZ) {
   dY = ((storage->D * tX) + (storage->E * tY) + storage->F + 5000l) / 10000l;
   dZ = MAXPRESSURE - (tZ - storage->minResistance);
 
+  if (binaryMode) {
+    queueBinarySample(dX, dY, dZ, firstSample);
+    return;
+  }
+
   uartSerial.print("<DOWN:");
   uartSerial.print(dX);
   uartSerial.print(":");
@@ -74,17 +98,138 @@ void TouchManager::sendSerialCoordinate(int tX, int tY, int tZ) {
   uartSerial.print(">");
 }
 
+void TouchManager::setBaudRate(unsigned long rate) {
+  uartSerial.end();
+  uartSerial.begin(rate);
+  currentBaud  = rate;
+  serialBuffer = "";
+}
+
+void TouchManager::checkBaudTimeout() {
+  if (baudPending && ((millis() - baudTimer) >= BAUDCONFIRMTIMEOUT)) {
+    // the host never confirmed the new rate, go back to the one that worked
+    baudPending = false;
+    setBaudRate(fallbackBaud);
+  } else if (!start && !baudPending && (currentBaud != DEFAULTBAUD) &&
+             ((millis() - commandTimer) >= HOSTIDLETIMEOUT)) {
+    // the host went away without starting, the next one looks for us at the default
+    setBaudRate(DEFAULTBAUD);
+  }
+}
+
+// Samples are only held back while the serial link is busy, so batching never delays a
+// sample that could be sent right away.  The first sample of a touch is always sent at once.
+void TouchManager::queueBinarySample(int dX, int dY, int dZ, bool firstSample) {
+  byte *sample = &frameBuffer[FRAMEHEADERLENGTH + (sampleCount * SAMPLELENGTH)];
+
+  sample[0] = dX & 0xFF;
+  sample[1] = (dX >> 8) & 0xFF;
+  sample[2] = dY & 0xFF;
+  sample[3] = (dY >> 8) & 0xFF;
+  sample[4] = dZ & 0xFF;
+  sample[5] = (dZ >> 8) & 0xFF;
+  sampleCount++;
+
+  if (firstSample || (sampleCount >= SAMPLESPERFRAME)) {
+    sendBinaryFrame(OP_DOWN);
+  } else {
+    flushBinarySamples();
+  }
+}
+
+void TouchManager::flushBinarySamples() {
+  int length = FRAMEHEADERLENGTH + (sampleCount * SAMPLELENGTH) + 1;
+
+  if ((sampleCount > 0) && (uartSerial.availableForWrite() >= length)) {
+    sendBinaryFrame(OP_DOWN);
+  }
+}
+
+void TouchManager::sendBinaryFrame(byte opcode) {
+  if (sampleCount == 0) {
+    // frames always carry at least one sample, UP frames send an empty one
+    memset(&frameBuffer[FRAMEHEADERLENGTH], 0, SAMPLELENGTH);
+    sampleCount = 1;
+  }
+
+  int length = FRAMEHEADERLENGTH + (sampleCount * SAMPLELENGTH);
+
+  frameBuffer[0]      = FRAMESYNC;
+  frameBuffer[1]      = opcode;
+  frameBuffer[2]      = sequence++;
+  frameBuffer[3]      = sampleCount;
+  frameBuffer[length] = crc8(&frameBuffer[1], length - 1);
+
+  uartSerial.write(frameBuffer, length + 1);
+  sampleCount = 0;
+}
+
+byte TouchManager::crc8(const byte *data, int length) {
+  byte crc = 0;
+
+  for (int i = 0; i < length; i++) {
+    crc ^= data[i];
+
+    for (int bit = 0; bit < 8; bit++) {
+      if (crc & 0x80) {
+        crc = (crc << 1) ^ 0x07;
+      } else {
+        crc <<= 1;
+      }
+    }
+  }
+  return crc;
+}
+
 void TouchManager::processCommand(String command) {
   if (command == "") {
     // no command received
     return;
   } else if (serialBuffer == "START") {
-    // start main loop
-    start = true;
+    // start main loop, always in text mode until the host asks for binary frames
+    start       = true;
+    binaryMode  = false;
+    sampleCount = 0;
     digitalWrite(LEDPIN, LOW);
   } else if (serialBuffer == "STOP") {
-    start = false;
+    start       = false;
+    binaryMode  = false;
+    baudPending = false;
     digitalWrite(LEDPIN, HIGH);
+
+    if (currentBaud != DEFAULTBAUD) {
+      // the next connection starts over at the default rate
+      uartSerial.flush();
+      setBaudRate(DEFAULTBAUD);
+    }
+  } else if (command == "CAPS") {
+    // report capabilities: flags, max sample rate in Hz and ADC resolution
+    uartSerial.print("<CAPS:");
+    uartSerial.print(CAP_BINARY | CAP_BATCH);
+    uartSerial.print(":");
+    uartSerial.print(1000 / READLOOPDELAY);
+    uartSerial.print(":");
+    uartSerial.print(ADCRESOLUTION);
+    uartSerial.print(">");
+  } else if (command.startsWith("BAUD:")) {
+    // Acknowledge at the current rate, then switch.  The host has to ping at the
+    // new rate to keep it, otherwise checkBaudTimeout() switches back.
+    unsigned long rate = atol(command.substring(5).c_str());
+    uartSerial.print("<LOG:BAUD_OK>");
+    uartSerial.flush();
+    fallbackBaud = currentBaud;
+    setBaudRate(rate);
+    baudPending = true;
+    baudTimer   = millis();
+  } else if (command == "PING") {
+    baudPending = false;
+    uartSerial.print("<LOG:PONG>");
+  } else if (command == "BINARY") {
+    // acknowledge in text, the host only decodes binary frames after this
+    uartSerial.print("<LOG:BINARY_OK>");
+    binaryMode  = true;
+    sequence    = 0;
+    sampleCount = 0;
   } else if (command == "CAL_POINT") {
     // Get a single point from the touch screen and send it
 
@@ -29,10 +29,34 @@ private:
   unsigned long touchDelay;
   String serialBuffer;
 
+  // binary frame state
+  bool binaryMode;
+  byte sequence;
+  byte sampleCount;
+  byte frameBuffer[FRAMEHEADERLENGTH + (SAMPLESPERFRAME * SAMPLELENGTH) + 1];
+
+  // baud rate negotiation state
+  unsigned long currentBaud;
+  unsigned long fallbackBaud;
+  unsigned long baudTimer;
+  unsigned long commandTimer;
+  bool baudPending;
+
   void checkSerial();
-  void sendSerialCoordinate(int tX,
-                            int tY,
-                            int tZ);
+  void sendSerialCoordinate(int  tX,
+                            int  tY,
+                            int  tZ,
+                            bool firstSample);
+  void queueBinarySample(int  dX,
+                         int  dY,
+                         int  dZ,
+                         bool firstSample);
+  void flushBinarySamples();
+  void sendBinaryFrame(byte opcode);
+  void setBaudRate(unsigned long rate);
+  void checkBaudTimeout();
+  byte crc8(const byte *data,
+            int         length);
   void processCommand(String command);
   void setStorageVariables(String data);
   void getPoint();
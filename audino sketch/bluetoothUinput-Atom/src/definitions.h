@@ -39,6 +39,13 @@
 # define uartSerial Serial
 #endif /* ifdef AVR_PROMICRO16 */
 
+// Rate after reset, and after the host stops or goes away.  Hosts that negotiate
+// find the board here; the calibration tool and older hosts keep working.
+#define DEFAULTBAUD       115200
+#define BAUDCONFIRMTIMEOUT 1000 // ms to wait for a ping after switching baud rate
+#define HOSTIDLETIMEOUT   5000  // ms a stopped board keeps a negotiated rate
+                                // without hearing from the host
+
 #define CONFIG_VERSION    "rt2"
 #define MEMORYBASE        32 // where to store and retrieve EEPROM memory
 
@@ -57,6 +64,23 @@
 #define READLOOPDELAY     10  // min number of milliseconds between loop reads
 #define XPLATE            800 // Resistance across the X-plate of the
                               // touchscreen
+#define ADCRESOLUTION     10  // bits of resolution of the touchscreen readings
+
+// Binary frame protocol, enabled by the host with the BINARY command and
+// acknowledged with <LOG:BINARY_OK> before the first binary frame.  Each frame
+// is FRAMESYNC, opcode, sequence, sample count, then 6 bytes per sample (x, y, z
+// as little endian 16 bit values) and a CRC-8 of everything after the sync byte.
+#define FRAMESYNC         0xA5
+#define OP_DOWN           1
+#define OP_UP             2
+#define SAMPLESPERFRAME   2   // most samples batched into a binary frame, only
+                              // while the serial link is still busy
+#define SAMPLELENGTH      6
+#define FRAMEHEADERLENGTH 4
+
+// Capability flags reported in response to the CAPS command
+#define CAP_BINARY        1
+#define CAP_BATCH         2
 
 struct StoreStruct {
   char version[4];            // unique identifier to make sure we are getting
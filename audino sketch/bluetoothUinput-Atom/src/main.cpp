@@ -13,7 +13,7 @@ TouchManager touch;
 void setup() {
   pinMode(LEDPIN, OUTPUT);
   digitalWrite(LEDPIN, HIGH);
-  uartSerial.begin(115200);
+  uartSerial.begin(DEFAULTBAUD);
 
   while (!uartSerial);
   uartSerial.flush();
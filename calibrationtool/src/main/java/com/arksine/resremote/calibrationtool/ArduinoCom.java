@@ -22,16 +22,15 @@ public class ArduinoCom extends Thread{
     SerialHelper mSerialHelper;
     SerialHelper.DeviceReadyListener readyListener;
 
-    /**
-     * Container for a message recieved from the arduino.  There are two message types we can receive,
-     * logging types and point types.  Logging types fill in the desc string, point types fill in
-     * the TouchPoint.
-     */
-    private class ArduinoMessage {
-        public String command;
-        public String desc;
-        public TouchPoint point;
-    }
+    // Decoder for frames received from the arduino, reused for every frame
+    private final FrameDecoder mDecoder = new FrameDecoder();
+
+    // Bytes read from the device that have not yet been fed to the decoder
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final long READ_TIMEOUT = 100;  // ms, bounds how long a shutdown takes to notice
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private int mReadPosition = 0;
+    private int mReadLength = 0;
 
     /**
      * This is an interface for a callback the activity can use to be
@@ -60,6 +59,9 @@ public class ArduinoCom extends Thread{
             case "USB_HID":
                 mSerialHelper = new UsbHelper(mContext);
                 break;
+            case "NETWORK":
+                mSerialHelper = new NetworkHelper(mContext);
+                break;
         }
 
         readyListener = new SerialHelper.DeviceReadyListener() {
@@ -138,18 +140,17 @@ public class ArduinoCom extends Thread{
 
         String data = "<SET_ROTATION:" + Integer.toString(rotation) + ">";
         mSerialHelper.writeString(data);
-        ArduinoMessage receipt = readMessage();
-        if (receipt == null) {
+        if (!readMessage()) {
             mOnItemRecdListener.onFinished(false);
             return;
         }
-        if (receipt.desc.equals("OK")) {
-            ArduinoMessage value = readMessage();
-            Log.i(TAG, value.desc);
+        if ("OK".equals(mDecoder.getDesc())) {
+            readMessage();
+            Log.i(TAG, mDecoder.getDesc());
             mCalSuccess = true;
             mOnItemRecdListener.onFinished(true);
         } else {
-            Log.e(TAG, receipt.command + " " + receipt.desc);
+            Log.e(TAG, mDecoder.getCommandName() + " " + mDecoder.getDesc());
             mSerialHelper.writeString("<ERROR>");
             mOnItemRecdListener.onFinished(false);
         }
@@ -179,62 +180,43 @@ public class ArduinoCom extends Thread{
     }
 
     /**
-     * Reads a message from the arduino and parses it
-     * @return Arduino message containing point data
+     * Reads a message from the arduino and parses it into mDecoder
+     * @return true if a valid message was received
      */
-    private ArduinoMessage readMessage() {
-        int bytes = 0;
-        byte[] buffer = new byte[256];
-        byte ch;
-
-        // get the first byte, anything other than a '<' is trash and will be ignored
-        while(mRunning && (mSerialHelper.readByte() != '<')) {
-            // sleep for a 50ms before polling again
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Log.i(TAG, "Sleep interrupted", e);
-            }
+    private boolean readMessage() {
 
-        }
+        while (mRunning) {
 
-        // First byte is good, capture the rest until we get to the end of the message
-        while (mRunning && ((ch = mSerialHelper.readByte()) != '>')) {
-            buffer[bytes] = ch;
-            bytes++;
-        }
-        ArduinoMessage ardMsg;
-        String message = new String(buffer, 0, bytes);
-        String[] tokens = message.split(":");
-
-        if (tokens.length == 2) {
-            // command received or log message
-            ardMsg = new ArduinoMessage();
-
-            ardMsg.command = tokens[0];
-            ardMsg.desc = tokens[1];
-
-        }
-        else if (tokens.length == 4) {
-            // Point received
-            ardMsg = new ArduinoMessage();
-            ardMsg.command = tokens[0];
-            ardMsg.point = new TouchPoint(Integer.parseInt(tokens[1]),
-                    Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+            if (mReadPosition == mReadLength) {
+                // Blocks until data arrives, the timeout only lets us check for shutdown
+                int count = mSerialHelper.read(mReadBuffer, 0, READ_BUFFER_SIZE, READ_TIMEOUT);
+                if (count == 0) {
+                    continue;
+                } else if (count < 0) {
+                    Log.e(TAG, "Connection to device lost");
+                    break;
+                }
+                mReadPosition = 0;
+                mReadLength = count;
+            }
 
-        }
-        else {
-            Log.e(TAG, "Issue parsing string, invalid data recd: " + message);
-            ardMsg = null;
+            int result = mDecoder.feed(mReadBuffer[mReadPosition++]);
+            if (result == FrameDecoder.FRAME_COMPLETE) {
+                return true;
+            } else if (result == FrameDecoder.FRAME_INVALID) {
+                Log.e(TAG, "Issue parsing string, invalid data recd from command: "
+                        + mDecoder.getCommandName());
+                return false;
+            }
         }
 
-        return ardMsg;
+        mDecoder.reset();
+        return false;
     }
 
     @Nullable
     private Point[] getTouchPoints() {
         Point[] touchPoints = new Point[3];
-        ArduinoMessage screenPt;
 
         // Get the three calibration touch points
         for (int i = 0; i < 3; i++) {
@@ -242,13 +224,12 @@ public class ArduinoCom extends Thread{
             // Tell the Arudino to recieve a single point
             mSerialHelper.writeString("<CAL_POINT>");
 
-            screenPt = readMessage();
-            if (screenPt == null){
+            if (!readMessage() || !mDecoder.isPoint()){
                 // Error parsing bytes
                 Log.e(TAG, "Error Parsing Calibration data from arduino");
                 return null;
             }
-            touchPoints[i] = new Point(screenPt.point.getX(), screenPt.point.getY());
+            touchPoints[i] = new Point(mDecoder.getX(), mDecoder.getY());
 
             Log.i(TAG, "Point " + i + " X value: " + touchPoints[i].x);
             Log.i(TAG, "Point " + i + " Y value: " + touchPoints[i].y);
@@ -321,29 +302,27 @@ public class ArduinoCom extends Thread{
         public void run() {
             isRunning = true;
 
-            ArduinoMessage screenPt;
-
             mSerialHelper.writeString("<CAL_PRESSURE>");
             while (isRunning) {
 
-                screenPt = readMessage();
-                if (screenPt == null){
+                if (!readMessage() || !mDecoder.isPoint()){
                     // Error parsing bytes
                     Log.e(TAG, "Error Parsing Calibration data from arduino");
                     break;
                 }
                 // We'll receive a stop command from the arduino after the user has
                 // lifted their finger
-                if (screenPt.command.equals("STOP")){
+                if (mDecoder.getOpcode() == FrameDecoder.OP_STOP){
                     isRunning = false;
                     break;
                 }
 
-                if (screenPt.point.getZ() < resistanceMin) {
-                    resistanceMin = screenPt.point.getZ();
+                int z = mDecoder.getZ();
+                if (z < resistanceMin) {
+                    resistanceMin = z;
                 }
-                if (screenPt.point.getZ() > resistanceMax) {
-                    resistanceMax = screenPt.point.getZ();
+                if (z > resistanceMax) {
+                    resistanceMax = z;
                 }
 
             }
@@ -465,16 +444,14 @@ public class ArduinoCom extends Thread{
 
     private boolean sendCalibrationVariable(String varData) {
 
-        ArduinoMessage receipt;
         mSerialHelper.writeString(varData);
-        receipt = readMessage();
-        if (!receipt.desc.equals("OK")) {
-            Log.e(TAG, receipt.command + " " + receipt.desc);
+        if (!readMessage() || !"OK".equals(mDecoder.getDesc())) {
+            Log.e(TAG, mDecoder.getCommandName() + " " + mDecoder.getDesc());
             mSerialHelper.writeString("<ERROR>");
             return false;
         } else {
-            ArduinoMessage value = readMessage();
-            Log.i(TAG, value.desc);
+            readMessage();
+            Log.i(TAG, mDecoder.getDesc());
             return true;
         }
     }
@@ -231,6 +231,9 @@ public class MainActivity extends AppCompatActivity {
                 case "USB_HID":
                     mSerialHelper = new UsbHelper(getActivity());
                     break;
+                case "NETWORK":
+                    mSerialHelper = new NetworkHelper(getActivity());
+                    break;
             }
 
             deviceList = mSerialHelper.enumerateDevices();
@@ -12,10 +12,26 @@ public interface SerialHelper {
     }
 
     ArrayList<String> enumerateDevices();
-    void connectDevice(String id, DeviceReadyListener deviceReadyListener);
+    /**
+     * Connects to a device without blocking the caller.  The returned future completes with
+     * the connection status and can be used to wait with a deadline or cancel the attempt.
+     * The listener, which may be null, is also notified when the attempt finishes.
+     */
+    ConnectionFuture connectDevice(String id, DeviceReadyListener deviceReadyListener);
     void disconnect();
     boolean isDeviceConnected();
     boolean writeString(String data);
     boolean writeBytes(byte[] data);
     byte readByte();
+
+    /**
+     * Reads up to len bytes from the device into dst, starting at off.  Blocks until at least
+     * one byte is available, or until timeoutMs has elapsed if the transport supports timeouts.
+     * Implementations must wait on the transport rather than poll, so a reader wakes as soon as
+     * data arrives; the timeout only exists so the caller can check whether it should stop.
+     *
+     * @return the number of bytes read, 0 if the read timed out, or -1 if the device is not
+     *         connected
+     */
+    int read(byte[] dst, int off, int len, long timeoutMs);
 }
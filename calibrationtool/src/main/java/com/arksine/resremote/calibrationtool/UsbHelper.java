@@ -23,8 +23,8 @@ import com.felhr.usbserial.UsbSerialInterface;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 
 
 /**
@@ -39,6 +39,7 @@ public class UsbHelper implements SerialHelper {
     public static final String ACTION_USB_DETACHED = "android.hardware.usb.action.USB_DEVICE_DETACHED";
     public static final String ACTION_DEVICE_CHANGED = "com.arksine.resremote.ACTION_DEVICE_CHANGED";
     private static final int BAUD_RATE = 9600; // BaudRate. Change this value if you need
+    private static final int DEFAULT_BUFFER_CAPACITY = 4096;
 
     private Context mContext;
     private UsbManager mUsbManager;
@@ -47,10 +48,10 @@ public class UsbHelper implements SerialHelper {
     private UsbSerialDevice mSerialPort;
 
     private volatile boolean serialPortConnected = false;
-    private static SerialHelper.DeviceReadyListener mReadyListener;
 
+    // Result of the pending permission request, the latch is released when the user answers
     private volatile boolean requestApproved = false;
-    private volatile boolean requestFinished = false;
+    private volatile CountDownLatch permissionLatch = null;
     private boolean usbReceiverRegistered = false;
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
         @Override
@@ -69,7 +70,11 @@ public class UsbHelper implements SerialHelper {
                     } else {
                         Log.d(TAG, "permission denied for device " + uDev);
                     }
-                    requestFinished = true;
+
+                    CountDownLatch latch = permissionLatch;
+                    if (latch != null) {
+                        latch.countDown();
+                    }
                 }
             } else if (action.equals(ACTION_USB_ATTACHED) || action.equals(ACTION_USB_DETACHED)) {
                 // send a broadcast for the main activity to repopulate the device list if a device
@@ -81,30 +86,35 @@ public class UsbHelper implements SerialHelper {
         }
     };
 
-   LinkedBlockingQueue<Byte> serialBuffer;
+    // Bytes received from the device.  The UsbSerial read thread is the only producer and
+    // the thread calling read() is the only consumer.
+    private final ByteRingBuffer serialBuffer;
 
     private UsbSerialInterface.UsbReadCallback mCallback = new UsbSerialInterface.UsbReadCallback() {
 
         @Override
         public void onReceivedData(byte[] arg0)
         {
-            // add the incoming bytes to a buffer
-            for (byte ch : arg0) {
-                try {
-                    serialBuffer.put(ch);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Unable to add incoming byte to queue", e);
-                }
-            }
+            // copy the incoming chunk to the buffer, this never blocks the callback thread
+            serialBuffer.write(arg0, 0, arg0.length);
         }
     };
 
+    // Used by readByte() so it doesn't allocate
+    private final byte[] mSingleByte = new byte[1];
 
     public UsbHelper(Context context) {
+        this(context, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @param bufferCapacity - size of the receive buffer in bytes
+     */
+    public UsbHelper(Context context, int bufferCapacity) {
         this.mContext = context;
         mUsbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
 
-        serialBuffer = new LinkedBlockingQueue<>(128);
+        serialBuffer = new ByteRingBuffer(bufferCapacity);
 
         IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
         filter.addAction(ACTION_USB_ATTACHED);
@@ -163,19 +173,18 @@ public class UsbHelper implements SerialHelper {
         return deviceList;
     }
 
-    public void connectDevice(String usbName, SerialHelper.DeviceReadyListener readyListener ) {
+    public ConnectionFuture connectDevice(String usbName, SerialHelper.DeviceReadyListener readyListener ) {
 
-        mReadyListener = readyListener;
         HashMap<String, UsbDevice> usbDeviceList = mUsbManager.getDeviceList();
         mUsbDevice = usbDeviceList.get(usbName);
 
         if (mUsbDevice != null) {
             // valid device, request permission to use
-            new ConnectionThread().start();
+            return new ConnectionFuture(new ConnectionTask(), readyListener).start("UsbConnect");
 
         } else {
             Log.i(TAG, "Invalid usb device: " + usbName);
-            readyListener.OnDeviceReady(false);
+            return ConnectionFuture.failed(readyListener);
         }
 
     }
@@ -186,6 +195,11 @@ public class UsbHelper implements SerialHelper {
             mSerialPort.close();
             mSerialPort = null;
         }
+
+        if (serialBuffer.getOverflowCount() > 0) {
+            Log.w(TAG, "Receive buffer overflowed " + serialBuffer.getOverflowCount()
+                    + " times, " + serialBuffer.getDroppedBytes() + " bytes dropped");
+        }
         serialPortConnected = false;
 
         if (usbReceiverRegistered) {
@@ -215,51 +229,68 @@ public class UsbHelper implements SerialHelper {
 
     public byte readByte() {
 
-        if (mSerialPort != null) {
-            Byte ch;
-
-            try {
-                // blocks until something is received, but there should always be something
-                ch = serialBuffer.poll(100, TimeUnit.MILLISECONDS);
-                if (ch == null) {
-                    // timeout occured, return null byte
-                    return 0;
-                }
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Unable to retrieve byte", e);
-                return 0;
-            }
+        // blocks until something is received, but there should always be something
+        if (read(mSingleByte, 0, 1, 100) <= 0) {
+            // timeout occured, return null byte
+            return 0;
+        }
+
+        return mSingleByte[0];
+    }
 
-            return ch;
+    public int read(byte[] dst, int off, int len, long timeoutMs) {
+
+        if (mSerialPort == null) {
+            return -1;
         }
 
-        return 0;
+        return serialBuffer.read(dst, off, len, timeoutMs);
+    }
+
+    /**
+     * @return number of received chunks that did not fit in the receive buffer
+     */
+    public long getOverflowCount() {
+        return serialBuffer.getOverflowCount();
+    }
+
+    /**
+     * @return number of received bytes dropped because the receive buffer was full
+     */
+    public long getDroppedBytes() {
+        return serialBuffer.getDroppedBytes();
     }
 
     public boolean isDeviceConnected() {
         return serialPortConnected;
     }
 
-    // This thread opens a usb serial connection on the specified device
-    private class ConnectionThread extends Thread {
+    // This task opens a usb serial connection on the specified device and returns its status
+    private class ConnectionTask implements Callable<Boolean> {
 
         @Override
-        public void run() {
-            PendingIntent mPendingIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
-            mUsbManager.requestPermission(mUsbDevice, mPendingIntent);
+        public Boolean call() {
+
+            if (!mUsbManager.hasPermission(mUsbDevice)) {
+                requestApproved = false;
+                permissionLatch = new CountDownLatch(1);
+
+                PendingIntent mPendingIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
+                mUsbManager.requestPermission(mUsbDevice, mPendingIntent);
 
-            while(!requestFinished) {
-                // wait for the request to finish
                 try {
-                    Thread.sleep(10);
+                    // wait for the request to finish, cancelling the connection interrupts the wait
+                    permissionLatch.await();
                 } catch (InterruptedException e) {
-                    Log.i(TAG, "Sleep interrupted", e);
+                    Log.i(TAG, "Permission request cancelled");
+                    return false;
+                } finally {
+                    permissionLatch = null;
                 }
-            }
 
-            if (!requestApproved) {
-                mReadyListener.OnDeviceReady(false);
-                return;
+                if (!requestApproved) {
+                    return false;
+                }
             }
 
             mUsbConnection = mUsbManager.openDevice(mUsbDevice);
@@ -276,22 +307,21 @@ public class UsbHelper implements SerialHelper {
 
                     // Device is open and ready
                     serialPortConnected = true;
-                    mReadyListener.OnDeviceReady(true);
+                    return true;
                  } else {
                     // Serial port could not be opened, maybe an I/O error or if CDC driver was chosen, it does not really fit
                     // Send an Intent to Main Activity
                     if (mSerialPort instanceof CDCSerialDevice) {
                         Log.i(TAG, "Unable to open CDC Serial device");
-                        mReadyListener.OnDeviceReady(false);
                     } else {
                         Log.i(TAG, "Unable to open serial device");
-                        mReadyListener.OnDeviceReady(false);
                     }
+                    return false;
                 }
             } else {
                 // No driver for given device, even generic CDC driver could not be loaded
                 Log.i(TAG, "Serial Device not supported");
-                mReadyListener.OnDeviceReady(false);
+                return false;
             }
         }
     }
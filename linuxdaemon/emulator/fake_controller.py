@@ -0,0 +1,146 @@
+#!/usr/bin/env python3
+#
+# Emulates a ResRemote touch screen controller on a pseudo terminal, so the linux daemon can
+# be run on any host without the hardware:
+#
+#   ./fake_controller.py [--binary] &
+#   resremote-daemon --device <printed pty path> --width 800 --height 480
+#
+# Answers CAPS, BINARY, START and STOP like the arduino sketch, and repeats a tap followed
+# by a horizontal swipe while started.
+
+import argparse
+import os
+import pty
+import select
+import struct
+import sys
+import time
+import tty
+
+CAP_BINARY = 1
+CAP_BATCH = 2
+BINARY_SYNC = 0xA5
+OP_DOWN = 1
+OP_UP = 2
+
+
+def crc8(data):
+    # polynomial 0x07, same as FrameDecoder.crc8
+    crc = 0
+    for byte in data:
+        crc ^= byte
+        for _ in range(8):
+            crc = ((crc << 1) ^ 0x07) & 0xFF if crc & 0x80 else (crc << 1) & 0xFF
+    return crc
+
+
+class Controller(object):
+
+    def __init__(self, fd, binary, rate, width, height):
+        self.fd = fd
+        self.binary_capable = binary
+        self.rate = rate
+        self.width = width
+        self.height = height
+        self.started = False
+        self.binary = False
+        self.sequence = 0
+        self.commands = b''
+
+    def send(self, data):
+        try:
+            os.write(self.fd, data)
+        except OSError:
+            pass    # nobody has the slave open yet
+
+    def send_point(self, opcode, x, y, z):
+        if self.binary:
+            frame = struct.pack('<BBBhhH', opcode, self.sequence & 0xFF, 1, x, y, z)
+            self.send(bytes([BINARY_SYNC]) + frame + bytes([crc8(frame)]))
+            self.sequence += 1
+        else:
+            name = 'DOWN' if opcode == OP_DOWN else 'UP'
+            self.send(('<%s:%d:%d:%d>' % (name, x, y, z)).encode('ascii'))
+
+    def handle(self, command):
+        if command == 'CAPS':
+            flags = CAP_BINARY if self.binary_capable else 0
+            self.send(('<CAPS:%d:%d:10>' % (flags, self.rate)).encode('ascii'))
+        elif command == 'BINARY' and self.binary_capable:
+            self.binary = True
+            self.send(b'<LOG:Binary frames enabled>')
+        elif command == 'START':
+            self.started = True
+            self.send(b'<LOG:Device ready>')
+        elif command == 'STOP':
+            self.started = False
+            self.binary = False
+        else:
+            self.send(('<LOG:Unknown command %s>' % command).encode('ascii'))
+        sys.stderr.write('command: %s\n' % command)
+
+    def poll_commands(self, timeout):
+        ready, _, _ = select.select([self.fd], [], [], timeout)
+        if not ready:
+            return
+        try:
+            self.commands += os.read(self.fd, 256)
+        except OSError:
+            return
+        while b'>' in self.commands:
+            frame, self.commands = self.commands.split(b'>', 1)
+            start = frame.rfind(b'<')
+            if start >= 0:
+                self.handle(frame[start + 1:].decode('ascii', 'replace'))
+
+    def gesture(self):
+        # a tap in the center, then a swipe across the middle of the screen
+        points = [(OP_DOWN, self.width // 2, self.height // 2)] * 3
+        points.append((OP_UP, self.width // 2, self.height // 2))
+        steps = 20
+        for i in range(steps + 1):
+            points.append((OP_DOWN, self.width // 10 + i * (self.width * 8 // 10) // steps,
+                           self.height // 2))
+        points.append((OP_UP, points[-1][1], points[-1][2]))
+        return points
+
+    def run(self):
+        interval = 1.0 / self.rate
+        while True:
+            if not self.started:
+                self.poll_commands(0.1)
+                continue
+            for opcode, x, y in self.gesture():
+                self.poll_commands(interval)
+                if not self.started:
+                    break
+                self.send_point(opcode, x, y, 0 if opcode == OP_UP else 300)
+            self.poll_commands(0.5)
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Fake ResRemote controller on a pty')
+    parser.add_argument('--binary', action='store_true', help='advertise binary frames')
+    parser.add_argument('--rate', type=int, default=100, help='samples per second')
+    parser.add_argument('--width', type=int, default=800)
+    parser.add_argument('--height', type=int, default=480)
+    args = parser.parse_args()
+
+    master, slave = pty.openpty()
+    # the daemon configures the tty itself, raw mode here just avoids echo before it opens
+    tty.setraw(slave)
+    print(os.ttyname(slave))
+    sys.stdout.flush()
+
+    try:
+        Controller(master, args.binary, args.rate, args.width, args.height).run()
+    except KeyboardInterrupt:
+        pass
+    finally:
+        os.close(slave)
+        os.close(master)
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,89 @@
+package com.arksine.resremote.daemon;
+
+import com.arksine.resremote.EventChannel;
+import com.arksine.resremote.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares injecting a batch of moves with one native call per event against putting them in
+ * an EventChannel and signalling the native side once.  Both paths end in the same uinput
+ * code, writing the reports to /dev/null.
+ *
+ * gradlew -PwithDaemon :linuxdaemon:jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InjectBenchmark {
+
+    // Events the reader hands over at once, 1 is a single sample per frame
+    @Param({"1", "8", "32"})
+    public int batchSize;
+
+    // false repeats the same position, so the driver has nothing to report and only the cost
+    // of getting the events to native code is measured
+    @Param({"true", "false"})
+    public boolean writeReports;
+
+    private EventChannel mChannel;
+    private int mStep = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (!UinputDevice.openFile("/dev/null")) {
+            throw new IllegalStateException("Unable to open /dev/null");
+        }
+        mChannel = new EventChannel(64);
+        if (!UinputDevice.attach(mChannel)) {
+            throw new IllegalStateException("Unable to attach event channel");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        UinputDevice.close();
+    }
+
+    private int nextX() {
+        if (!writeReports) {
+            return 100;
+        }
+        mStep = (mStep + 1) & 0xFF;
+        return 100 + mStep * 4;
+    }
+
+    @Benchmark
+    public void perCall() {
+        for (int i = 0; i < batchSize; i++) {
+            int x = nextX();
+            UinputDevice.inject(FrameDecoder.OP_DOWN, x, x, 0);
+        }
+    }
+
+    @Benchmark
+    public int eventChannel() {
+        for (int i = 0; i < batchSize; i++) {
+            int x = nextX();
+            mChannel.put(FrameDecoder.OP_DOWN, x, x, 0, 0);
+        }
+        return UinputDevice.flush();
+    }
+}
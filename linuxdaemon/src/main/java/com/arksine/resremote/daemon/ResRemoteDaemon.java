@@ -0,0 +1,350 @@
+package com.arksine.resremote.daemon;
+
+import com.arksine.resremote.FrameDecoder;
+import com.arksine.resremote.TouchTransform;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+/**
+ * Class ResRemoteDaemon
+ *
+ * Drives a virtual touch screen on a plain linux host from a controller attached to a serial
+ * tty (/dev/ttyUSB*, /dev/ttyACM*, or a pty from the emulator).  Speaks the same protocol as
+ * ArduinoCom, decodes with the app's FrameDecoder and injects through the app's uinput code.
+ */
+public class ResRemoteDaemon {
+
+    private static final Logger LOG = Logger.getLogger("ResRemoteDaemon");
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int DEFAULT_BAUD = 9600;   // Rate the controller listens at after reset
+    private static final int DEFAULT_FUZZ = 2;      // evdev fuzz of the position axes, pixels
+    private static final int READ_BUFFER_SIZE = 256;
+
+    private final String mDevice;
+    private final int mBaud;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final int mFuzz;
+
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Reads and writes use separate channels, a FileChannel serializes them otherwise and a
+    // blocked read would hold up the STOP command on shutdown
+    private FileChannel mReadChannel;
+    private FileChannel mWriteChannel;
+
+    private volatile boolean mRunning = false;
+    private boolean mBinaryProtocol = false;
+
+    public ResRemoteDaemon(String device, int baud, int width, int height, int rotation,
+                           int fuzz) {
+        mDevice = device;
+        mBaud = baud;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mFuzz = fuzz;
+    }
+
+    /**
+     * Connects to the controller and injects its input until stop() is called or the
+     * connection is lost.
+     *
+     * @return true if the daemon was stopped, false if it failed or lost the device
+     */
+    public boolean run() {
+
+        if (!configureTty()) {
+            return false;
+        }
+
+        try {
+            mReadChannel = new RandomAccessFile(mDevice, "r").getChannel();
+            mWriteChannel = new FileOutputStream(mDevice).getChannel();
+        } catch (IOException e) {
+            LOG.severe("Unable to open " + mDevice + ": " + e.getMessage());
+            closeChannels();
+            return false;
+        }
+
+        if (!UinputDevice.open(mWidth, mHeight, mFuzz)) {
+            LOG.severe("Unable to create uinput device, check permissions on /dev/uinput");
+            closeChannels();
+            return false;
+        }
+
+        boolean stopped = false;
+        try {
+            mRunning = true;
+            if (!writeString("<CAPS>") || !writeString("<START>")) {
+                LOG.severe("Unable to start controller");
+                return false;
+            }
+            LOG.info("Reading touch input from " + mDevice);
+
+            listenForInput();
+            stopped = !mRunning;
+        } finally {
+            mRunning = false;
+            closeChannels();
+            UinputDevice.close();
+        }
+        return stopped;
+    }
+
+    /**
+     * Tells the controller to stop and unblocks run().  Safe to call from any thread.
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+
+        writeString("<STOP>");
+        // closing the channel wakes a read blocked in the reader thread
+        closeChannels();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private void listenForInput() {
+        int xMax = mWidth - 1;
+        int yMax = mHeight - 1;
+
+        while (mRunning) {
+            int count;
+            mReadBuffer.clear();
+            try {
+                count = mReadChannel.read(mReadBuffer);
+            } catch (AsynchronousCloseException e) {
+                return;     // stop() closed the channel
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // EIO once the usb adapter is unplugged or the pty master closes
+                LOG.severe("Connection to " + mDevice + " lost: " + e.getMessage());
+                return;
+            }
+
+            if (count < 0) {
+                LOG.severe("Connection to " + mDevice + " lost");
+                return;
+            }
+
+            // arrival time of every frame this read completes
+            long readTime = System.nanoTime();
+
+            mReadBuffer.flip();
+            while (mReadBuffer.hasRemaining()) {
+                if (mDecoder.feed(mReadBuffer.get()) != FrameDecoder.FRAME_COMPLETE) {
+                    continue;
+                }
+
+                if (mDecoder.getOpcode() == FrameDecoder.OP_CAPS) {
+                    onCapabilitiesReceived();
+                } else if (mDecoder.getOpcode() == FrameDecoder.OP_LOG) {
+                    String desc = mDecoder.getDesc();
+                    if (mBinaryProtocol && desc.equals("BINARY_OK")) {
+                        // binary frames follow the acknowledgement
+                        mDecoder.setBinaryEnabled(true);
+                        LOG.info("Switched controller to binary frames");
+                    }
+                    LOG.info("Arduino: " + desc);
+                } else if (mDecoder.isPoint()) {
+                    for (int i = 0; i < mDecoder.getSampleCount(); i++) {
+                        int x = mDecoder.getX(i);
+                        int y = mDecoder.getY(i);
+                        UinputDevice.inject(mDecoder.getOpcode(),
+                                TouchTransform.toDeviceX(mRotation, xMax, yMax, x, y),
+                                TouchTransform.toDeviceY(mRotation, xMax, yMax, x, y),
+                                readTime);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Same handshake as ArduinoCom: firmware that supports binary frames is switched over
+     */
+    private void onCapabilitiesReceived() {
+        int capabilities = mDecoder.getX();
+        LOG.info("Controller capabilities: " + capabilities + ", max sample rate: "
+                + mDecoder.getY() + " Hz, resolution: " + mDecoder.getZ() + " bits");
+
+        if ((capabilities & FrameDecoder.CAP_BINARY) != 0 && !mBinaryProtocol) {
+            // the decoder is switched over when the firmware acknowledges
+            mBinaryProtocol = writeString("<BINARY>");
+        }
+    }
+
+    private boolean writeString(String data) {
+        FileChannel channel = mWriteChannel;
+        if (channel == null) {
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(ASCII));
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warning("Unable to write " + data + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Puts the tty in raw mode at the requested baud rate.  Without raw mode the line
+     * discipline holds input until a newline, which the protocol never sends.
+     */
+    private boolean configureTty() {
+        ProcessBuilder builder = new ProcessBuilder("stty", "-F", mDevice,
+                String.valueOf(mBaud), "raw", "-echo");
+        builder.redirectErrorStream(true);
+
+        try {
+            Process stty = builder.start();
+            String output = readAll(stty.getInputStream());
+            if (stty.waitFor() != 0) {
+                LOG.severe("Unable to configure " + mDevice + ": " + output.trim());
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.severe("Unable to run stty: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        StringBuilder output = new StringBuilder();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            output.append(new String(buffer, 0, count, ASCII));
+        }
+        return output.toString();
+    }
+
+    private synchronized void closeChannels() {
+        if (mReadChannel != null) {
+            try {
+                mReadChannel.close();
+            } catch (IOException e) {
+                LOG.warning("Error closing " + mDevice + ": " + e.getMessage());
+            }
+        }
+        if (mWriteChannel != null) {
+            try {
+                mWriteChannel.close();
+            } catch (IOException e) {
+                LOG.warning("Error closing " + mDevice + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: resremote-daemon --device <tty> --width <px> --height <px>"
+                + " [--rotation 0|90|180|270] [--baud <rate>] [--fuzz <px>]");
+    }
+
+    public static void main(String[] args) {
+        String device = null;
+        int baud = DEFAULT_BAUD;
+        int width = 0;
+        int height = 0;
+        int rotation = TouchTransform.ROTATION_0;
+        int fuzz = DEFAULT_FUZZ;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+
+                if (option.equals("--device")) {
+                    device = value;
+                } else if (option.equals("--baud")) {
+                    baud = Integer.parseInt(value);
+                } else if (option.equals("--width")) {
+                    width = Integer.parseInt(value);
+                } else if (option.equals("--height")) {
+                    height = Integer.parseInt(value);
+                } else if (option.equals("--rotation")) {
+                    rotation = parseRotation(value);
+                } else if (option.equals("--fuzz")) {
+                    fuzz = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (device == null || width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("--device, --width and --height are required");
+            }
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+
+        final ResRemoteDaemon daemon = new ResRemoteDaemon(device, baud, width, height, rotation,
+                fuzz);
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (!daemon.isRunning()) {
+                    return;     // run() already returned, main is exiting
+                }
+                daemon.stop();
+                try {
+                    // let run() remove the uinput device before the vm exits
+                    mainThread.join(1000);
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+            }
+        }));
+
+        System.exit(daemon.run() ? 0 : 1);
+    }
+
+    private static int parseRotation(String degrees) {
+        switch (Integer.parseInt(degrees)) {
+            case 0:
+                return TouchTransform.ROTATION_0;
+            case 90:
+                return TouchTransform.ROTATION_90;
+            case 180:
+                return TouchTransform.ROTATION_180;
+            case 270:
+                return TouchTransform.ROTATION_270;
+            default:
+                throw new IllegalArgumentException("Rotation must be 0, 90, 180 or 270");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.arksine.resremote.daemon;
+
+import com.arksine.resremote.EventChannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class UinputDevice
+ *
+ * The virtual touch screen on a linux host.  Backed by the same uinput code as the android
+ * driver (app/src/main/jni/uinputdevice.cpp), so there is only one device per process.
+ */
+public final class UinputDevice {
+
+    static {
+        System.loadLibrary("resremotedaemon");
+    }
+
+    private UinputDevice() {}
+
+    /**
+     * Creates the device, points are expected in the range 0..width-1, 0..height-1
+     *
+     * @param fuzz - evdev fuzz of the position axes in pixels, the kernel drops changes
+     *             smaller than fuzz / 2 and averages changes smaller than 2 * fuzz
+     */
+    public static boolean open(int width, int height, int fuzz) {
+        return openDevice(width, height, fuzz);
+    }
+
+    /**
+     * Writes the device's input events to a file, such as /dev/null or a fifo, instead of
+     * uinput.  For benchmarks and testing on hosts without /dev/uinput.
+     */
+    public static boolean openFile(String path) {
+        return openOutputFile(path);
+    }
+
+    /**
+     * Sends a FrameDecoder.OP_DOWN or OP_UP in device coordinates
+     *
+     * @param timeNs - System.nanoTime() the point arrived at, or 0 for now
+     */
+    public static void inject(int opcode, int x, int y, long timeNs) {
+        injectEvent(opcode, x, y, timeNs);
+    }
+
+    /**
+     * Lets flush() inject the events put into the channel, in device coordinates.  The
+     * channel stays attached until the device is closed.
+     */
+    public static boolean attach(EventChannel channel) {
+        return attachChannel(channel.getBuffer(), channel.getCapacity());
+    }
+
+    /**
+     * Injects every event put into the attached channel since the last flush
+     *
+     * @return the number of events consumed
+     */
+    public static int flush() {
+        return flushChannel();
+    }
+
+    public static void close() {
+        closeDevice();
+    }
+
+    private static native boolean openDevice(int screenSizeX, int screenSizeY, int fuzz);
+    private static native boolean openOutputFile(String path);
+    private static native void injectEvent(int opcode, int x, int y, long timeNs);
+    private static native boolean attachChannel(ByteBuffer buffer, int capacity);
+    private static native int flushChannel();
+    private static native void closeDevice();
+}
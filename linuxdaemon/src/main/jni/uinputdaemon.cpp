@@ -0,0 +1,71 @@
+//
+// JNI glue for the linux daemon's UinputDevice, injecting through the same uinput code as
+// the android driver.
+//
+#include <jni.h>
+#include <fcntl.h>
+#include "uinputdevice.h"
+#include "eventchannel.h"
+
+// The daemon drives a single device, UinputDevice is a static class
+static UinputDevice* device = nullptr;
+static EventChannel channel = {nullptr, 0};
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+    JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_daemon_UinputDevice_openDevice(
+            JNIEnv* jenv, jclass clazz, jint screenSizeX, jint screenSizeY, jint fuzz) {
+
+        UinputAxis axis = {fuzz, 0, 0};
+        device = uinput_open(screenSizeX, screenSizeY, &axis, &axis);
+        return device != nullptr;
+    }
+
+    JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_daemon_UinputDevice_openOutputFile(
+            JNIEnv* jenv, jclass clazz, jstring path) {
+
+        const char* name = jenv->GetStringUTFChars(path, 0);
+        int fd = open(name, O_WRONLY);
+        jenv->ReleaseStringUTFChars(path, name);
+
+        if (fd == -1) {
+            return false;
+        }
+        device = uinput_attach_fd(fd);
+        return true;
+    }
+
+    JNIEXPORT void JNICALL Java_com_arksine_resremote_daemon_UinputDevice_injectEvent(
+            JNIEnv* jenv, jclass clazz, jint opcode, jint x, jint y, jlong timeNs) {
+
+        if (device != nullptr) {
+            uinput_inject(device, opcode, x, y, timeNs);
+        }
+    }
+
+    JNIEXPORT jboolean JNICALL Java_com_arksine_resremote_daemon_UinputDevice_attachChannel(
+            JNIEnv* jenv, jclass clazz, jobject buffer, jint capacity) {
+
+        return event_channel_attach(&channel, jenv->GetDirectBufferAddress(buffer),
+                                    jenv->GetDirectBufferCapacity(buffer), capacity);
+    }
+
+    JNIEXPORT jint JNICALL Java_com_arksine_resremote_daemon_UinputDevice_flushChannel(
+            JNIEnv* jenv, jclass clazz) {
+
+        return device != nullptr ? event_channel_consume(&channel, device) : 0;
+    }
+
+    JNIEXPORT void JNICALL Java_com_arksine_resremote_daemon_UinputDevice_closeDevice(
+            JNIEnv* jenv, jclass clazz) {
+
+        event_channel_detach(&channel);
+        uinput_close(device);
+        device = nullptr;
+    }
+
+#ifdef __cplusplus
+}
+#endif